@@ -35,6 +35,7 @@ import com.common.TransitionsLibrary;
 import com.libs.facerecognition.FacePreprocessor;
 import com.libs.globaldata.GlobalData;
 import com.libs.globaldata.ModelObject;
+import com.libs.globaldata.userdatabase.UserDatabase;
 import com.libs.globaldata.userdatabase.UserRecord;
 
 import java.io.FileInputStream;
@@ -63,6 +64,9 @@ public class AddFaceActivity extends AppCompatActivity {
 
     private FacePreprocessor facePreProcessor = null;
 
+    // Users similar to the current face, which user was warned about, adding again confirms them
+    private final DuplicateConfirmation duplicateConfirmation = new DuplicateConfirmation();
+
     // ChoosePhoto Intent launcher
     ActivityResultLauncher<Intent> choosePhotoLauncher = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
@@ -238,6 +242,19 @@ public class AddFaceActivity extends AppCompatActivity {
             }
         }
 
+        // Warn before the same face is enrolled under another name
+        UserDatabase[] databases = new UserDatabase[models.size()];
+        float[][] faceVectors = new float[models.size()][];
+        for (int i = 0; i < models.size(); i++) {
+            databases[i] = models.get(i).first.userDatabase;
+            faceVectors[i] = models.get(i).second;
+        }
+        String duplicate = duplicateConfirmation.check(databases, username, faceVectors);
+        if (duplicate != null) {
+            toastWrapper.showToast(String.format(res.getString(R.string.addFace_DuplicateFace_toast), duplicate), Toast.LENGTH_LONG);
+            return;
+        }
+
         for (Pair<ModelObject, float[]> model : models) {
             UserRecord userRecord = new UserRecord(username, model.second);
             model.first.userDatabase.addUserRecord(userRecord);
@@ -335,6 +352,7 @@ public class AddFaceActivity extends AppCompatActivity {
      * @param face Face image.
      */
     private void processFace(Bitmap face) {
+        duplicateConfirmation.reset();
         for (int i = 0; i < models.size(); i++) {
             models.set(i, new Pair<>(models.get(i).first, models.get(i).first.neuralModel.resizeAndProcess(face)));
         }
@@ -375,22 +393,27 @@ public class AddFaceActivity extends AppCompatActivity {
         DocumentFile[] files = dir.listFiles();
         if (files == null)
             return;
+        List<String> names = new ArrayList<>();
+        List<float[][]> vectors = new ArrayList<>();
         for (DocumentFile file : files) {
             if (file.isDirectory() && !file.getName().matches("\\..*")) {
-                loadFacesFromDirectory(file);
+                loadFacesFromDirectory(file, names, vectors);
             }
         }
+        addLoadedFaces(names, vectors);
 
         finish();
         TransitionsLibrary.executeToRightTransition(this);
     }
 
     /**
-     * Process all photos in directory and add them to database with name of passed directory.
+     * Process all photos in directory, faces are collected with name of passed directory.
      *
      * @param directory Directory containing photos of single person.
+     * @param names     Names of processed faces, appended with the name of the directory.
+     * @param vectors   Vectors of processed faces, one per model, appended.
      */
-    private void loadFacesFromDirectory(DocumentFile directory) {
+    private void loadFacesFromDirectory(DocumentFile directory, List<String> names, List<float[][]> vectors) {
         DocumentFile[] files = directory.listFiles();
         if (files == null)
             return;
@@ -406,13 +429,48 @@ public class AddFaceActivity extends AppCompatActivity {
                     Log.d("Bulk add", "Skipped photo with none or multiple faces in directory " + name);
                     continue;
                 }
-                for (Pair<ModelObject, float[]> model : models) {
-                    UserRecord userRecord = new UserRecord(name, model.second);
-                    model.first.userDatabase.addUserRecord(userRecord);
+                float[][] faceVectors = new float[models.size()][];
+                for (int i = 0; i < models.size(); i++) {
+                    faceVectors[i] = models.get(i).second;
                 }
+                names.add(name);
+                vectors.add(faceVectors);
+            }
+        }
+        Log.d("Bulk add", "Processed user: " + name);
+    }
+
+    /**
+     * Add faces loaded from directories to databases of all models. Every database checks all
+     * faces for duplicates with one batched search. Face similar to user of another name in any
+     * database, or to a face accepted before it, is skipped, so that the same person is not
+     * enrolled under two names.
+     *
+     * @param names   Names of the faces.
+     * @param vectors Vectors of the faces, one per model.
+     */
+    private void addLoadedFaces(List<String> names, List<float[][]> vectors) {
+        String[] usernames = names.toArray(new String[0]);
+        UserDatabase[] databases = new UserDatabase[models.size()];
+        float[][][] modelVectors = new float[models.size()][usernames.length][];
+        for (int i = 0; i < models.size(); i++) {
+            databases[i] = models.get(i).first.userDatabase;
+            for (int j = 0; j < usernames.length; j++) {
+                modelVectors[i][j] = vectors.get(j)[i];
+            }
+        }
+        String[] duplicates = UserDatabase.findDuplicateIdentities(databases, usernames, modelVectors);
+
+        for (int j = 0; j < usernames.length; j++) {
+            if (duplicates[j] != null) {
+                Log.w("Bulk add", "Skipped photo of " + usernames[j] + " similar to user " + duplicates[j]);
+                continue;
+            }
+            for (int i = 0; i < models.size(); i++) {
+                UserRecord userRecord = new UserRecord(usernames[j], vectors.get(j)[i]);
+                models.get(i).first.userDatabase.addUserRecord(userRecord);
             }
         }
-        Log.d("Bulk add", "Added user: " + name);
     }
 
     @Override
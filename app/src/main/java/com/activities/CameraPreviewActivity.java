@@ -123,7 +123,8 @@ public class CameraPreviewActivity extends AppCompatActivity implements CameraPr
 
         faceDetector = new FaceDetector();
         if (cameraPreviewMode == CameraPreviewMode.RECOGNITION) {
-            faceRecognizer = new FaceRecognizer(modelObject.neuralModel, modelObject.userDatabase);
+            faceRecognizer = new FaceRecognizer(modelObject.neuralModel, modelObject.userDatabase,
+                    modelObject.unknownFaces);
         }
 
         // Initialize camera preview
@@ -0,0 +1,45 @@
+package com.activities;
+
+import com.libs.globaldata.userdatabase.UserDatabase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Confirmation of enrollment of a face similar to users of other names, state of the warning
+ * shown by AddFaceActivity. Every duplicate user is reported once, repeated attempt to enroll
+ * the same face confirms it. Databases of several models may report different users, they are
+ * reported one by one, so that the face can be enrolled once all of them are confirmed.
+ */
+class DuplicateConfirmation {
+    // Users, which the current face was reported similar to
+    private final Set<String> confirmed = new HashSet<>();
+
+    /**
+     * Check face about to be enrolled.
+     *
+     * @param databases databases of the models
+     * @param username  name under which the face is enrolled
+     * @param vectors   vector of the face per database
+     * @return name of a duplicate user not reported yet, null if face can be enrolled
+     */
+    String check(UserDatabase[] databases, String username, float[][] vectors) {
+        if (databases.length != vectors.length) {
+            throw new AssertionError("Number of databases and vectors differs");
+        }
+        for (int d = 0; d < databases.length; d++) {
+            String duplicate = databases[d].findDuplicateIdentity(username, vectors[d]);
+            if (duplicate != null && confirmed.add(duplicate)) {
+                return duplicate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forget reported users, e.g. when another face is chosen.
+     */
+    void reset() {
+        confirmed.clear();
+    }
+}
@@ -147,6 +147,13 @@ public class MainActivity extends AppCompatActivity {
         TransitionsLibrary.executeToLeftTransition(this);
     }
 
+    public void onOpenUnknownFacesClick(View view) {
+        Intent unknownFacesIntent = new Intent(this, UnknownFacesActivity.class);
+        unknownFacesIntent.putExtra(getResources().getString(R.string.addFace_ChooseModelName_intentValue), getChosenModels());
+        startActivity(unknownFacesIntent);
+        TransitionsLibrary.executeToLeftTransition(this);
+    }
+
     public void onOpenPreviewClick(View view) {
         Intent cameraPreviewIntent = new Intent(this, CameraPreviewActivity.class);
         cameraPreviewIntent.putExtra(CameraPreviewActivity.CAMERA_MODE_KEY,
@@ -0,0 +1,168 @@
+package com.activities;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.text.InputFilter;
+import android.util.TypedValue;
+import android.view.View;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.TableLayout;
+import android.widget.TableRow;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.Toolbar;
+
+import com.R;
+import com.common.ToastWrapper;
+import com.common.TransitionsLibrary;
+import com.libs.globaldata.GlobalData;
+import com.libs.globaldata.ModelObject;
+import com.libs.globaldata.userdatabase.UnknownFaceStore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class UnknownFacesActivity extends AppCompatActivity {
+    private final int textSize = 18;
+    // Minimal number of faces of listed clusters, single faces are usually passers-by
+    private final int minFaces = 2;
+    private final int cropSize = 64;
+    private List<ModelObject> models = new ArrayList<>();
+    private ToastWrapper toastWrapper;
+    private TableLayout tableLayout;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_unknown_faces);
+
+        // Set toolbar
+        Toolbar toolbar = findViewById(R.id.toolbar);
+        toolbar.setTitle("Unknown Faces");
+        setSupportActionBar(toolbar);
+
+        toastWrapper = new ToastWrapper(this);
+        tableLayout = this.findViewById(R.id.unknownFacesTableLayout);
+
+        // Get all models, which collect unknown faces.
+        List<String> requestedModels = (List<String>) getIntent().
+                getSerializableExtra(getString(R.string.addFace_ChooseModelName_intentValue));
+        for (int i = 0; i < requestedModels.size() / 2; i++) {
+            ModelObject modelObject = GlobalData.getModel(
+                    getApplicationContext(),
+                    requestedModels.get(2 * i),
+                    requestedModels.get(2 * i + 1));
+            if (modelObject.unknownFaces != null && !models.contains(modelObject)) {
+                models.add(modelObject);
+            }
+        }
+
+        // Check if any model was given.
+        if (models.size() == 0) {
+            toastWrapper.showToast(
+                    this.getString(R.string.UnknownFaces_Disabled_Toast), Toast.LENGTH_LONG);
+            finish();
+            TransitionsLibrary.executeToRightTransition(this);
+            return;
+        }
+
+        // Count padding and crop size (in dp).
+        int pixels = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, 10, getResources().getDisplayMetrics());
+        int cropPixels = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, cropSize, getResources().getDisplayMetrics());
+
+        // Clusters are kept per model, so every cluster is enrolled only to database of its model.
+        for (ModelObject model : models) {
+            for (UnknownFaceStore.Cluster<Bitmap> cluster : model.unknownFaces.getClusters(minFaces)) {
+                // Create views for cluster.
+                TableRow row = new TableRow(this);
+                ImageView cropView = new ImageView(this);
+                TextView numberOfFacesView = new TextView(this);
+                EditText usernameEditText = new EditText(this);
+                Button enrollButton = new Button(this);
+                Button dismissButton = new Button(this);
+
+                // Set up face crop view.
+                cropView.setImageBitmap(cluster.crop);
+                cropView.setAdjustViewBounds(true);
+                cropView.setMaxWidth(cropPixels);
+                cropView.setMaxHeight(cropPixels);
+                cropView.setPadding(pixels, pixels, pixels, pixels);
+
+                // Set up number of faces view.
+                numberOfFacesView.setText(String.valueOf(cluster.count));
+                numberOfFacesView.setTextSize(TypedValue.COMPLEX_UNIT_SP, textSize);
+                numberOfFacesView.setPadding(pixels, pixels, pixels, pixels);
+
+                // Set up user name input, limited as in AddFaceActivity.
+                usernameEditText.setHint(R.string.UnknownFaces_UserName_Text);
+                usernameEditText.setSingleLine(true);
+                usernameEditText.setFilters(new InputFilter[]{new InputFilter.LengthFilter(10)});
+                usernameEditText.setTextSize(TypedValue.COMPLEX_UNIT_SP, textSize);
+
+                // Set up buttons.
+                enrollButton.setOnClickListener(v -> enrollCluster(model, cluster.id,
+                        usernameEditText.getText().toString().trim(), v));
+                enrollButton.setText(R.string.UnknownFaces_EnrollButton_Text);
+                enrollButton.setPadding(pixels, pixels, pixels, pixels);
+                dismissButton.setOnClickListener(v -> dismissCluster(model, cluster.id, v));
+                dismissButton.setText(R.string.UnknownFaces_DismissButton_Text);
+                dismissButton.setPadding(pixels, pixels, pixels, pixels);
+
+                // Add all views to table.
+                row.addView(cropView);
+                row.addView(numberOfFacesView);
+                row.addView(usernameEditText);
+                row.addView(enrollButton);
+                row.addView(dismissButton);
+                tableLayout.addView(row);
+            }
+        }
+    }
+
+    /**
+     * Enroll cluster as a user of its model's database.
+     *
+     * @param model    model, which collected the cluster
+     * @param id       id of the cluster
+     * @param username name of the enrolled user
+     * @param v        Button, which triggers on click event
+     */
+    private void enrollCluster(ModelObject model, int id, String username, View v) {
+        if (username.isEmpty()) {
+            toastWrapper.showToast(getString(R.string.addFace_UsernameNotGiven_toast), Toast.LENGTH_SHORT);
+            return;
+        }
+        try {
+            model.unknownFaces.enroll(id, username, model.userDatabase);
+        } catch (AssertionError e) {
+            // Cluster was evicted meanwhile
+            tableLayout.removeView((View) v.getParent());
+            return;
+        }
+        tableLayout.removeView((View) v.getParent());
+        toastWrapper.showToast(getString(R.string.UnknownFaces_UserEnrolled_Toast, username), Toast.LENGTH_SHORT);
+    }
+
+    /**
+     * Remove cluster, e.g. of a passer-by.
+     *
+     * @param model model, which collected the cluster
+     * @param id    id of the cluster
+     * @param v     Button, which triggers on click event
+     */
+    private void dismissCluster(ModelObject model, int id, View v) {
+        model.unknownFaces.remove(id);
+        tableLayout.removeView((View) v.getParent());
+    }
+
+    @Override
+    public void onBackPressed()
+    {
+        super.onBackPressed();
+        TransitionsLibrary.executeToRightTransition(this);
+    }
+}
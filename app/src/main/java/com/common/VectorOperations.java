@@ -4,6 +4,21 @@ import java.lang.Math;
 
 public final class VectorOperations {
 
+    /**
+     * Float values of all half-precision numbers, so that widening is a single lookup. Table
+     * takes 256 KB, so it is held by a nested class, which is initialized only on the first use
+     * of half-precision vectors.
+     */
+    private static final class HalfToFloat {
+        static final float[] TABLE = new float[1 << 16];
+
+        static {
+            for (int half = 0; half < TABLE.length; half++) {
+                TABLE[half] = halfToFloat(half);
+            }
+        }
+    }
+
     /**
      * Normalize vector by it's l2 norm (unit vector).
      *       v
@@ -44,7 +59,7 @@ public final class VectorOperations {
      * @return euclidean distance between the two vectors
      * @throws NullPointerException when null vector(s) passed
      */
-    static public Double euclideanDistance(float[] vector1, float[] vector2) {
+    static public double euclideanDistance(float[] vector1, float[] vector2) {
         if (vector1 == null || vector2 == null)
             throw new NullPointerException("Null vector(s) passed");
 
@@ -89,4 +104,322 @@ public final class VectorOperations {
         return 1 - (a / (b * c));
     }
 
-}
+    /**
+     * Calculate euclidean distance between vector and row of row-major matrix.
+     *
+     * @param vector first vector
+     * @param matrix row-major matrix of vectors with the same length as first vector
+     * @param offset index of the first element of the row in the matrix
+     * @return euclidean distance between the vector and the row
+     * @throws NullPointerException when null vector or matrix passed
+     */
+    static public double euclideanDistance(float[] vector, float[] matrix, int offset) {
+        return euclideanDistance(vector, 0, matrix, offset, vector.length);
+    }
+
+    /**
+     * Calculate euclidean distance between rows of two row-major matrices.
+     *
+     * @param matrix1 first matrix
+     * @param offset1 index of the first element of the row in the first matrix
+     * @param matrix2 second matrix
+     * @param offset2 index of the first element of the row in the second matrix
+     * @param length  length of the rows
+     * @return euclidean distance between the two rows
+     * @throws NullPointerException when null matrix passed
+     */
+    static public double euclideanDistance(float[] matrix1, int offset1,
+                                           float[] matrix2, int offset2, int length) {
+        return Math.sqrt(squaredEuclideanDistance(matrix1, offset1, matrix2, offset2, length));
+    }
+
+    /**
+     * Calculate squared euclidean distance between rows of two row-major matrices. Ranking by
+     * squared distance is the same as by distance, without square root per row.
+     *
+     * @param matrix1 first matrix
+     * @param offset1 index of the first element of the row in the first matrix
+     * @param matrix2 second matrix
+     * @param offset2 index of the first element of the row in the second matrix
+     * @param length  length of the rows
+     * @return squared euclidean distance between the two rows
+     * @throws NullPointerException when null matrix passed
+     */
+    static public double squaredEuclideanDistance(float[] matrix1, int offset1,
+                                                  float[] matrix2, int offset2, int length) {
+        if (matrix1 == null || matrix2 == null)
+            throw new NullPointerException("Null matrix passed");
+
+        double distance = 0;
+
+        for (int i = 0; i < length; i++) {
+            double diff = matrix1[offset1 + i] - matrix2[offset2 + i];
+            distance += diff * diff;
+        }
+
+        return distance;
+    }
+
+    /**
+     * Calculate dot product of vector and row of row-major matrix.
+     *
+     * @param vector first vector
+     * @param matrix row-major matrix of vectors with the same length as first vector
+     * @param offset index of the first element of the row in the matrix
+     * @return dot product of the vector and the row
+     * @throws NullPointerException when null vector or matrix passed
+     */
+    static public double dotProduct(float[] vector, float[] matrix, int offset) {
+        return dotProduct(vector, 0, matrix, offset, vector.length);
+    }
+
+    /**
+     * Calculate dot product of rows of two row-major matrices.
+     *
+     * @param matrix1 first matrix
+     * @param offset1 index of the first element of the row in the first matrix
+     * @param matrix2 second matrix
+     * @param offset2 index of the first element of the row in the second matrix
+     * @param length  length of the rows
+     * @return dot product of the two rows
+     * @throws NullPointerException when null matrix passed
+     */
+    static public double dotProduct(float[] matrix1, int offset1,
+                                    float[] matrix2, int offset2, int length) {
+        if (matrix1 == null || matrix2 == null)
+            throw new NullPointerException("Null matrix passed");
+
+        double product = 0;
+
+        for (int i = 0; i < length; i++)
+            product += matrix1[offset1 + i] * matrix2[offset2 + i];
+
+        return product;
+    }
+
+    /**
+     * Calculate l2 norm (length) of the vector.
+     *
+     * @param vector vector to measure
+     * @return l2 norm of the vector
+     * @throws NullPointerException when null vector passed
+     */
+    static public double l2Norm(float[] vector) {
+        if (vector == null)
+            throw new NullPointerException("Null vector passed");
+
+        return Math.sqrt(dotProduct(vector, vector, 0));
+    }
+
+    /**
+     * Calculate euclidean distance between vector and row of row-major matrix of
+     * half-precision numbers.
+     *
+     * @param matrix1 first matrix
+     * @param offset1 index of the first element of the row in the first matrix
+     * @param matrix2 second matrix, holding half-precision numbers
+     * @param offset2 index of the first element of the row in the second matrix
+     * @param length  length of the rows
+     * @return euclidean distance between the two rows
+     * @throws NullPointerException when null matrix passed
+     */
+    static public double euclideanDistance(float[] matrix1, int offset1,
+                                           short[] matrix2, int offset2, int length) {
+        return Math.sqrt(squaredEuclideanDistance(matrix1, offset1, matrix2, offset2, length));
+    }
+
+    /**
+     * Calculate squared euclidean distance between vector and row of row-major matrix of
+     * half-precision numbers.
+     *
+     * @param matrix1 first matrix
+     * @param offset1 index of the first element of the row in the first matrix
+     * @param matrix2 second matrix, holding half-precision numbers
+     * @param offset2 index of the first element of the row in the second matrix
+     * @param length  length of the rows
+     * @return squared euclidean distance between the two rows
+     * @throws NullPointerException when null matrix passed
+     */
+    static public double squaredEuclideanDistance(float[] matrix1, int offset1,
+                                                  short[] matrix2, int offset2, int length) {
+        if (matrix1 == null || matrix2 == null)
+            throw new NullPointerException("Null matrix passed");
+
+        double distance = 0;
+
+        for (int i = 0; i < length; i++) {
+            double diff = matrix1[offset1 + i] - HalfToFloat.TABLE[matrix2[offset2 + i] & 0xFFFF];
+            distance += diff * diff;
+        }
+
+        return distance;
+    }
+
+    /**
+     * Calculate dot product of vector and row of row-major matrix of half-precision numbers.
+     *
+     * @param matrix1 first matrix
+     * @param offset1 index of the first element of the row in the first matrix
+     * @param matrix2 second matrix, holding half-precision numbers
+     * @param offset2 index of the first element of the row in the second matrix
+     * @param length  length of the rows
+     * @return dot product of the two rows
+     * @throws NullPointerException when null matrix passed
+     */
+    static public double dotProduct(float[] matrix1, int offset1,
+                                    short[] matrix2, int offset2, int length) {
+        if (matrix1 == null || matrix2 == null)
+            throw new NullPointerException("Null matrix passed");
+
+        double product = 0;
+
+        for (int i = 0; i < length; i++)
+            product += matrix1[offset1 + i] * HalfToFloat.TABLE[matrix2[offset2 + i] & 0xFFFF];
+
+        return product;
+    }
+
+    /**
+     * Calculate squared euclidean distance between vector and scaled row of row-major matrix,
+     * abandoning the sum as soon as it exceeds given bound. Bound is checked after every block
+     * of 8 values, so rows far from the vector are rejected after a fraction of their values.
+     *
+     * @param vector  vector
+     * @param matrix  row-major matrix
+     * @param offset  index of the first element of the row in the matrix
+     * @param scale   factor multiplying every value of the row
+     * @param length  length of the vector
+     * @param bound   squared distance, after exceeding which calculation is abandoned
+     * @return squared distance, partial sum greater than bound if calculation was abandoned
+     * @throws NullPointerException when null vector or matrix passed
+     */
+    static public double squaredEuclideanDistance(float[] vector, float[] matrix, int offset,
+                                                  float scale, int length, double bound) {
+        if (vector == null || matrix == null)
+            throw new NullPointerException("Null vector or matrix passed");
+
+        double distance = 0;
+        int i = 0;
+
+        while (i < length) {
+            int blockEnd = Math.min(length, i + 8);
+            for (; i < blockEnd; i++) {
+                double diff = vector[i] - matrix[offset + i] * scale;
+                distance += diff * diff;
+            }
+            if (distance > bound) {
+                break;
+            }
+        }
+
+        return distance;
+    }
+
+    /**
+     * Calculate squared euclidean distance between vector and scaled row of row-major matrix of
+     * half-precision numbers, abandoning the sum as soon as it exceeds given bound.
+     *
+     * @param vector  vector
+     * @param matrix  row-major matrix, holding half-precision numbers
+     * @param offset  index of the first element of the row in the matrix
+     * @param scale   factor multiplying every value of the row
+     * @param length  length of the vector
+     * @param bound   squared distance, after exceeding which calculation is abandoned
+     * @return squared distance, partial sum greater than bound if calculation was abandoned
+     * @throws NullPointerException when null vector or matrix passed
+     */
+    static public double squaredEuclideanDistance(float[] vector, short[] matrix, int offset,
+                                                  float scale, int length, double bound) {
+        if (vector == null || matrix == null)
+            throw new NullPointerException("Null vector or matrix passed");
+
+        double distance = 0;
+        int i = 0;
+
+        while (i < length) {
+            int blockEnd = Math.min(length, i + 8);
+            for (; i < blockEnd; i++) {
+                double diff = vector[i] - HalfToFloat.TABLE[matrix[offset + i] & 0xFFFF] * scale;
+                distance += diff * diff;
+            }
+            if (distance > bound) {
+                break;
+            }
+        }
+
+        return distance;
+    }
+
+    /**
+     * Convert float to the closest IEEE 754 half-precision number (round half to even).
+     * Values out of half-precision range are converted to infinity.
+     *
+     * @param value float to convert
+     * @return bits of half-precision number
+     */
+    static public short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (exponent == 0xFF - 127 + 15) {
+            // Infinity or NaN
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        if (exponent >= 0x1F) {
+            // Overflow
+            return (short) (sign | 0x7C00);
+        }
+        if (exponent <= 0) {
+            // Subnormal half or underflow to zero
+            if (exponent < -10) {
+                return (short) sign;
+            }
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int halfMantissa = mantissa >> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (remainder > halfway || (remainder == halfway && (halfMantissa & 1) != 0)) {
+                halfMantissa++;
+            }
+            return (short) (sign | halfMantissa);
+        }
+
+        int half = sign | (exponent << 10) | (mantissa >> 13);
+        int remainder = mantissa & 0x1FFF;
+        if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+            // Carry may propagate to the exponent, which gives correct rounding up to infinity
+            half++;
+        }
+        return (short) half;
+    }
+
+    /**
+     * Convert IEEE 754 half-precision number to float. Conversion is exact.
+     *
+     * @param half bits of half-precision number
+     * @return float value of the number
+     */
+    static public float toFloat(short half) {
+        return HalfToFloat.TABLE[half & 0xFFFF];
+    }
+
+    private static float halfToFloat(int half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1F;
+        int mantissa = half & 0x3FF;
+
+        if (exponent == 0) {
+            // Zero or subnormal: mantissa * 2^-24
+            float value = mantissa * 0x1p-24f;
+            return sign != 0 ? -value : value;
+        }
+        if (exponent == 0x1F) {
+            // Infinity or NaN
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
\ No newline at end of file
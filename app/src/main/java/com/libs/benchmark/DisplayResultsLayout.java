@@ -127,10 +127,15 @@ public class DisplayResultsLayout implements LayoutClassInterface {
     private Long processModel(String modelName, String databaseName) {
         long startTime = System.nanoTime();
         ModelObject model = GlobalData.getModel(caller, modelName, databaseName);
-        for (BenchmarkResult processingResult : testResults) {
-            UserRecord record = model.userDatabase.findClosestRecordBelowThreshold(
-                    model.neuralModel.resizeAndProcess(processingResult.getPhoto()));
-            processingResult.addResult(modelName, record.username);
+        float[][] vectors = new float[testResults.size()][];
+        for (int i = 0; i < testResults.size(); i++) {
+            vectors[i] = model.neuralModel.resizeAndProcess(testResults.get(i).getPhoto());
+        }
+
+        // Search all faces in one pass over database
+        UserRecord[] records = model.userDatabase.findClosestRecordsBelowThreshold(vectors);
+        for (int i = 0; i < testResults.size(); i++) {
+            testResults.get(i).addResult(modelName, records[i] == null ? "" : records[i].username);
         }
         long endTime = System.nanoTime();
 
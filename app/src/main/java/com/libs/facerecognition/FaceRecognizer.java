@@ -4,6 +4,7 @@ import android.graphics.Bitmap;
 
 import com.google.mlkit.vision.face.Face;
 import com.libs.globaldata.GlobalData;
+import com.libs.globaldata.userdatabase.UnknownFaceStore;
 import com.libs.globaldata.userdatabase.UserDatabase;
 import com.libs.globaldata.userdatabase.UserRecord;
 
@@ -16,6 +17,7 @@ import java.util.concurrent.Executors;
 public class FaceRecognizer {
     private final NeuralModel model;
     private final UserDatabase userDatabase;
+    private final UnknownFaceStore<Bitmap> unknownFaces;
 
     private final Executor recognizeThreadExecutor = Executors.newSingleThreadExecutor();
     private final FacePreprocessor facePreprocessor;
@@ -25,9 +27,18 @@ public class FaceRecognizer {
     private List<Face> currentDetectedFaces = null;
 
     public FaceRecognizer(NeuralModel model, UserDatabase userDatabase) {
+        this(model, userDatabase, null);
+    }
+
+    /**
+     * @param unknownFaces store, to which faces not recognized are offered, null to discard them
+     */
+    public FaceRecognizer(NeuralModel model, UserDatabase userDatabase,
+                          UnknownFaceStore<Bitmap> unknownFaces) {
         this.facePreprocessor = GlobalData.getFacePreProcessor();
         this.model = model;
         this.userDatabase = userDatabase;
+        this.unknownFaces = unknownFaces;
     }
 
     /**
@@ -80,21 +91,29 @@ public class FaceRecognizer {
             newNames = new String[faceImages.size()];
 
             // Calculate vector for each face
+            float[][] results = new float[faceImages.size()][];
             for (int i = 0; i < faceImages.size(); i++) {
-                float[] result = null;
                 try {
-                    result = model.resizeAndProcess(faceImages.get(i));
+                    results[i] = model.resizeAndProcess(faceImages.get(i));
                 } catch (NullPointerException e) {
                     e.printStackTrace();
-                } finally {
-                    // Find closest user in database.
-                    // TODO: Add threshold to avoid detection of non-existing users
-                    UserRecord closestUser = userDatabase.findClosestRecordBelowThreshold(result);
-                    if (closestUser != null) {
-                        newNames[i] = closestUser.username;
-                    } else {
-                        newNames[i] = "";
-                    }
+                }
+            }
+
+            // Find closest users of all faces in one pass over database
+            UserRecord[] closestUsers = userDatabase.findClosestRecordsBelowThreshold(results);
+            for (int i = 0; i < closestUsers.length; i++) {
+                if (closestUsers[i] != null) {
+                    newNames[i] = closestUsers[i].username;
+                } else {
+                    newNames[i] = "";
+                }
+
+                // Cluster faces further than threshold from all users, store does not block if it
+                // is busy. Faces without closest user are not compared, e.g. in empty database.
+                boolean unknown = closestUsers[i] != null && "?".equals(closestUsers[i].username);
+                if (unknownFaces != null && unknown) {
+                    unknownFaces.offer(results[i], faceImages.get(i));
                 }
             }
         }
@@ -2,12 +2,16 @@ package com.libs.globaldata;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 
 import com.R;
 import com.libs.facerecognition.NeuralModel;
 import com.libs.facerecognition.NeuralModelProvider;
+import com.libs.globaldata.userdatabase.IndexType;
 import com.libs.globaldata.userdatabase.Metric;
+import com.libs.globaldata.userdatabase.UnknownFaceStore;
 import com.libs.globaldata.userdatabase.UserDatabase;
+import com.libs.globaldata.userdatabase.VectorPrecision;
 
 import java.io.BufferedReader;
 import java.io.InputStream;
@@ -18,6 +22,9 @@ public class ModelObject {
     public final NeuralModel neuralModel;
     public final UserDatabase userDatabase;
 
+    // Clusters of faces, which were not recognized, null if disabled for the model
+    public final UnknownFaceStore<Bitmap> unknownFaces;
+
     /**
      * ModelObject constructor. Depending on the type, acquires proper neural network model.
      * Always creates new database with the unique filename assigned.
@@ -31,12 +38,22 @@ public class ModelObject {
         String[] models = context.getResources().getStringArray(R.array.models);
         String[] metrics = context.getResources().getStringArray(R.array.metrics);
         String[] thresholds = context.getResources().getStringArray(R.array.threshold);
+        String[] duplicateDistances = context.getResources().getStringArray(R.array.duplicateDistance);
+        String[] indexes = context.getResources().getStringArray(R.array.indexes);
+        String[] precisions = context.getResources().getStringArray(R.array.precisions);
+        String[] unknownClusters = context.getResources().getStringArray(R.array.unknownClusters);
         for(int i = 0; i < models.length; i++){
             if(models[i].equals(modelName)){
                 Metric metric = Metric.valueOf(metrics[i].toUpperCase());
                 float threshold = Float.parseFloat(thresholds[i]);
+                IndexType indexType = IndexType.valueOf(indexes[i].toUpperCase());
+                VectorPrecision precision = VectorPrecision.valueOf(precisions[i].toUpperCase());
                 userDatabase = new UserDatabase(context, databaseName, neuralModel.getOutputSize(),
-                        true, metric, threshold);
+                        true, metric, threshold, indexType, precision);
+                userDatabase.setDuplicateDistance(Float.parseFloat(duplicateDistances[i]));
+                int maxClusters = Integer.parseInt(unknownClusters[i]);
+                unknownFaces = maxClusters > 0 ? new UnknownFaceStore<>(neuralModel.getOutputSize(),
+                        metric, threshold, maxClusters, indexType) : null;
                 return;
             }
         }
@@ -44,9 +61,12 @@ public class ModelObject {
     }
 
     /**
-     * Remove database of the ModelObject.
+     * Remove database and unknown faces of the ModelObject.
      */
     public void clear() {
         userDatabase.clear();
+        if (unknownFaces != null) {
+            unknownFaces.clear();
+        }
     }
 }
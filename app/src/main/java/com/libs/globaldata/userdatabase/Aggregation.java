@@ -0,0 +1,13 @@
+package com.libs.globaldata.userdatabase;
+
+/**
+ * Way of combining distances of user's embeddings into distance of the user.
+ *
+ * MIN  - distance of the closest embedding
+ * MEAN - mean distance of up to 3 closest embeddings, which is less sensitive to a single
+ *        outlier photo, but needs all embeddings of candidate users to be scored
+ */
+public enum Aggregation {
+    MIN,
+    MEAN
+}
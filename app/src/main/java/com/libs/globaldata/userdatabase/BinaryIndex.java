@@ -0,0 +1,240 @@
+package com.libs.globaldata.userdatabase;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Binary code index. Every row is stored as one bit per dimension, set when the value is greater
+ * than mean of the dimension learned from the database, packed into longs. 128-dimensional row
+ * takes two longs, which are scored against the query with XOR and bit count (Hamming distance).
+ *
+ * Hamming distance only estimates the metric's distance, so search takes the best candidates by
+ * Hamming distance and re-ranks them with full-precision vectors.
+ *
+ * Tunable parameters:
+ * rerank - number of candidates re-ranked with full-precision vectors, at least 1
+ */
+public class BinaryIndex extends TrainableIndex<float[], long[]> {
+    public static final int DEFAULT_RERANK = 256;
+
+    private static final int MIN_TRAINING_ROWS = 64;
+    private static final int MAX_TRAINING_ROWS = 4096;
+
+    private int rerank;
+
+    // Number of longs per row
+    private int words = 0;
+
+    // Row-major matrix of codes, row i starts at i * words
+    private long[] codes = new long[0];
+
+    public BinaryIndex() {
+        this(DEFAULT_RERANK);
+    }
+
+    public BinaryIndex(int rerank) {
+        if (rerank < 1) {
+            throw new AssertionError("Invalid binary index parameters");
+        }
+        this.rerank = rerank;
+    }
+
+    /**
+     * Set number of candidates re-ranked with full-precision vectors.
+     *
+     * @param rerank number of candidates, at least 1
+     */
+    public synchronized void setRerank(int rerank) {
+        if (rerank < 1) {
+            throw new AssertionError("Invalid number of re-ranked candidates");
+        }
+        this.rerank = rerank;
+    }
+
+    public synchronized int getRerank() {
+        return rerank;
+    }
+
+    /**
+     * Learn mean of every dimension, which splits values of the dimension into bits.
+     */
+    @Override
+    float[] fit(float[] sample, int count, int dimension, Random random) {
+        float[] mean = new float[dimension];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < dimension; j++) {
+                mean[j] += sample[i * dimension + j];
+            }
+        }
+        for (int j = 0; j < dimension; j++) {
+            mean[j] /= count;
+        }
+        return mean;
+    }
+
+    @Override
+    long[] encodeRows(float[] newModel, int count) {
+        long[] newCodes = new long[count * words];
+        for (int row = 0; row < count; row++) {
+            encode(newModel, row, newCodes);
+        }
+        return newCodes;
+    }
+
+    @Override
+    void useCodes(long[] newCodes, int count) {
+        codes = newCodes;
+        ensureCapacity(size);
+        for (int row = count; row < size; row++) {
+            encode(model, row, codes);
+        }
+    }
+
+    @Override
+    void writeModel(DataOutputStream out) throws IOException {
+        IndexFile.writeFloatArray(out, model);
+    }
+
+    @Override
+    float[] readModel(ByteBuffer in) {
+        float[] mean = IndexFile.readFloatArray(in);
+        return mean.length == vectorStore.getVectorLength() ? mean : null;
+    }
+
+    @Override
+    void writeCodes(DataOutputStream out, int[] fileRows) throws IOException {
+        for (int row : fileRows) {
+            IndexFile.writeLongs(out, codes, row * words, words);
+        }
+    }
+
+    @Override
+    boolean readCodes(ByteBuffer in) {
+        words = (vectorStore.getVectorLength() + Long.SIZE - 1) / Long.SIZE;
+        ensureCapacity(size);
+        IndexFile.readLongs(in, codes, 0, size * words);
+        return true;
+    }
+
+    @Override
+    int minTrainingRows() {
+        return 1;
+    }
+
+    @Override
+    int autoTrainingRows() {
+        return MIN_TRAINING_ROWS;
+    }
+
+    @Override
+    int maxTrainingRows() {
+        return MAX_TRAINING_ROWS;
+    }
+
+    @Override
+    SearchIndex copyFor(VectorStore vectorStore) {
+        return attachCopy(new BinaryIndex(rerank), vectorStore);
+    }
+
+    @Override
+    synchronized void rebuild() {
+        onClear();
+        words = (vectorStore.getVectorLength() + Long.SIZE - 1) / Long.SIZE;
+        size = vectorStore.size();
+        ensureCapacity(size);
+        trainIfNeeded();
+    }
+
+    @Override
+    synchronized void onAdd(int row) {
+        ensureCapacity(row + 1);
+        size++;
+        if (model != null) {
+            encode(model, row, codes);
+        }
+        trainIfNeeded();
+    }
+
+    @Override
+    synchronized void onClear() {
+        resetTraining();
+    }
+
+    @Override
+    synchronized void search(float[] vector, double vectorNorm, TopKHeap heap, float maxDistance) {
+        if (model == null) {
+            // Mean not learned yet, scan all rows
+            for (int row = 0; row < size; row++) {
+                offer(heap, row, (float) vectorStore.distance(vector, vectorNorm, row), maxDistance);
+            }
+            return;
+        }
+
+        long[] query = new long[words];
+        binarize(model, toQuantizerSpace(vector, vectorNorm), query, 0);
+
+        // Score all rows with Hamming distance
+        TopKHeap candidates = createCandidates(Math.max(heap.capacity(), rerank));
+        for (int row = 0, offset = 0; row < size; row++, offset += words) {
+            int distance = 0;
+            for (int i = 0; i < words; i++) {
+                distance += Long.bitCount(query[i] ^ codes[offset + i]);
+            }
+            if (distance < candidates.bound(Float.MAX_VALUE)) {
+                candidates.offer(row, distance);
+            }
+        }
+
+        int[] ids = new int[candidates.size()];
+        candidates.drain(ids, new float[ids.length]);
+
+        for (int id : ids) {
+            offer(heap, id, (float) vectorStore.distance(vector, vectorNorm, id), maxDistance);
+        }
+    }
+
+    /**
+     * Replace row's values with binary code.
+     *
+     * @param mean        mean of the dimensions
+     * @param row         id of the row
+     * @param destination codes to write row's code to
+     */
+    private void encode(float[] mean, int row, long[] destination) {
+        binarize(mean, toQuantizerSpace(row), destination, row * words);
+    }
+
+    /**
+     * Set bit of every dimension, which value is greater than its mean.
+     *
+     * @param mean        mean of the dimensions
+     * @param vector      vector in quantizer space
+     * @param destination array to write code to
+     * @param offset      index of the first written long
+     */
+    private void binarize(float[] mean, float[] vector, long[] destination, int offset) {
+        Arrays.fill(destination, offset, offset + words, 0);
+        for (int i = 0; i < vector.length; i++) {
+            if (vector[i] > mean[i]) {
+                destination[offset + i / Long.SIZE] |= 1L << (i % Long.SIZE);
+            }
+        }
+    }
+
+    @Override
+    public synchronized long getMemoryBytes() {
+        return sizeOf(model) + sizeOf(codes);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity * words <= codes.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, Math.max(16, 2 * codes.length / words));
+        codes = Arrays.copyOf(codes, newCapacity * words);
+    }
+}
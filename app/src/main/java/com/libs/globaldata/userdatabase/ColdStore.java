@@ -0,0 +1,381 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cold tier of the database, storage of users, which do not fit into the in-memory vector store.
+ * Vectors are kept as floats in a memory-mapped working file, so that they are paged in by
+ * the system only while they are scanned and do not take heap. Usernames, weights, norms and
+ * groups of rows stay in memory, like in the vector store.
+ *
+ * File is only a working copy, database file stays the source of all users, so file is
+ * truncated when the store is created. File is mapped at once, which limits it to 2 GB.
+ */
+class ColdStore extends RowTable {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Size of the block of rows copied from the file and scored at once
+    private static final int TILE_BYTES = 32 * 1024;
+
+    // Working file holding vectors
+    private final File file;
+
+    // Length of every stored vector (row length)
+    private final int vectorLength;
+
+    // Primitive kernel of the metric
+    private final DistanceKernel kernel;
+
+    private final FileChannel channel;
+
+    // Mapped rows of the file, row i starts at i * vectorLength, remapped when the store grows
+    private FloatBuffer matrix;
+
+    // Number of rows, which fit into the mapped part of the file
+    private int capacity;
+
+    // Row id to username table
+    private String[] usernames;
+
+    // Row id to number of vectors averaged into the row
+    private int[] weights;
+
+    // Row id to l2 norm of the row
+    private float[] norms;
+
+    // Row id to mask of groups of the row's user
+    private long[] groups;
+
+    // Username to row ids table, in order of users addition
+    private final Map<String, int[]> rows;
+
+    // Number of rows in use
+    private int size;
+
+    // Upper bound of number of rows owned by one user
+    private int maxUserRows;
+
+    ColdStore(File file, int vectorLength, Metric metric) {
+        this.file = file;
+        this.vectorLength = vectorLength;
+        this.kernel = metric.getKernel();
+        try {
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+            channel.truncate(0);
+        } catch (IOException e) {
+            throw new AssertionError("Cannot open cold tier file", e);
+        }
+        this.usernames = new String[0];
+        this.weights = new int[0];
+        this.norms = new float[0];
+        this.groups = new long[0];
+        this.rows = new LinkedHashMap<>();
+        this.size = 0;
+        this.maxUserRows = 1;
+        ensureCapacity(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Append new row to the store. Rows of one user always share the groups, so existing rows of
+     * the user join given groups too.
+     *
+     * @param username owner of the vector
+     * @param vector   of n-dimensions
+     * @param weight   number of vectors averaged into given vector
+     * @param groups   mask of groups to add the user to
+     * @return row id of the added vector
+     */
+    int add(String username, float[] vector, int weight, long groups) {
+        ensureCapacity(size + 1);
+
+        int row = size;
+        FloatBuffer target = matrix.duplicate();
+        target.position(row * vectorLength);
+        target.put(vector, 0, vectorLength);
+
+        usernames[row] = username;
+        weights[row] = weight;
+        norms[row] = (float) VectorOperations.l2Norm(vector);
+
+        int[] userRows = rows.get(username);
+        if (userRows == null) {
+            userRows = new int[]{row};
+        } else {
+            userRows = Arrays.copyOf(userRows, userRows.length + 1);
+            userRows[userRows.length - 1] = row;
+            maxUserRows = Math.max(maxUserRows, userRows.length);
+            groups |= this.groups[userRows[0]];
+        }
+        rows.put(username, userRows);
+        size++;
+        setGroups(username, groups);
+
+        return row;
+    }
+
+    /**
+     * Remove all rows of the user. Last rows are moved into the freed places, so rows stay
+     * contiguous.
+     *
+     * @param username owner of the rows
+     */
+    void removeUser(String username) {
+        int[] userRows;
+        while ((userRows = rows.get(username)) != null) {
+            removeRow(userRows[0]);
+        }
+    }
+
+    /**
+     * Set groups of all rows of the user.
+     *
+     * @param username owner of the rows
+     * @param groups   mask of groups, bit i set when user belongs to group i
+     */
+    void setGroups(String username, long groups) {
+        for (int row : rows.get(username)) {
+            this.groups[row] = groups;
+        }
+    }
+
+    /**
+     * Stream all rows from the file and offer them to vectors' heaps. Rows are copied in tiles,
+     * every tile is scored against all vectors, so the file is read once for the whole batch.
+     *
+     * @param vectors     of n-dimensions, null vectors are skipped
+     * @param vectorNorms l2 norms of the vectors
+     * @param heaps       heap per vector, collecting the closest rows
+     * @param maxDistance distance cut-off, rows further away are skipped
+     */
+    void scan(float[][] vectors, double[] vectorNorms, TopKHeap[] heaps, float maxDistance) {
+        scan(vectors, vectorNorms, heaps, maxDistance, false, 0);
+    }
+
+    /**
+     * Stream all rows from the file and offer rows of users of given groups to the heap.
+     *
+     * @param vector      of n-dimensions
+     * @param vectorNorm  l2 norm of the vector
+     * @param heap        heap collecting the closest rows
+     * @param maxDistance distance cut-off, rows further away are skipped
+     * @param groups      mask of groups, rows of users of other groups are skipped
+     */
+    void scan(float[] vector, double vectorNorm, TopKHeap heap, float maxDistance, long groups) {
+        scan(new float[][]{vector}, new double[]{vectorNorm}, new TopKHeap[]{heap}, maxDistance,
+                true, groups);
+    }
+
+    private void scan(float[][] vectors, double[] vectorNorms, TopKHeap[] heaps, float maxDistance,
+                      boolean filter, long groupsMask) {
+        int tileRows = Math.max(1, TILE_BYTES / (4 * vectorLength));
+        float[] tile = new float[tileRows * vectorLength];
+        FloatBuffer source = matrix.duplicate();
+
+        float[][] queries = new float[vectors.length][];
+        for (int i = 0; i < vectors.length; i++) {
+            if (vectors[i] != null) {
+                queries[i] = kernel.prepareQuery(vectors[i], vectorNorms[i]);
+            }
+        }
+
+        for (int tileStart = 0; tileStart < size; tileStart += tileRows) {
+            int tileEnd = Math.min(size, tileStart + tileRows);
+            source.position(tileStart * vectorLength);
+            source.get(tile, 0, (tileEnd - tileStart) * vectorLength);
+
+            for (int i = 0; i < vectors.length; i++) {
+                TopKHeap heap = heaps[i];
+                float[] query = queries[i];
+                if (query == null) {
+                    continue;
+                }
+                double bound = kernel.toScore(heap.bound(maxDistance));
+                for (int row = tileStart; row < tileEnd; row++) {
+                    if (filter && (groups[row] & groupsMask) == 0) {
+                        continue;
+                    }
+                    double score = kernel.boundedScore(query, tile, (row - tileStart) * vectorLength,
+                            norms[row], vectorLength, bound);
+
+                    if (score <= bound) {
+                        heap.offer(row, (float) kernel.toDistance(score));
+                        bound = kernel.toScore(heap.bound(maxDistance));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all rows, working file keeps its size.
+     */
+    void clear() {
+        Arrays.fill(usernames, 0, size, null);
+        rows.clear();
+        size = 0;
+        maxUserRows = 1;
+    }
+
+    /**
+     * Remove all rows and delete the working file. Store cannot be used afterwards.
+     */
+    void close() {
+        clear();
+        matrix = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Override
+    double distance(float[] vector, double vectorNorm, int row) {
+        float[] rowVector = getVector(row);
+        return kernel.toDistance(kernel.score(vector, 0, vectorNorm, rowVector, 0, norms[row],
+                vectorLength));
+    }
+
+    @Override
+    float[] getVector(int row) {
+        float[] vector = new float[vectorLength];
+        FloatBuffer source = matrix.duplicate();
+        source.position(row * vectorLength);
+        source.get(vector);
+        return vector;
+    }
+
+    @Override
+    int[] getRows(String username) {
+        int[] userRows = rows.get(username);
+        return userRows == null ? null : userRows.clone();
+    }
+
+    @Override
+    String getUsername(int row) {
+        return usernames[row];
+    }
+
+    @Override
+    int getWeight(int row) {
+        return weights[row];
+    }
+
+    @Override
+    long getGroups(int row) {
+        return groups[row];
+    }
+
+    @Override
+    int getMaxUserRows() {
+        return maxUserRows;
+    }
+
+    @Override
+    int usersCount() {
+        return rows.size();
+    }
+
+    @Override
+    String[] getUsernames() {
+        return rows.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    /**
+     * Remove row, last row is moved into the freed place.
+     *
+     * @param row id of the row to remove
+     */
+    private void removeRow(int row) {
+        replaceRow(usernames[row], row, -1);
+
+        int last = size - 1;
+        if (row != last) {
+            float[] lastVector = getVector(last);
+            FloatBuffer target = matrix.duplicate();
+            target.position(row * vectorLength);
+            target.put(lastVector);
+
+            usernames[row] = usernames[last];
+            weights[row] = weights[last];
+            norms[row] = norms[last];
+            groups[row] = groups[last];
+            replaceRow(usernames[row], last, row);
+        }
+        usernames[last] = null;
+        size--;
+    }
+
+    /**
+     * Replace row id in the user's rows table.
+     *
+     * @param username owner of the row
+     * @param oldRow   row id to replace
+     * @param newRow   new row id, -1 to remove old row id from the table
+     */
+    private void replaceRow(String username, int oldRow, int newRow) {
+        int[] userRows = rows.get(username);
+        int index = 0;
+        while (userRows[index] != oldRow) {
+            index++;
+        }
+
+        if (newRow != -1) {
+            userRows[index] = newRow;
+        } else if (userRows.length == 1) {
+            rows.remove(username);
+        } else {
+            userRows[index] = userRows[userRows.length - 1];
+            rows.put(username, Arrays.copyOf(userRows, userRows.length - 1));
+        }
+    }
+
+    /**
+     * Grow the file and the tables, so that at least given number of rows fits. File is mapped
+     * again with the new size, previous mapping is released by garbage collector.
+     *
+     * @param required required number of rows
+     */
+    private void ensureCapacity(int required) {
+        if (required <= capacity) {
+            return;
+        }
+
+        // Single mapping is limited to 2 GB
+        int maxCapacity = Integer.MAX_VALUE / (4 * vectorLength);
+        if (required > maxCapacity) {
+            throw new AssertionError("Cold tier is full");
+        }
+        int newCapacity = (int) Math.min(Math.max(required, 2L * capacity), maxCapacity);
+        try {
+            matrix = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    (long) newCapacity * vectorLength * 4).order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+        } catch (IOException e) {
+            throw new AssertionError("Cannot map cold tier file", e);
+        }
+        capacity = newCapacity;
+        usernames = Arrays.copyOf(usernames, newCapacity);
+        weights = Arrays.copyOf(weights, newCapacity);
+        norms = Arrays.copyOf(norms, newCapacity);
+        groups = Arrays.copyOf(groups, newCapacity);
+    }
+}
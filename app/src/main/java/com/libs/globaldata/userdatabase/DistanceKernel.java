@@ -0,0 +1,92 @@
+package com.libs.globaldata.userdatabase;
+
+/**
+ * Primitive distance kernel of a metric. Vectors are ranked by a score, which grows together
+ * with metric's distance, but skips work which does not change the ranking, like square root
+ * of euclidean distance. Score is converted to distance only for found records.
+ *
+ * Kernels work on rows of row-major matrices and cached l2 norms, none of the methods allocates
+ * except prepareQuery, which is called once per search.
+ */
+public interface DistanceKernel {
+
+    /**
+     * Calculate score of vector and row of row-major matrix.
+     *
+     * @param vector       array containing the vector
+     * @param vectorOffset index of the first element of the vector in the array
+     * @param vectorNorm   l2 norm of the vector
+     * @param matrix       row-major matrix
+     * @param offset       index of the first element of the row in the matrix
+     * @param rowNorm      l2 norm of the row
+     * @param length       length of the vectors
+     * @return score, the lower the closer vectors are
+     */
+    double score(float[] vector, int vectorOffset, double vectorNorm,
+                 float[] matrix, int offset, double rowNorm, int length);
+
+    /**
+     * Calculate score of vector and row of row-major matrix of half-precision numbers.
+     *
+     * @see #score(float[], int, double, float[], int, double, int)
+     */
+    double score(float[] vector, int vectorOffset, double vectorNorm,
+                 short[] matrix, int offset, double rowNorm, int length);
+
+    /**
+     * Calculate score of prepared query and row of row-major matrix, abandoning calculation as
+     * soon as score exceeds the bound.
+     *
+     * @param query   vector returned by prepareQuery
+     * @param matrix  row-major matrix
+     * @param offset  index of the first element of the row in the matrix
+     * @param rowNorm l2 norm of the row
+     * @param length  length of the vectors
+     * @param bound   score, after exceeding which calculation is abandoned
+     * @return score, value greater than bound if calculation was abandoned
+     */
+    double boundedScore(float[] query, float[] matrix, int offset, double rowNorm, int length,
+                        double bound);
+
+    /**
+     * Calculate bounded score of prepared query and row of half-precision numbers.
+     *
+     * @see #boundedScore(float[], float[], int, double, int, double)
+     */
+    double boundedScore(float[] query, short[] matrix, int offset, double rowNorm, int length,
+                        double bound);
+
+    /**
+     * Prepare vector for bounded scoring of many rows.
+     *
+     * @param vector     of n-dimensions
+     * @param vectorNorm l2 norm of the vector
+     * @return query for boundedScore, given vector if no preparation is needed
+     */
+    float[] prepareQuery(float[] vector, double vectorNorm);
+
+    /**
+     * Convert score to metric's distance.
+     *
+     * @param score calculated by the kernel
+     * @return distance
+     */
+    double toDistance(double score);
+
+    /**
+     * Convert metric's distance to score.
+     *
+     * @param distance in metric
+     * @return score
+     */
+    double toScore(double distance);
+
+    /**
+     * Calculate metric's distance between two vectors.
+     *
+     * @param vector1 first vector
+     * @param vector2 second vector of the same length
+     * @return distance between the vectors
+     */
+    double distance(float[] vector1, float[] vector2);
+}
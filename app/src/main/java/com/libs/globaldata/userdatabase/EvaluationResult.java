@@ -0,0 +1,48 @@
+package com.libs.globaldata.userdatabase;
+
+import java.util.Locale;
+
+/**
+ * Quality and cost of one search mode measured by SearchEvaluation. Recall and agreement are
+ * fractions from 0 to 1, exact scan has all of them equal to 1.
+ */
+public class EvaluationResult {
+    // Search mode with its parameters
+    public final String description;
+
+    // Fraction of queries with the same closest user as the exact scan
+    public final double recallAt1;
+
+    // Fraction of k closest users of the exact scan, which were found
+    public final double recallAtK;
+
+    // Fraction of queries with the same result of the threshold decision as the exact scan,
+    // i.e. the same recognized user or rejection as unknown
+    public final double decisionAgreement;
+
+    // Median and 99th percentile of latency of the closest user search, in nanoseconds
+    public final long p50Nanos;
+    public final long p99Nanos;
+
+    // Estimated memory of the index structure, 0 for the exact scan
+    public final long memoryBytes;
+
+    EvaluationResult(String description, double recallAt1, double recallAtK,
+                     double decisionAgreement, long p50Nanos, long p99Nanos, long memoryBytes) {
+        this.description = description;
+        this.recallAt1 = recallAt1;
+        this.recallAtK = recallAtK;
+        this.decisionAgreement = decisionAgreement;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.memoryBytes = memoryBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "%s: recall@1 = %.3f, recall@k = %.3f, agreement = %.3f, p50 = %d us, p99 = %d us, memory = %d kB",
+                description, recallAt1, recallAtK, decisionAgreement, p50Nanos / 1000,
+                p99Nanos / 1000, memoryBytes / 1024);
+    }
+}
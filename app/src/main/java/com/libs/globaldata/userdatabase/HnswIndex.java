@@ -0,0 +1,515 @@
+package com.libs.globaldata.userdatabase;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntPredicate;
+
+/**
+ * Hierarchical Navigable Small World graph index. Approximate nearest neighbour search, which
+ * visits only a small, logarithmically growing part of the rows.
+ *
+ * Every row is a node of the graph, assigned to a random number of levels. Search starts at the
+ * entry point on the top level, greedily descends to level 0 and explores there a beam of
+ * efSearch closest nodes. Node ids are equal to row ids of the vector store.
+ *
+ * Tunable parameters:
+ * m              - number of links created per node and level, level 0 keeps up to 2 * m links
+ * efConstruction - beam width used while inserting nodes, higher values give better graph
+ * efSearch       - beam width used while searching, higher values give better recall
+ */
+public class HnswIndex extends SearchIndex {
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 100;
+    public static final int DEFAULT_EF_SEARCH = 50;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int m;
+    private final int efConstruction;
+    private int efSearch;
+
+    // Level generation factor 1 / ln(m)
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+
+    // links[node][level] holds number of links at index 0, followed by ids of linked nodes
+    private int[][][] links = new int[INITIAL_CAPACITY][][];
+
+    // Number of indexed nodes
+    private int size = 0;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    // Visited nodes are marked with current search's mark, so array is cleared only on overflow
+    private int[] visited = new int[INITIAL_CAPACITY];
+    private int visitMark = 0;
+
+    // Scratch structures of the search
+    private final CandidateQueue candidates = new CandidateQueue();
+    private int[] foundIds = new int[0];
+    private float[] foundDistances = new float[0];
+
+    public HnswIndex() {
+        this(DEFAULT_M, DEFAULT_EF_CONSTRUCTION, DEFAULT_EF_SEARCH);
+    }
+
+    public HnswIndex(int m, int efConstruction, int efSearch) {
+        if (m < 2 || efConstruction < 1 || efSearch < 1) {
+            throw new AssertionError("Invalid HNSW parameters");
+        }
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1 / Math.log(m);
+    }
+
+    /**
+     * Set beam width used while searching. Can be changed at any time without rebuilding.
+     *
+     * @param efSearch beam width, higher values give better recall and slower search
+     */
+    public synchronized void setEfSearch(int efSearch) {
+        if (efSearch < 1) {
+            throw new AssertionError("Invalid efSearch");
+        }
+        this.efSearch = efSearch;
+    }
+
+    public synchronized int getEfSearch() {
+        return efSearch;
+    }
+
+    @Override
+    SearchIndex copyFor(VectorStore vectorStore) {
+        HnswIndex copy = new HnswIndex(m, efConstruction, getEfSearch());
+        copy.attach(vectorStore);
+        return copy;
+    }
+
+    /**
+     * Write links of every node. Links to removed rows are dropped, entry point moves to the
+     * highest live node when it was removed.
+     */
+    @Override
+    synchronized boolean write(DataOutputStream out, int[] fileRows) throws IOException {
+        int[] positions = toFilePositions(fileRows);
+        int entry = entryPoint != -1 && positions[entryPoint] != -1 ? entryPoint : -1;
+        for (int row : fileRows) {
+            if (entry == -1 || links[row].length > links[entry].length) {
+                entry = row;
+            }
+        }
+
+        out.writeInt(m);
+        out.writeInt(entry != -1 ? positions[entry] : -1);
+        int[] kept = new int[maxLinks(0)];
+        for (int row : fileRows) {
+            out.writeInt(links[row].length);
+            for (int[] levelLinks : links[row]) {
+                int count = 0;
+                for (int i = 1; i <= levelLinks[0]; i++) {
+                    if (positions[levelLinks[i]] != -1) {
+                        kept[count++] = positions[levelLinks[i]];
+                    }
+                }
+                out.writeInt(count);
+                IndexFile.writeInts(out, kept, 0, count);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    synchronized boolean read(ByteBuffer in) {
+        if (in.getInt() != m) {
+            return false;
+        }
+        int entry = in.getInt();
+        int count = vectorStore.size();
+        if (entry < -1 || entry >= count || (entry == -1) != (count == 0)) {
+            return false;
+        }
+
+        // Links pointing outside the rows would fail later in search, outside the file reading
+        onClear();
+        ensureCapacity(count);
+        for (int node = 0; node < count; node++) {
+            int levels = in.getInt();
+            if (levels < 1 || levels > in.remaining() / Integer.BYTES) {
+                onClear();
+                return false;
+            }
+            links[node] = new int[levels][];
+            for (int l = 0; l < levels; l++) {
+                int[] levelLinks = new int[maxLinks(l) + 1];
+                levelLinks[0] = in.getInt();
+                if (levelLinks[0] < 0 || levelLinks[0] > maxLinks(l)) {
+                    onClear();
+                    return false;
+                }
+                IndexFile.readInts(in, levelLinks, 1, levelLinks[0]);
+                for (int i = 1; i <= levelLinks[0]; i++) {
+                    if (levelLinks[i] < 0 || levelLinks[i] >= count) {
+                        onClear();
+                        return false;
+                    }
+                }
+                links[node][l] = levelLinks;
+            }
+        }
+
+        size = count;
+        entryPoint = entry;
+        maxLevel = entry != -1 ? links[entry].length - 1 : -1;
+        return true;
+    }
+
+    @Override
+    synchronized void rebuild() {
+        onClear();
+        ensureCapacity(vectorStore.size());
+        for (int row = 0; row < vectorStore.size(); row++) {
+            insert(row, randomLevel());
+            size++;
+        }
+    }
+
+    @Override
+    synchronized void onAdd(int row) {
+        ensureCapacity(row + 1);
+        insert(row, randomLevel());
+        size++;
+    }
+
+    @Override
+    synchronized void onClear() {
+        Arrays.fill(links, null);
+        size = 0;
+        entryPoint = -1;
+        maxLevel = -1;
+    }
+
+    @Override
+    synchronized void search(float[] vector, double vectorNorm, TopKHeap heap, float maxDistance) {
+        if (entryPoint == -1) {
+            return;
+        }
+
+        // Descend greedily through upper levels
+        int node = entryPoint;
+        for (int level = maxLevel; level > 0; level--) {
+            node = greedySearch(vector, 0, vectorNorm, node, level);
+        }
+        float distance = (float) vectorStore.distance(vector, 0, vectorNorm, node);
+
+        // Explore beam on the bottom level, removed rows route the search but take no place in it
+        int found = searchLevel(vector, 0, vectorNorm, node, distance,
+                Math.max(efSearch, heap.capacity()), 0,
+                vectorStore.removedCount() == 0 ? null : vectorStore::isRemoved);
+        for (int i = 0; i < found && foundDistances[i] <= heap.bound(maxDistance); i++) {
+            heap.offer(foundIds[i], foundDistances[i]);
+        }
+    }
+
+    /**
+     * Connect node to the graph on all levels from given one down to 0.
+     *
+     * @param node  id of the row to insert
+     * @param level top level of the node
+     */
+    private void insert(int node, int level) {
+        links[node] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            links[node][l] = new int[maxLinks(l) + 1];
+        }
+
+        if (entryPoint == -1) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        // Copy of the node's vector, so that the same code handles all store precisions
+        float[] vector = vectorStore.getVector(node);
+        int offset = 0;
+        double norm = vectorStore.getNorms()[node];
+
+        int current = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            current = greedySearch(vector, offset, norm, current, l);
+        }
+
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            float distance = (float) vectorStore.distance(vector, offset, norm, current);
+            int found = searchLevel(vector, offset, norm, current, distance, efConstruction, l,
+                    null);
+            current = foundIds[0];
+
+            // Link the node with selected neighbours and back
+            int[] nodeLinks = links[node][l];
+            nodeLinks[0] = selectNeighbours(foundIds, foundDistances, found, m, nodeLinks);
+            for (int i = 1; i <= nodeLinks[0]; i++) {
+                addLink(nodeLinks[i], node, l);
+            }
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * Add link from node to the new neighbour. If node has no free link slots, its links are
+     * selected again from the current ones and the new one.
+     */
+    private void addLink(int node, int neighbour, int level) {
+        int[] nodeLinks = links[node][level];
+        int count = nodeLinks[0];
+
+        if (count < maxLinks(level)) {
+            nodeLinks[count + 1] = neighbour;
+            nodeLinks[0] = count + 1;
+            return;
+        }
+
+        int[] ids = Arrays.copyOfRange(nodeLinks, 1, count + 2);
+        ids[count] = neighbour;
+        float[] distances = new float[count + 1];
+        nodeLinks[0] = selectNeighbours(ids, distances,
+                sortByDistance(node, ids, distances, count + 1), maxLinks(level), nodeLinks);
+    }
+
+    /**
+     * Follow links on given level, moving to closer nodes while possible.
+     *
+     * @return id of the closest found node
+     */
+    private int greedySearch(float[] source, int offset, double norm, int node, int level) {
+        float distance = (float) vectorStore.distance(source, offset, norm, node);
+        boolean changed = true;
+
+        while (changed) {
+            changed = false;
+            int[] nodeLinks = links[node][level];
+            for (int i = 1; i <= nodeLinks[0]; i++) {
+                int neighbour = nodeLinks[i];
+                float neighbourDistance = (float) vectorStore.distance(source, offset, norm, neighbour);
+                if (neighbourDistance < distance) {
+                    distance = neighbourDistance;
+                    node = neighbour;
+                    changed = true;
+                }
+            }
+        }
+
+        return node;
+    }
+
+    /**
+     * Beam search on given level. Found nodes are written to foundIds and foundDistances,
+     * sorted by ascending distance.
+     *
+     * @param excluded nodes which are expanded but not found, null if none
+     * @return number of found nodes
+     */
+    private int searchLevel(float[] source, int offset, double norm, int entry, float entryDistance,
+                            int ef, int level, IntPredicate excluded) {
+        TopKHeap results = new TopKHeap(ef, excluded);
+        int mark = nextVisitMark();
+
+        visited[entry] = mark;
+        candidates.clear();
+        candidates.push(entry, entryDistance);
+        results.offer(entry, entryDistance);
+
+        while (!candidates.isEmpty()) {
+            if (results.isFull() && candidates.peekDistance() > results.bound(Float.MAX_VALUE)) {
+                break;
+            }
+            int node = candidates.pop();
+
+            int[] nodeLinks = links[node][level];
+            for (int i = 1; i <= nodeLinks[0]; i++) {
+                int neighbour = nodeLinks[i];
+                if (visited[neighbour] == mark) {
+                    continue;
+                }
+                visited[neighbour] = mark;
+
+                float distance = (float) vectorStore.distance(source, offset, norm, neighbour);
+                if (results.offer(neighbour, distance) || (excluded != null
+                        && excluded.test(neighbour) && distance < results.bound(Float.MAX_VALUE))) {
+                    candidates.push(neighbour, distance);
+                }
+            }
+        }
+
+        if (foundIds.length < ef) {
+            foundIds = new int[ef];
+            foundDistances = new float[ef];
+        }
+        return results.drain(foundIds, foundDistances);
+    }
+
+    /**
+     * Select neighbours with the heuristic preferring candidates in diverse directions: candidate
+     * is skipped if it is closer to an already selected neighbour than to the base node. Free
+     * slots are then filled with the skipped candidates.
+     *
+     * @param ids       candidates sorted by ascending distance to the base node
+     * @param distances distances of candidates to the base node
+     * @param count     number of candidates
+     * @param max       maximal number of selected neighbours
+     * @param out       links array to write selected neighbours to, starting at index 1
+     * @return number of selected neighbours
+     */
+    private int selectNeighbours(int[] ids, float[] distances, int count, int max, int[] out) {
+        boolean[] selected = new boolean[count];
+        int[] result = new int[max];
+        int n = 0;
+
+        for (int i = 0; i < count && n < max; i++) {
+            boolean diverse = true;
+            for (int j = 0; j < n; j++) {
+                if (vectorStore.distance(ids[i], result[j]) < distances[i]) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected[i] = true;
+                result[n++] = ids[i];
+            }
+        }
+        for (int i = 0; i < count && n < max; i++) {
+            if (!selected[i]) {
+                result[n++] = ids[i];
+            }
+        }
+
+        System.arraycopy(result, 0, out, 1, n);
+        return n;
+    }
+
+    /**
+     * Calculate distances of candidates to the node and sort both arrays by them.
+     *
+     * @return number of candidates
+     */
+    private int sortByDistance(int node, int[] ids, float[] distances, int count) {
+        TopKHeap heap = new TopKHeap(Math.max(count, 1));
+        for (int i = 0; i < count; i++) {
+            heap.offer(ids[i], (float) vectorStore.distance(node, ids[i]));
+        }
+        return heap.drain(ids, distances);
+    }
+
+    private int randomLevel() {
+        return (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+    }
+
+    private int maxLinks(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    private int nextVisitMark() {
+        if (visitMark == Integer.MAX_VALUE) {
+            Arrays.fill(visited, 0);
+            visitMark = 0;
+        }
+        return ++visitMark;
+    }
+
+    @Override
+    public synchronized long getMemoryBytes() {
+        long bytes = sizeOf(visited) + sizeOf(foundIds) + sizeOf(foundDistances)
+                + sizeOfReferences(links.length);
+        for (int[][] nodeLinks : links) {
+            bytes += sizeOf(nodeLinks);
+        }
+        return bytes;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= links.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, links.length * 2);
+        links = Arrays.copyOf(links, newCapacity);
+        visited = Arrays.copyOf(visited, newCapacity);
+    }
+
+    /**
+     * Growable min-heap of (node, distance) pairs, used as the queue of nodes to expand.
+     */
+    private static class CandidateQueue {
+        private int[] ids = new int[64];
+        private float[] distances = new float[64];
+        private int size = 0;
+
+        void clear() {
+            size = 0;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        float peekDistance() {
+            return distances[0];
+        }
+
+        void push(int id, float distance) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                distances = Arrays.copyOf(distances, size * 2);
+            }
+
+            int child = size++;
+            while (child > 0) {
+                int parent = (child - 1) >>> 1;
+                if (distances[parent] <= distance) {
+                    break;
+                }
+                ids[child] = ids[parent];
+                distances[child] = distances[parent];
+                child = parent;
+            }
+            ids[child] = id;
+            distances[child] = distance;
+        }
+
+        int pop() {
+            int result = ids[0];
+            size--;
+
+            int id = ids[size];
+            float distance = distances[size];
+            int parent = 0;
+            while (true) {
+                int child = 2 * parent + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && distances[child + 1] < distances[child]) {
+                    child++;
+                }
+                if (distances[child] >= distance) {
+                    break;
+                }
+                ids[parent] = ids[child];
+                distances[parent] = distances[child];
+                parent = child;
+            }
+            ids[parent] = id;
+            distances[parent] = distance;
+
+            return result;
+        }
+    }
+}
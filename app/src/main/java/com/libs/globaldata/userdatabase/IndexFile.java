@@ -0,0 +1,218 @@
+package com.libs.globaldata.userdatabase;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary file of the search index, saved next to the database file, so that the index is read
+ * instead of rebuilt when the database is loaded. Rows of the index are identified by their
+ * position in the database file, which is the row id of the store after loading.
+ *
+ * Layout, big-endian:
+ * magic, version - ints
+ * index class, metric, precision - strings, int length followed by UTF-8 bytes
+ * vector length, number of rows - ints
+ * checksum of the rows' vectors - long, CRC32 of stored values in file order
+ * index structure - written by the index
+ * checksum of the file - long, CRC32 of all previous bytes
+ *
+ * File is memory-mapped when read. It is used only if both checksums match and the header
+ * matches the loaded store and the index, otherwise the index is rebuilt.
+ */
+final class IndexFile {
+    private static final int MAGIC = 0x46524958;
+    private static final int VERSION = 1;
+
+    // Size of the trailing checksum of the file
+    private static final int TRAILER_BYTES = 8;
+
+    // Size of the buffer used to write arrays
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private IndexFile() {
+    }
+
+    /**
+     * Write the index to the file. File is written to a temporary file first, which replaces
+     * the file once complete.
+     *
+     * @param file        path of the index file
+     * @param index       index to write
+     * @param vectorStore store indexed by the index
+     * @param fileRows    row ids of the store in order of the database file, removed rows are
+     *                    left out
+     * @return True if index was written, False if index does not support writing in its state
+     * @throws IOException if file cannot be written
+     */
+    static boolean write(File file, SearchIndex index, VectorStore vectorStore, int[] fileRows)
+            throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        boolean written;
+
+        try (BufferedOutputStream buffered = new BufferedOutputStream(new FileOutputStream(temporary))) {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, index.getClass().getName());
+            writeString(out, vectorStore.getMetric().name());
+            writeString(out, vectorStore.getPrecision().name());
+            out.writeInt(vectorStore.getVectorLength());
+            out.writeInt(fileRows.length);
+            out.writeLong(vectorStore.checksum(fileRows));
+            written = index.write(out, fileRows);
+
+            // Checksum of the file is not a part of itself
+            out.flush();
+            new DataOutputStream(buffered).writeLong(crc.getValue());
+        }
+
+        if (!written) {
+            if (!temporary.delete()) {
+                temporary.deleteOnExit();
+            }
+            return false;
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Cannot replace index file");
+        }
+        return true;
+    }
+
+    /**
+     * Map the file and read the index from it, if it was written for rows of the store.
+     *
+     * @param file        path of the index file
+     * @param index       index attached to the store, which reads its structure
+     * @param vectorStore loaded store, which rows are in order of the database file
+     * @return True if index was read, False if index has to be rebuilt
+     */
+    static boolean read(File file, SearchIndex index, VectorStore vectorStore) {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            long length = channel.size();
+            if (length < TRAILER_BYTES || length > Integer.MAX_VALUE) {
+                return false;
+            }
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int contentLength = (int) length - TRAILER_BYTES;
+
+            CRC32 crc = new CRC32();
+            ByteBuffer content = in.duplicate();
+            content.limit(contentLength);
+            crc.update(content);
+            if (crc.getValue() != in.getLong(contentLength)) {
+                return false;
+            }
+            in.limit(contentLength);
+
+            int[] rows = new int[vectorStore.size()];
+            for (int row = 0; row < rows.length; row++) {
+                rows[row] = row;
+            }
+            if (in.getInt() != MAGIC || in.getInt() != VERSION
+                    || !readString(in).equals(index.getClass().getName())
+                    || !readString(in).equals(vectorStore.getMetric().name())
+                    || !readString(in).equals(vectorStore.getPrecision().name())
+                    || in.getInt() != vectorStore.getVectorLength()
+                    || in.getInt() != rows.length
+                    || in.getLong() != vectorStore.checksum(rows)) {
+                return false;
+            }
+
+            return index.read(in);
+        } catch (IOException | RuntimeException e) {
+            // Damaged file is rebuilt like an outdated one
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    static void writeInts(DataOutputStream out, int[] values, int offset, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+        for (int done = 0; done < length; ) {
+            int count = Math.min(length - done, CHUNK_BYTES / 4);
+            buffer.clear();
+            buffer.asIntBuffer().put(values, offset + done, count);
+            out.write(buffer.array(), 0, count * 4);
+            done += count;
+        }
+    }
+
+    static void writeLongs(DataOutputStream out, long[] values, int offset, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+        for (int done = 0; done < length; ) {
+            int count = Math.min(length - done, CHUNK_BYTES / 8);
+            buffer.clear();
+            buffer.asLongBuffer().put(values, offset + done, count);
+            out.write(buffer.array(), 0, count * 8);
+            done += count;
+        }
+    }
+
+    static void writeFloats(DataOutputStream out, float[] values, int offset, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BYTES);
+        for (int done = 0; done < length; ) {
+            int count = Math.min(length - done, CHUNK_BYTES / 4);
+            buffer.clear();
+            buffer.asFloatBuffer().put(values, offset + done, count);
+            out.write(buffer.array(), 0, count * 4);
+            done += count;
+        }
+    }
+
+    /**
+     * Write array of floats preceded by its length.
+     */
+    static void writeFloatArray(DataOutputStream out, float[] values) throws IOException {
+        out.writeInt(values.length);
+        writeFloats(out, values, 0, values.length);
+    }
+
+    static void readInts(ByteBuffer in, int[] destination, int offset, int length) {
+        in.asIntBuffer().get(destination, offset, length);
+        in.position(in.position() + length * 4);
+    }
+
+    static void readLongs(ByteBuffer in, long[] destination, int offset, int length) {
+        in.asLongBuffer().get(destination, offset, length);
+        in.position(in.position() + length * 8);
+    }
+
+    static void readFloats(ByteBuffer in, float[] destination, int offset, int length) {
+        in.asFloatBuffer().get(destination, offset, length);
+        in.position(in.position() + length * 4);
+    }
+
+    /**
+     * Read array of floats written by writeFloatArray.
+     */
+    static float[] readFloatArray(ByteBuffer in) {
+        float[] values = new float[in.getInt()];
+        readFloats(in, values, 0, values.length);
+        return values;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,34 @@
+package com.libs.globaldata.userdatabase;
+
+public enum IndexType {
+    EXACT, HNSW, IVF, PQ, SQ8, LSH, VPTREE, BINARY, PCA;
+
+    /**
+     * Create index of given type with default parameters.
+     *
+     * @param indexType type of the index
+     * @return new index, null for exact search which does not need one
+     */
+    public static SearchIndex createIndex(IndexType indexType) {
+        switch (indexType) {
+            case HNSW:
+                return new HnswIndex();
+            case IVF:
+                return new IvfIndex();
+            case PQ:
+                return new PqIndex();
+            case SQ8:
+                return new Sq8Index();
+            case LSH:
+                return new LshIndex();
+            case VPTREE:
+                return new VpTreeIndex();
+            case BINARY:
+                return new BinaryIndex();
+            case PCA:
+                return new PcaIndex();
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+/**
+ * Kernel of normalized metrics. Score is cosine distance 1 - a·b / (‖a‖‖b‖), calculated with one
+ * inner product and cached norms, so that stored vectors are never normalized. Euclidean
+ * distance of unit vectors follows from the score: ‖a - b‖ = √(2 - 2cos(a, b)).
+ *
+ * Bounded scoring compares unit query with row scaled by its inverse norm. Partial sum of
+ * squared differences grows monotonically, unlike inner product, so it can be abandoned early.
+ */
+class InnerProductKernel implements DistanceKernel {
+    // Report euclidean distance of unit vectors instead of cosine distance
+    private final boolean euclidean;
+
+    InnerProductKernel(boolean euclidean) {
+        this.euclidean = euclidean;
+    }
+
+    @Override
+    public double score(float[] vector, int vectorOffset, double vectorNorm,
+                        float[] matrix, int offset, double rowNorm, int length) {
+        return 1 - VectorOperations.dotProduct(vector, vectorOffset, matrix, offset, length)
+                / (vectorNorm * rowNorm);
+    }
+
+    @Override
+    public double score(float[] vector, int vectorOffset, double vectorNorm,
+                        short[] matrix, int offset, double rowNorm, int length) {
+        return 1 - VectorOperations.dotProduct(vector, vectorOffset, matrix, offset, length)
+                / (vectorNorm * rowNorm);
+    }
+
+    @Override
+    public double boundedScore(float[] query, float[] matrix, int offset, double rowNorm,
+                               int length, double bound) {
+        // Unit vectors: 1 - cos(a, b) = ‖a - b‖² / 2
+        return VectorOperations.squaredEuclideanDistance(query, matrix, offset, inverse(rowNorm),
+                length, 2 * bound) / 2;
+    }
+
+    @Override
+    public double boundedScore(float[] query, short[] matrix, int offset, double rowNorm,
+                               int length, double bound) {
+        return VectorOperations.squaredEuclideanDistance(query, matrix, offset, inverse(rowNorm),
+                length, 2 * bound) / 2;
+    }
+
+    @Override
+    public float[] prepareQuery(float[] vector, double vectorNorm) {
+        float scale = inverse(vectorNorm);
+        float[] query = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            query[i] = vector[i] * scale;
+        }
+        return query;
+    }
+
+    @Override
+    public double toDistance(double score) {
+        return euclidean ? Math.sqrt(Math.max(0, 2 * score)) : score;
+    }
+
+    @Override
+    public double toScore(double distance) {
+        return euclidean ? distance * distance / 2 : distance;
+    }
+
+    @Override
+    public double distance(float[] vector1, float[] vector2) {
+        return toDistance(score(vector1, 0, VectorOperations.l2Norm(vector1),
+                vector2, 0, VectorOperations.l2Norm(vector2), vector1.length));
+    }
+
+    private static float inverse(double norm) {
+        return norm > 0 ? (float) (1 / norm) : 0;
+    }
+}
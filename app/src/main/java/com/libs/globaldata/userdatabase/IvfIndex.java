@@ -0,0 +1,256 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Inverted file index. Coarse quantizer trained with k-means splits rows into lists, one per
+ * centroid. Search scans only rows of the probes lists, which centroids are closest to the query.
+ * New rows are assigned to their list incrementally.
+ *
+ * Tunable parameters:
+ * lists  - number of centroids of the coarse quantizer
+ * probes - number of lists scanned per query, higher values give better recall
+ */
+public class IvfIndex extends TrainableIndex<float[], int[]> {
+    public static final int DEFAULT_LISTS = 64;
+    public static final int DEFAULT_PROBES = 4;
+
+    // Minimal and maximal number of training rows per list
+    private static final int MIN_TRAINING_ROWS_PER_LIST = 16;
+    private static final int MAX_TRAINING_ROWS_PER_LIST = 256;
+    private static final int TRAINING_ITERATIONS = 20;
+
+    private final int listsCount;
+    private int probes;
+
+    // lists[list] holds ids of rows assigned to the list
+    private final int[][] lists;
+    private final int[] listSizes;
+
+    // Row id to its list
+    private int[] rowLists = new int[0];
+
+    public IvfIndex() {
+        this(DEFAULT_LISTS, DEFAULT_PROBES);
+    }
+
+    public IvfIndex(int lists, int probes) {
+        if (lists < 1 || probes < 1) {
+            throw new AssertionError("Invalid IVF parameters");
+        }
+        this.listsCount = lists;
+        this.probes = probes;
+        this.lists = new int[lists][];
+        this.listSizes = new int[lists];
+    }
+
+    /**
+     * Set number of lists scanned per query. Can be changed at any time without retraining.
+     *
+     * @param probes number of lists, higher values give better recall and slower search
+     */
+    public synchronized void setProbes(int probes) {
+        if (probes < 1) {
+            throw new AssertionError("Invalid number of probes");
+        }
+        this.probes = probes;
+    }
+
+    public synchronized int getProbes() {
+        return probes;
+    }
+
+    @Override
+    float[] fit(float[] sample, int count, int dimension, Random random) {
+        return KMeans.train(sample, count, dimension, listsCount, TRAINING_ITERATIONS, random);
+    }
+
+    @Override
+    int[] encodeRows(float[] newModel, int count) {
+        int[] newRowLists = new int[count];
+        for (int row = 0; row < count; row++) {
+            newRowLists[row] = closestList(newModel, row);
+        }
+        return newRowLists;
+    }
+
+    @Override
+    void useCodes(int[] newRowLists, int count) {
+        Arrays.fill(listSizes, 0);
+        for (int row = 0; row < count; row++) {
+            place(row, newRowLists[row]);
+        }
+        for (int row = count; row < size; row++) {
+            assign(row);
+        }
+    }
+
+    @Override
+    void writeModel(DataOutputStream out) throws IOException {
+        out.writeInt(listsCount);
+        IndexFile.writeFloatArray(out, model);
+    }
+
+    @Override
+    float[] readModel(ByteBuffer in) {
+        if (in.getInt() != listsCount) {
+            return null;
+        }
+        float[] centroids = IndexFile.readFloatArray(in);
+        return centroids.length == listsCount * vectorStore.getVectorLength() ? centroids : null;
+    }
+
+    @Override
+    void writeCodes(DataOutputStream out, int[] fileRows) throws IOException {
+        for (int row : fileRows) {
+            out.writeInt(rowLists[row]);
+        }
+    }
+
+    @Override
+    boolean readCodes(ByteBuffer in) {
+        ensureCapacity(size);
+        for (int row = 0; row < size; row++) {
+            int list = in.getInt();
+            if (list < 0 || list >= listsCount) {
+                return false;
+            }
+            place(row, list);
+        }
+        return true;
+    }
+
+    @Override
+    int minTrainingRows() {
+        return listsCount;
+    }
+
+    @Override
+    int autoTrainingRows() {
+        return listsCount * MIN_TRAINING_ROWS_PER_LIST;
+    }
+
+    @Override
+    int maxTrainingRows() {
+        return listsCount * MAX_TRAINING_ROWS_PER_LIST;
+    }
+
+    @Override
+    SearchIndex copyFor(VectorStore vectorStore) {
+        return attachCopy(new IvfIndex(listsCount, probes), vectorStore);
+    }
+
+    @Override
+    synchronized void rebuild() {
+        onClear();
+        size = vectorStore.size();
+        ensureCapacity(size);
+        trainIfNeeded();
+    }
+
+    @Override
+    synchronized void onAdd(int row) {
+        ensureCapacity(row + 1);
+        size++;
+        if (model != null) {
+            assign(row);
+        }
+        trainIfNeeded();
+    }
+
+    @Override
+    synchronized void onClear() {
+        resetTraining();
+        Arrays.fill(lists, null);
+        Arrays.fill(listSizes, 0);
+    }
+
+    @Override
+    synchronized void search(float[] vector, double vectorNorm, TopKHeap heap, float maxDistance) {
+        if (model == null) {
+            // Quantizer not trained yet, scan all rows
+            for (int row = 0; row < size; row++) {
+                offer(heap, row, (float) vectorStore.distance(vector, vectorNorm, row), maxDistance);
+            }
+            return;
+        }
+
+        // Choose lists with the closest centroids
+        float[] query = toQuantizerSpace(vector, vectorNorm);
+        int dimension = vectorStore.getVectorLength();
+        TopKHeap probedLists = new TopKHeap(Math.min(probes, listsCount));
+        for (int list = 0; list < listsCount; list++) {
+            probedLists.offer(list, (float) VectorOperations.squaredEuclideanDistance(
+                    query, 0, model, list * dimension, dimension));
+        }
+        int[] probed = new int[probedLists.size()];
+        probedLists.drain(probed, new float[probed.length]);
+
+        for (int list : probed) {
+            int[] rows = lists[list];
+            for (int i = 0; i < listSizes[list]; i++) {
+                offer(heap, rows[i], (float) vectorStore.distance(vector, vectorNorm, rows[i]),
+                        maxDistance);
+            }
+        }
+    }
+
+    /**
+     * Append row to the list of the closest centroid.
+     *
+     * @param row id of the row
+     */
+    private void assign(int row) {
+        place(row, closestList(model, row));
+    }
+
+    /**
+     * Find list of the closest centroid.
+     *
+     * @param centroids row-major matrix of centroids
+     * @param row       id of the row
+     * @return id of the list
+     */
+    private int closestList(float[] centroids, int row) {
+        int dimension = vectorStore.getVectorLength();
+        float[] vector = toQuantizerSpace(row);
+        return KMeans.closest(centroids, listsCount, vector, 0, dimension);
+    }
+
+    /**
+     * Append row to given list.
+     *
+     * @param row  id of the row
+     * @param list id of the list
+     */
+    private void place(int row, int list) {
+        if (lists[list] == null) {
+            lists[list] = new int[16];
+        } else if (listSizes[list] == lists[list].length) {
+            lists[list] = Arrays.copyOf(lists[list], listSizes[list] * 2);
+        }
+
+        rowLists[row] = list;
+        lists[list][listSizes[list]++] = row;
+    }
+
+    @Override
+    public synchronized long getMemoryBytes() {
+        return sizeOf(model) + sizeOf(lists) + sizeOf(listSizes) + sizeOf(rowLists);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= rowLists.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, Math.max(16, rowLists.length * 2));
+        rowLists = Arrays.copyOf(rowLists, newCapacity);
+    }
+}
@@ -0,0 +1,138 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Lloyd's k-means clustering of vectors stored in row-major matrix, used to train quantizers
+ * of the indexes. Centroids are initialized with k-means++ seeding.
+ */
+final class KMeans {
+    private KMeans() {
+    }
+
+    /**
+     * Cluster rows of the matrix into k clusters.
+     *
+     * @param data       row-major matrix of vectors to cluster
+     * @param count      number of rows in the matrix
+     * @param dimension  length of the rows
+     * @param k          number of clusters, must not exceed count
+     * @param iterations maximal number of refinement iterations
+     * @param random     source of randomness used for seeding
+     * @return row-major matrix of k centroids
+     */
+    static float[] train(float[] data, int count, int dimension, int k, int iterations, Random random) {
+        if (k <= 0 || k > count) {
+            throw new AssertionError("Invalid number of clusters");
+        }
+
+        float[] centroids = seed(data, count, dimension, k, random);
+        int[] assignment = new int[count];
+        int[] clusterSizes = new int[k];
+        Arrays.fill(assignment, -1);
+
+        for (int iteration = 0; iteration < iterations; iteration++) {
+            // Assign every row to the closest centroid
+            boolean changed = false;
+            for (int i = 0; i < count; i++) {
+                int closest = closest(centroids, k, data, i * dimension, dimension);
+                if (closest != assignment[i]) {
+                    assignment[i] = closest;
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                break;
+            }
+
+            // Move centroids to the mean of assigned rows
+            Arrays.fill(centroids, 0);
+            Arrays.fill(clusterSizes, 0);
+            for (int i = 0; i < count; i++) {
+                int offset = assignment[i] * dimension;
+                for (int j = 0; j < dimension; j++) {
+                    centroids[offset + j] += data[i * dimension + j];
+                }
+                clusterSizes[assignment[i]]++;
+            }
+            for (int c = 0; c < k; c++) {
+                if (clusterSizes[c] == 0) {
+                    // Reseed empty cluster with random row
+                    System.arraycopy(data, random.nextInt(count) * dimension, centroids,
+                            c * dimension, dimension);
+                    continue;
+                }
+                for (int j = 0; j < dimension; j++) {
+                    centroids[c * dimension + j] /= clusterSizes[c];
+                }
+            }
+        }
+
+        return centroids;
+    }
+
+    /**
+     * Find centroid closest to the row by euclidean distance.
+     *
+     * @param centroids row-major matrix of centroids
+     * @param k         number of centroids
+     * @param source    array containing the row
+     * @param offset    index of the first element of the row
+     * @param dimension length of the rows
+     * @return index of the closest centroid
+     */
+    static int closest(float[] centroids, int k, float[] source, int offset, int dimension) {
+        int closest = 0;
+        double minDist = Double.MAX_VALUE;
+
+        for (int c = 0; c < k; c++) {
+            double dist = VectorOperations.squaredEuclideanDistance(source, offset, centroids,
+                    c * dimension, dimension);
+            if (dist < minDist) {
+                minDist = dist;
+                closest = c;
+            }
+        }
+
+        return closest;
+    }
+
+    /**
+     * Choose initial centroids with k-means++: every next centroid is a row drawn with
+     * probability proportional to squared distance to the closest already chosen one.
+     */
+    private static float[] seed(float[] data, int count, int dimension, int k, Random random) {
+        float[] centroids = new float[k * dimension];
+        double[] minDistances = new double[count];
+        Arrays.fill(minDistances, Double.MAX_VALUE);
+
+        int chosen = random.nextInt(count);
+        for (int c = 0; c < k; c++) {
+            System.arraycopy(data, chosen * dimension, centroids, c * dimension, dimension);
+
+            double total = 0;
+            for (int i = 0; i < count; i++) {
+                double dist = VectorOperations.squaredEuclideanDistance(data, i * dimension,
+                        centroids, c * dimension, dimension);
+                minDistances[i] = Math.min(minDistances[i], dist);
+                total += minDistances[i];
+            }
+
+            // Draw next centroid
+            double target = random.nextDouble() * total;
+            chosen = count - 1;
+            for (int i = 0; i < count; i++) {
+                target -= minDistances[i];
+                if (target <= 0) {
+                    chosen = i;
+                    break;
+                }
+            }
+        }
+
+        return centroids;
+    }
+}
@@ -0,0 +1,244 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Locality-sensitive hashing index with signed random projections. Every table hashes the row
+ * into a signature of bits, one per random hyperplane, set when the row lies on its positive
+ * side. Rows with small angle to each other get the same signature with high probability, so
+ * search scores only rows which collide with the query in at least one table.
+ *
+ * Signatures depend only on direction of vectors, so index is meant for COSINE and
+ * EUCLIDEAN_NORM metrics. Rows are inserted incrementally, without training.
+ *
+ * Tunable parameters:
+ * tables - number of hash tables, higher values give better recall and more candidates
+ * bits   - number of hyperplanes per table (1 - 16), higher values give fewer candidates
+ */
+public class LshIndex extends SearchIndex {
+    public static final int DEFAULT_TABLES = 16;
+    public static final int DEFAULT_BITS = 10;
+
+    private static final int MAX_BITS = 16;
+
+    private final int tables;
+    private final int bits;
+    private final Random random = new Random(42);
+
+    // Normals of hyperplanes, hyperplane h of table t starts at (t * bits + h) * vectorLength
+    private float[] hyperplanes = new float[0];
+
+    // buckets[t * 2^bits + signature] holds ids of rows with the signature in table t
+    private final int[][] buckets;
+    private final int[] bucketSizes;
+
+    // Row id to its signature in every table, at row * tables + t
+    private int[] rowSignatures = new int[0];
+
+    // Number of indexed rows
+    private int size = 0;
+
+    // Visited rows are marked with current search's mark, so array is cleared only on overflow
+    private int[] visited = new int[0];
+    private int visitMark = 0;
+
+    public LshIndex() {
+        this(DEFAULT_TABLES, DEFAULT_BITS);
+    }
+
+    public LshIndex(int tables, int bits) {
+        if (tables < 1 || bits < 1 || bits > MAX_BITS) {
+            throw new AssertionError("Invalid LSH parameters");
+        }
+        this.tables = tables;
+        this.bits = bits;
+        this.buckets = new int[tables << bits][];
+        this.bucketSizes = new int[tables << bits];
+    }
+
+    public int getTables() {
+        return tables;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    @Override
+    SearchIndex copyFor(VectorStore vectorStore) {
+        LshIndex copy = new LshIndex(tables, bits);
+        copy.attach(vectorStore);
+        return copy;
+    }
+
+    /**
+     * Write hyperplanes and signatures of the rows, so that rows are not hashed again on load.
+     */
+    @Override
+    synchronized boolean write(DataOutputStream out, int[] fileRows) throws IOException {
+        out.writeInt(tables);
+        out.writeInt(bits);
+        IndexFile.writeFloatArray(out, hyperplanes);
+        for (int row : fileRows) {
+            IndexFile.writeInts(out, rowSignatures, row * tables, tables);
+        }
+        return true;
+    }
+
+    @Override
+    synchronized boolean read(ByteBuffer in) {
+        if (in.getInt() != tables || in.getInt() != bits) {
+            return false;
+        }
+        float[] newHyperplanes = IndexFile.readFloatArray(in);
+        if (newHyperplanes.length != tables * bits * vectorStore.getVectorLength()) {
+            return false;
+        }
+
+        onClear();
+        hyperplanes = newHyperplanes;
+        int[] signatures = new int[tables];
+        ensureCapacity(vectorStore.size());
+        for (int row = 0; row < vectorStore.size(); row++) {
+            IndexFile.readInts(in, signatures, 0, tables);
+            for (int t = 0; t < tables; t++) {
+                place(row, t, signatures[t]);
+            }
+            size++;
+        }
+        return true;
+    }
+
+    @Override
+    synchronized void rebuild() {
+        onClear();
+
+        // Hyperplanes through the origin with gaussian normals are uniformly distributed
+        int dimension = vectorStore.getVectorLength();
+        hyperplanes = new float[tables * bits * dimension];
+        for (int i = 0; i < hyperplanes.length; i++) {
+            hyperplanes[i] = (float) random.nextGaussian();
+        }
+
+        ensureCapacity(vectorStore.size());
+        for (int row = 0; row < vectorStore.size(); row++) {
+            insert(row);
+            size++;
+        }
+    }
+
+    @Override
+    synchronized void onAdd(int row) {
+        ensureCapacity(row + 1);
+        insert(row);
+        size++;
+    }
+
+    @Override
+    synchronized void onClear() {
+        Arrays.fill(buckets, null);
+        Arrays.fill(bucketSizes, 0);
+        size = 0;
+    }
+
+    @Override
+    synchronized void search(float[] vector, double vectorNorm, TopKHeap heap, float maxDistance) {
+        if (++visitMark == 0) {
+            Arrays.fill(visited, 0);
+            visitMark = 1;
+        }
+
+        for (int t = 0; t < tables; t++) {
+            int bucket = (t << bits) + signature(vector, t);
+            int[] rows = buckets[bucket];
+
+            for (int i = 0; i < bucketSizes[bucket]; i++) {
+                int row = rows[i];
+                if (visited[row] == visitMark) {
+                    continue;
+                }
+                visited[row] = visitMark;
+
+                float distance = (float) vectorStore.distance(vector, vectorNorm, row);
+                if (distance <= heap.bound(maxDistance)) {
+                    heap.offer(row, distance);
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate signature of the vector in the table.
+     *
+     * @param vector of n-dimensions
+     * @param table  id of the table
+     * @return bits of the signature
+     */
+    private int signature(float[] vector, int table) {
+        int dimension = vector.length;
+        int signature = 0;
+
+        for (int h = 0; h < bits; h++) {
+            int offset = (table * bits + h) * dimension;
+            if (VectorOperations.dotProduct(vector, hyperplanes, offset) >= 0) {
+                signature |= 1 << h;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Append row to its bucket in every table.
+     *
+     * @param row id of the row
+     */
+    private void insert(int row) {
+        float[] vector = vectorStore.getVector(row);
+
+        for (int t = 0; t < tables; t++) {
+            place(row, t, signature(vector, t));
+        }
+    }
+
+    /**
+     * Append row to the bucket of given signature in the table.
+     *
+     * @param row       id of the row
+     * @param table     id of the table
+     * @param signature bits of row's signature in the table
+     */
+    private void place(int row, int table, int signature) {
+        int bucket = (table << bits) + signature;
+
+        if (buckets[bucket] == null) {
+            buckets[bucket] = new int[4];
+        } else if (bucketSizes[bucket] == buckets[bucket].length) {
+            buckets[bucket] = Arrays.copyOf(buckets[bucket], bucketSizes[bucket] * 2);
+        }
+
+        rowSignatures[row * tables + table] = signature;
+        buckets[bucket][bucketSizes[bucket]++] = row;
+    }
+
+    @Override
+    public synchronized long getMemoryBytes() {
+        return sizeOf(hyperplanes) + sizeOf(buckets) + sizeOf(bucketSizes) + sizeOf(rowSignatures)
+                + sizeOf(visited);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= visited.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, Math.max(16, visited.length * 2));
+        rowSignatures = Arrays.copyOf(rowSignatures, newCapacity * tables);
+        visited = Arrays.copyOf(visited, newCapacity);
+    }
+}
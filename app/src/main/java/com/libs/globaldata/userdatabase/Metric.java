@@ -1,28 +1,18 @@
 package com.libs.globaldata.userdatabase;
 
-import com.common.VectorOperations;
-
-import java.util.function.BiFunction;
-import java.util.function.Function;
-
 public enum Metric {
-    EUCLIDEAN, EUCLIDEAN_NORM, COSINE;
+    EUCLIDEAN(new SquaredL2Kernel()),
+    EUCLIDEAN_NORM(new InnerProductKernel(true)),
+    COSINE(new InnerProductKernel(false));
+
+    // Primitive kernel calculating distances of the metric
+    private final DistanceKernel kernel;
 
-    public static BiFunction<float[], float[], Double> getDistanceFunction(Metric metric){
-        switch (metric){
-            case COSINE:
-                return VectorOperations::cosineSimilarity;
-            default:
-                return VectorOperations::euclideanDistance;
-        }
+    Metric(DistanceKernel kernel) {
+        this.kernel = kernel;
     }
 
-    public static Function<float[], float[]> getNormalizationFunction(Metric metric){
-        switch (metric){
-            case EUCLIDEAN_NORM:
-                return VectorOperations::l2Normalize;
-            default:
-                return (x) -> x;
-        }
+    public DistanceKernel getKernel() {
+        return kernel;
     }
 }
\ No newline at end of file
@@ -0,0 +1,531 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Principal component index. Projection onto the directions of the largest variance of the
+ * database is learned in the background, and every row keeps its coordinates in this reduced
+ * space next to the full vector. Search scans the reduced coordinates, which take a fraction of
+ * memory bandwidth of full vectors, and re-ranks the best candidates with the store's metric.
+ *
+ * Projection is trained again when the database doubles its size, or when rows added since the
+ * last training lose noticeably more of their energy in the projection than the training rows
+ * did, i.e. the database drifted away from the projection. Projection is saved together with
+ * the database, so that it is not trained again after loading.
+ *
+ * Tunable parameters:
+ * dimensions - number of principal components, length of the reduced vectors
+ * rerank     - number of candidates re-ranked with full-precision vectors, at least 1
+ */
+public class PcaIndex extends TrainableIndex<PcaIndex.Projection, float[]> {
+    public static final int DEFAULT_DIMENSIONS = 32;
+    public static final int DEFAULT_RERANK = 64;
+
+    private static final int MIN_TRAINING_ROWS = 64;
+    private static final int MAX_TRAINING_ROWS = 4096;
+
+    // Subspace iterations and number of additional vectors iterated for faster convergence
+    private static final int ITERATIONS = 16;
+    private static final int OVERSAMPLING = 8;
+
+    // Number of added rows, after which drift is checked, and tolerated growth of lost energy
+    private static final int DRIFT_ROWS = 64;
+    private static final double DRIFT_TOLERANCE = 0.1;
+
+    private final int dimensions;
+    private int rerank;
+
+    // Row-major matrix of reduced vectors, row i starts at i * reduced length of the projection
+    private float[] reduced = new float[0];
+    private int capacity = 0;
+
+    // Sum of fractions of energy lost by rows projected since the last training
+    private double driftSum = 0;
+    private int driftCount = 0;
+
+    /**
+     * Learned projection, stored in the database file.
+     */
+    static class Projection {
+        // Mean of the training rows
+        float[] mean;
+
+        // Row-major matrix of principal components, one unit vector per reduced dimension
+        float[] components;
+
+        // Average fraction of energy of the training rows lost by the projection
+        float residual;
+    }
+
+    public PcaIndex() {
+        this(DEFAULT_DIMENSIONS, DEFAULT_RERANK);
+    }
+
+    public PcaIndex(int dimensions, int rerank) {
+        if (dimensions < 1 || rerank < 1) {
+            throw new AssertionError("Invalid PCA parameters");
+        }
+        this.dimensions = dimensions;
+        this.rerank = rerank;
+    }
+
+    /**
+     * Set number of candidates re-ranked with full-precision vectors.
+     *
+     * @param rerank number of candidates, at least 1
+     */
+    public synchronized void setRerank(int rerank) {
+        if (rerank < 1) {
+            throw new AssertionError("Invalid number of re-ranked candidates");
+        }
+        this.rerank = rerank;
+    }
+
+    public synchronized int getRerank() {
+        return rerank;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Get learned projection.
+     *
+     * @return projection, null if it is not trained yet
+     */
+    synchronized Projection getProjection() {
+        return model;
+    }
+
+    /**
+     * Use projection loaded from the database file.
+     *
+     * @param projection projection learned for vectors of the store's length
+     */
+    synchronized void useProjection(Projection projection) {
+        int dimension = vectorStore.getVectorLength();
+        if (projection.mean == null || projection.mean.length != dimension
+                || projection.components == null || projection.components.length == 0
+                || projection.components.length % dimension != 0) {
+            throw new AssertionError("Invalid projection");
+        }
+        useModel(projection);
+    }
+
+    /**
+     * Learn principal components with subspace iteration over covariance matrix of the sample.
+     */
+    @Override
+    Projection fit(float[] sample, int count, int dimension, Random random) {
+        int length = Math.min(dimensions, dimension);
+        int iterated = Math.min(dimension, length + OVERSAMPLING);
+
+        float[] mean = new float[dimension];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < dimension; j++) {
+                mean[j] += sample[i * dimension + j];
+            }
+        }
+        for (int j = 0; j < dimension; j++) {
+            mean[j] /= count;
+        }
+
+        double[][] covariance = new double[dimension][dimension];
+        double[] centered = new double[dimension];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < dimension; j++) {
+                centered[j] = sample[i * dimension + j] - mean[j];
+            }
+            for (int j = 0; j < dimension; j++) {
+                for (int l = j; l < dimension; l++) {
+                    covariance[j][l] += centered[j] * centered[l];
+                }
+            }
+        }
+        for (int j = 0; j < dimension; j++) {
+            for (int l = j; l < dimension; l++) {
+                covariance[j][l] /= count;
+                covariance[l][j] = covariance[j][l];
+            }
+        }
+
+        // Iterate orthonormal basis of random subspace towards the dominant eigenvectors
+        double[][] basis = new double[iterated][dimension];
+        for (double[] vector : basis) {
+            for (int j = 0; j < dimension; j++) {
+                vector[j] = random.nextGaussian();
+            }
+        }
+        orthonormalize(basis);
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            for (int k = 0; k < iterated; k++) {
+                basis[k] = multiply(covariance, basis[k]);
+            }
+            orthonormalize(basis);
+        }
+
+        // Rotate the basis into eigenvectors of covariance restricted to it (Rayleigh-Ritz)
+        double[][] restricted = new double[iterated][iterated];
+        for (int k = 0; k < iterated; k++) {
+            double[] product = multiply(covariance, basis[k]);
+            for (int l = 0; l < iterated; l++) {
+                restricted[l][k] = dot(basis[l], product);
+            }
+        }
+        double[][] rotation = new double[iterated][iterated];
+        double[] variances = eigen(restricted, rotation);
+
+        Integer[] order = new Integer[iterated];
+        for (int k = 0; k < iterated; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(variances[b], variances[a]));
+
+        Projection projection = new Projection();
+        projection.mean = mean;
+        projection.components = new float[length * dimension];
+        for (int c = 0; c < length; c++) {
+            for (int k = 0; k < iterated; k++) {
+                double weight = rotation[k][order[c]];
+                for (int j = 0; j < dimension; j++) {
+                    projection.components[c * dimension + j] += (float) (weight * basis[k][j]);
+                }
+            }
+        }
+
+        float[] row = new float[dimension];
+        float[] coordinates = new float[length];
+        double residualSum = 0;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(sample, i * dimension, row, 0, dimension);
+            residualSum += project(projection, row, coordinates, 0);
+        }
+        projection.residual = (float) (residualSum / count);
+
+        return projection;
+    }
+
+    @Override
+    float[] encodeRows(Projection newModel, int count) {
+        int length = newModel.components.length / vectorStore.getVectorLength();
+        float[] newReduced = new float[count * length];
+        for (int row = 0; row < count; row++) {
+            project(newModel, toQuantizerSpace(row), newReduced, row * length);
+        }
+        return newReduced;
+    }
+
+    @Override
+    void useCodes(float[] newReduced, int count) {
+        reduced = Arrays.copyOf(newReduced, capacity * reducedLength());
+        for (int row = count; row < size; row++) {
+            encode(row);
+        }
+        driftSum = 0;
+        driftCount = 0;
+    }
+
+    @Override
+    void writeModel(DataOutputStream out) throws IOException {
+        IndexFile.writeFloatArray(out, model.mean);
+        IndexFile.writeFloatArray(out, model.components);
+        out.writeFloat(model.residual);
+    }
+
+    @Override
+    Projection readModel(ByteBuffer in) {
+        int dimension = vectorStore.getVectorLength();
+        Projection projection = new Projection();
+        projection.mean = IndexFile.readFloatArray(in);
+        projection.components = IndexFile.readFloatArray(in);
+        projection.residual = in.getFloat();
+        if (projection.mean.length != dimension
+                || projection.components.length != Math.min(dimensions, dimension) * dimension) {
+            return null;
+        }
+        return projection;
+    }
+
+    @Override
+    void writeCodes(DataOutputStream out, int[] fileRows) throws IOException {
+        int length = reducedLength();
+        for (int row : fileRows) {
+            IndexFile.writeFloats(out, reduced, row * length, length);
+        }
+    }
+
+    @Override
+    boolean readCodes(ByteBuffer in) {
+        ensureCapacity(size);
+        reduced = new float[capacity * reducedLength()];
+        IndexFile.readFloats(in, reduced, 0, size * reducedLength());
+        driftSum = 0;
+        driftCount = 0;
+        return true;
+    }
+
+    @Override
+    int minTrainingRows() {
+        return 2;
+    }
+
+    @Override
+    int autoTrainingRows() {
+        return MIN_TRAINING_ROWS;
+    }
+
+    @Override
+    int maxTrainingRows() {
+        return MAX_TRAINING_ROWS;
+    }
+
+    @Override
+    SearchIndex copyFor(VectorStore vectorStore) {
+        return attachCopy(new PcaIndex(dimensions, rerank), vectorStore);
+    }
+
+    @Override
+    synchronized void rebuild() {
+        onClear();
+        size = vectorStore.size();
+        ensureCapacity(size);
+        trainIfNeeded();
+    }
+
+    @Override
+    synchronized void onAdd(int row) {
+        ensureCapacity(row + 1);
+        size++;
+        if (model != null) {
+            trackDrift(encode(row));
+        }
+        trainIfNeeded();
+    }
+
+    @Override
+    synchronized void onClear() {
+        resetTraining();
+        driftSum = 0;
+        driftCount = 0;
+    }
+
+    @Override
+    synchronized void search(float[] vector, double vectorNorm, TopKHeap heap, float maxDistance) {
+        if (model == null) {
+            // Projection not trained yet, scan all rows
+            for (int row = 0; row < size; row++) {
+                offer(heap, row, (float) vectorStore.distance(vector, vectorNorm, row), maxDistance);
+            }
+            return;
+        }
+
+        int length = reducedLength();
+        float[] query = new float[length];
+        project(model, toQuantizerSpace(vector, vectorNorm), query, 0);
+
+        // Score all rows in the reduced space
+        TopKHeap candidates = createCandidates(Math.max(heap.capacity(), rerank));
+        for (int row = 0, offset = 0; row < size; row++, offset += length) {
+            float distance = (float) VectorOperations.squaredEuclideanDistance(
+                    query, 0, reduced, offset, length);
+            if (distance < candidates.bound(Float.MAX_VALUE)) {
+                candidates.offer(row, distance);
+            }
+        }
+
+        int[] ids = new int[candidates.size()];
+        candidates.drain(ids, new float[ids.length]);
+
+        for (int id : ids) {
+            offer(heap, id, (float) vectorStore.distance(vector, vectorNorm, id), maxDistance);
+        }
+    }
+
+    /**
+     * Replace row's reduced vector with its projection.
+     *
+     * @param row id of the row
+     * @return fraction of row's energy lost by the projection
+     */
+    private double encode(int row) {
+        return project(model, toQuantizerSpace(row), reduced, row * reducedLength());
+    }
+
+    /**
+     * Count energy lost by projected row and train again when the database drifted.
+     *
+     * @param residual fraction of row's energy lost by the projection
+     */
+    private void trackDrift(double residual) {
+        driftSum += residual;
+        driftCount++;
+        if (driftCount >= DRIFT_ROWS && !isTraining()) {
+            if (driftSum / driftCount > model.residual + DRIFT_TOLERANCE) {
+                train();
+            }
+            driftSum = 0;
+            driftCount = 0;
+        }
+    }
+
+    /**
+     * Project centered vector onto principal components.
+     *
+     * @param projection  projection to use
+     * @param vector      vector in quantizer space
+     * @param destination array to write reduced vector to
+     * @param offset      index of the first written value
+     * @return fraction of vector's energy around the mean lost by the projection
+     */
+    private static double project(Projection projection, float[] vector, float[] destination,
+                                  int offset) {
+        int dimension = vector.length;
+        int length = projection.components.length / dimension;
+        for (int j = 0; j < dimension; j++) {
+            vector[j] -= projection.mean[j];
+        }
+
+        double energy = VectorOperations.dotProduct(vector, 0, vector, 0, dimension);
+        double kept = 0;
+        for (int c = 0; c < length; c++) {
+            float value = (float) VectorOperations.dotProduct(vector, 0, projection.components,
+                    c * dimension, dimension);
+            destination[offset + c] = value;
+            kept += value * value;
+        }
+        return energy > 0 ? Math.max(0, 1 - kept / energy) : 0;
+    }
+
+    private int reducedLength() {
+        return model.components.length / vectorStore.getVectorLength();
+    }
+
+    @Override
+    public synchronized long getMemoryBytes() {
+        long bytes = sizeOf(reduced);
+        if (model != null) {
+            bytes += sizeOf(model.mean) + sizeOf(model.components);
+        }
+        return bytes;
+    }
+
+    private void ensureCapacity(int newSize) {
+        if (newSize <= capacity) {
+            return;
+        }
+
+        capacity = Math.max(newSize, Math.max(16, 2 * capacity));
+        if (model != null) {
+            reduced = Arrays.copyOf(reduced, capacity * reducedLength());
+        }
+    }
+
+    private static double[] multiply(double[][] matrix, double[] vector) {
+        double[] product = new double[vector.length];
+        for (int j = 0; j < matrix.length; j++) {
+            product[j] = dot(matrix[j], vector);
+        }
+        return product;
+    }
+
+    private static double dot(double[] vector1, double[] vector2) {
+        double product = 0;
+        for (int j = 0; j < vector1.length; j++) {
+            product += vector1[j] * vector2[j];
+        }
+        return product;
+    }
+
+    /**
+     * Make vectors orthonormal with modified Gram-Schmidt process.
+     */
+    private static void orthonormalize(double[][] vectors) {
+        for (int k = 0; k < vectors.length; k++) {
+            for (int l = 0; l < k; l++) {
+                double projection = dot(vectors[k], vectors[l]);
+                for (int j = 0; j < vectors[k].length; j++) {
+                    vectors[k][j] -= projection * vectors[l][j];
+                }
+            }
+            double norm = Math.sqrt(dot(vectors[k], vectors[k]));
+            for (int j = 0; j < vectors[k].length; j++) {
+                vectors[k][j] = norm > 0 ? vectors[k][j] / norm : 0;
+            }
+        }
+    }
+
+    /**
+     * Find eigenvalues and eigenvectors of small symmetric matrix with cyclic Jacobi rotations.
+     *
+     * @param matrix       symmetric matrix, destroyed by the calculation
+     * @param eigenvectors output matrix, column k holds eigenvector of k-th eigenvalue
+     * @return eigenvalues
+     */
+    private static double[] eigen(double[][] matrix, double[][] eigenvectors) {
+        int n = matrix.length;
+        for (int i = 0; i < n; i++) {
+            Arrays.fill(eigenvectors[i], 0);
+            eigenvectors[i][i] = 1;
+        }
+
+        for (int sweep = 0; sweep < 50; sweep++) {
+            double offDiagonal = 0;
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    offDiagonal += matrix[p][q] * matrix[p][q];
+                }
+            }
+            if (offDiagonal < 1e-22) {
+                break;
+            }
+
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    if (matrix[p][q] == 0) {
+                        continue;
+                    }
+                    // Rotation zeroing matrix[p][q]
+                    double theta = (matrix[q][q] - matrix[p][p]) / (2 * matrix[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+
+                    for (int k = 0; k < n; k++) {
+                        double kp = matrix[k][p];
+                        double kq = matrix[k][q];
+                        matrix[k][p] = c * kp - s * kq;
+                        matrix[k][q] = s * kp + c * kq;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double pk = matrix[p][k];
+                        double qk = matrix[q][k];
+                        matrix[p][k] = c * pk - s * qk;
+                        matrix[q][k] = s * pk + c * qk;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double kp = eigenvectors[k][p];
+                        double kq = eigenvectors[k][q];
+                        eigenvectors[k][p] = c * kp - s * kq;
+                        eigenvectors[k][q] = s * kp + c * kq;
+                    }
+                }
+            }
+        }
+
+        double[] eigenvalues = new double[n];
+        for (int i = 0; i < n; i++) {
+            eigenvalues[i] = matrix[i][i];
+        }
+        return eigenvalues;
+    }
+}
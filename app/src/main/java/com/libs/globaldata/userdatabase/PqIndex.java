@@ -0,0 +1,371 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Product quantization index. Vector is split into subspaces and every subvector is replaced
+ * with one byte - id of the closest of 256 centroids learned for the subspace. Search builds
+ * a table of distances between query's subvectors and all centroids once, then every row is
+ * scored with one table lookup per subspace (asymmetric distance computation), instead of
+ * reading the whole float vector.
+ *
+ * Quantized distances are approximate, so the best rerank candidates are scored again with the
+ * full-precision vectors of the store.
+ *
+ * By default codes do not replace the vectors, store keeps full-precision rows for re-ranking
+ * and for the exact scan, so the index adds to memory of the database. It reduces memory read by
+ * the search: 128-dimensional row is scored from 16 bytes instead of 512. Index which does not
+ * retain vectors makes the store drop them once the codebooks are trained, so that the database
+ * keeps only the codes. Rows are then read as their centroids, by the exact scan, by records of
+ * users and by the database file, re-ranking is not possible and codebooks are not trained again
+ * as the database grows.
+ *
+ * Tunable parameters:
+ * subspaces     - number of one-byte codes per row, must divide vector length, otherwise the
+ *                 closest smaller divisor is used
+ * rerank        - number of candidates re-ranked with full-precision vectors, 0 disables
+ *                 re-ranking
+ * retainVectors - False to keep only the codes once codebooks are trained, needs rerank 0
+ */
+public class PqIndex extends TrainableIndex<float[][], byte[]> {
+    public static final int DEFAULT_SUBSPACES = 16;
+    public static final int DEFAULT_RERANK = 32;
+
+    // Number of centroids per subspace, so that code fits in one byte
+    private static final int CENTROIDS = 256;
+    private static final int MIN_TRAINING_ROWS = 4 * CENTROIDS;
+    private static final int MAX_TRAINING_ROWS = 16 * CENTROIDS;
+    private static final int TRAINING_ITERATIONS = 10;
+
+    private final int requestedSubspaces;
+    private int subspaces;
+    private int subDimension;
+    private int rerank;
+    private final boolean retainVectors;
+
+    // Row-major matrix of codes, row i starts at i * subspaces, empty once codes are kept by the
+    // store instead
+    private byte[] codes = new byte[0];
+
+    public PqIndex() {
+        this(DEFAULT_SUBSPACES, DEFAULT_RERANK);
+    }
+
+    public PqIndex(int subspaces, int rerank) {
+        this(subspaces, rerank, true);
+    }
+
+    public PqIndex(int subspaces, int rerank, boolean retainVectors) {
+        if (subspaces < 1 || rerank < 0 || (rerank > 0 && !retainVectors)) {
+            throw new AssertionError("Invalid PQ parameters");
+        }
+        this.requestedSubspaces = subspaces;
+        this.rerank = rerank;
+        this.retainVectors = retainVectors;
+    }
+
+    /**
+     * Set number of candidates re-ranked with full-precision vectors, which is possible only
+     * when vectors are retained.
+     *
+     * @param rerank number of candidates, 0 disables re-ranking
+     */
+    public synchronized void setRerank(int rerank) {
+        if (rerank < 0 || (rerank > 0 && !retainVectors)) {
+            throw new AssertionError("Invalid number of re-ranked candidates");
+        }
+        this.rerank = rerank;
+    }
+
+    public synchronized int getRerank() {
+        return rerank;
+    }
+
+    @Override
+    float[][] fit(float[] sample, int count, int dimension, Random random) {
+        float[][] codebooks = new float[subspaces][];
+        float[] subSample = new float[count * subDimension];
+
+        for (int s = 0; s < subspaces; s++) {
+            for (int i = 0; i < count; i++) {
+                System.arraycopy(sample, i * dimension + s * subDimension, subSample,
+                        i * subDimension, subDimension);
+            }
+            codebooks[s] = KMeans.train(subSample, count, subDimension, Math.min(CENTROIDS, count),
+                    TRAINING_ITERATIONS, random);
+        }
+
+        return codebooks;
+    }
+
+    @Override
+    byte[] encodeRows(float[][] newModel, int count) {
+        byte[] newCodes = new byte[count * subspaces];
+        for (int row = 0; row < count; row++) {
+            encode(newModel, row, newCodes);
+        }
+        return newCodes;
+    }
+
+    @Override
+    void useCodes(byte[] newCodes, int count) {
+        codes = newCodes;
+        ensureCapacity(size);
+        for (int row = count; row < size; row++) {
+            encode(model, row, codes);
+        }
+        dropVectorsIfNeeded();
+    }
+
+    @Override
+    void writeModel(DataOutputStream out) throws IOException {
+        out.writeInt(subspaces);
+        for (float[] codebook : model) {
+            IndexFile.writeFloatArray(out, codebook);
+        }
+    }
+
+    @Override
+    float[][] readModel(ByteBuffer in) {
+        splitDimensions();
+        if (in.getInt() != subspaces) {
+            return null;
+        }
+        float[][] codebooks = new float[subspaces][];
+        for (int s = 0; s < subspaces; s++) {
+            codebooks[s] = IndexFile.readFloatArray(in);
+            int length = codebooks[s].length;
+            if (length == 0 || length % subDimension != 0 || length > CENTROIDS * subDimension) {
+                return null;
+            }
+        }
+        return codebooks;
+    }
+
+    @Override
+    void writeCodes(DataOutputStream out, int[] fileRows) throws IOException {
+        byte[] rowCodes = rowCodes(codes);
+        for (int row : fileRows) {
+            out.write(rowCodes, row * subspaces, subspaces);
+        }
+    }
+
+    @Override
+    boolean readCodes(ByteBuffer in) {
+        if (in.remaining() < size * subspaces) {
+            return false;
+        }
+        ensureCapacity(size);
+        in.get(codes, 0, size * subspaces);
+        dropVectorsIfNeeded();
+        return true;
+    }
+
+    @Override
+    int minTrainingRows() {
+        return 1;
+    }
+
+    @Override
+    int autoTrainingRows() {
+        return MIN_TRAINING_ROWS;
+    }
+
+    @Override
+    int maxTrainingRows() {
+        return MAX_TRAINING_ROWS;
+    }
+
+    @Override
+    SearchIndex copyFor(VectorStore vectorStore) {
+        return attachCopy(new PqIndex(requestedSubspaces, rerank, retainVectors), vectorStore);
+    }
+
+    @Override
+    synchronized void rebuild() {
+        onClear();
+        splitDimensions();
+
+        size = vectorStore.size();
+        ensureCapacity(size);
+        trainIfNeeded();
+    }
+
+    @Override
+    synchronized void onAdd(int row) {
+        if (storeCodes() != null) {
+            // Store encoded the row with the codebooks when the row was written
+            size++;
+            return;
+        }
+        ensureCapacity(row + 1);
+        size++;
+        if (model != null) {
+            encode(model, row, codes);
+        }
+        trainIfNeeded();
+    }
+
+    @Override
+    synchronized void onClear() {
+        resetTraining();
+    }
+
+    @Override
+    synchronized void search(float[] vector, double vectorNorm, TopKHeap heap, float maxDistance) {
+        if (model == null) {
+            // Codebooks not trained yet, scan all rows
+            for (int row = 0; row < size; row++) {
+                offer(heap, row, (float) vectorStore.distance(vector, vectorNorm, row), maxDistance);
+            }
+            return;
+        }
+
+        // Squared distances between query's subvectors and all centroids
+        float[] query = toQuantizerSpace(vector, vectorNorm);
+        float[] table = new float[subspaces * CENTROIDS];
+        for (int s = 0; s < subspaces; s++) {
+            float[] codebook = model[s];
+            int centroids = codebook.length / subDimension;
+            for (int c = 0; c < centroids; c++) {
+                table[s * CENTROIDS + c] = (float) VectorOperations.squaredEuclideanDistance(
+                        query, s * subDimension, codebook, c * subDimension, subDimension);
+            }
+        }
+
+        // Score all rows with table lookups
+        byte[] rowCodes = rowCodes(codes);
+        TopKHeap candidates = createCandidates(Math.max(heap.capacity(), rerank));
+        for (int row = 0, offset = 0; row < size; row++, offset += subspaces) {
+            float distance = 0;
+            for (int s = 0; s < subspaces; s++) {
+                distance += table[s * CENTROIDS + (rowCodes[offset + s] & 0xFF)];
+            }
+            if (distance < candidates.bound(Float.MAX_VALUE)) {
+                candidates.offer(row, distance);
+            }
+        }
+
+        int[] ids = new int[candidates.size()];
+        float[] distances = new float[candidates.size()];
+        candidates.drain(ids, distances);
+
+        for (int i = 0; i < ids.length; i++) {
+            float distance = rerank > 0
+                    ? (float) vectorStore.distance(vector, vectorNorm, ids[i])
+                    : toMetricDistance(distances[i]);
+            offer(heap, ids[i], distance, maxDistance);
+        }
+    }
+
+    /**
+     * Replace row's subvectors with ids of the closest centroids.
+     *
+     * @param codebooks   codebooks of the subspaces
+     * @param row         id of the row
+     * @param destination codes to write row's code to
+     */
+    private void encode(float[][] codebooks, int row, byte[] destination) {
+        quantize(codebooks, subDimension, toQuantizerSpace(row), destination, row * subspaces);
+    }
+
+    /**
+     * Replace vector's subvectors with ids of the closest centroids.
+     *
+     * @param codebooks    codebooks of the subspaces
+     * @param subDimension length of the subvectors
+     * @param vector       vector in quantizer space
+     * @param destination  array to write codes to
+     * @param offset       index of the first written code
+     */
+    private static void quantize(float[][] codebooks, int subDimension, float[] vector,
+                                 byte[] destination, int offset) {
+        for (int s = 0; s < codebooks.length; s++) {
+            float[] codebook = codebooks[s];
+            int code = KMeans.closest(codebook, codebook.length / subDimension, vector,
+                    s * subDimension, subDimension);
+            destination[offset + s] = (byte) code;
+        }
+    }
+
+    /**
+     * Make the store keep only the codes, unless vectors are retained.
+     */
+    private void dropVectorsIfNeeded() {
+        if (!retainVectors) {
+            dropVectors(new Codec(model, subDimension, vectorStore.getMetric()), codes);
+            codes = new byte[0];
+        }
+    }
+
+    @Override
+    public synchronized long getMemoryBytes() {
+        return sizeOf(model) + sizeOf(rowCodes(codes));
+    }
+
+    /**
+     * Split dimensions of the store into the largest number of equal subspaces, which does not
+     * exceed the requested one.
+     */
+    private void splitDimensions() {
+        int dimension = vectorStore.getVectorLength();
+        subspaces = Math.min(requestedSubspaces, dimension);
+        while (dimension % subspaces != 0) {
+            subspaces--;
+        }
+        subDimension = dimension / subspaces;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity * subspaces <= codes.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, Math.max(16, 2 * codes.length / subspaces));
+        codes = Arrays.copyOf(codes, newCapacity * subspaces);
+    }
+
+    /**
+     * Codec of the store which dropped its vectors, row is decoded as its centroids, scaled to
+     * norm of the row for normalized metrics.
+     */
+    private static final class Codec implements RowCodec {
+        private final float[][] codebooks;
+        private final int subDimension;
+        private final Metric metric;
+
+        Codec(float[][] codebooks, int subDimension, Metric metric) {
+            this.codebooks = codebooks;
+            this.subDimension = subDimension;
+            this.metric = metric;
+        }
+
+        @Override
+        public int codeLength() {
+            return codebooks.length;
+        }
+
+        @Override
+        public void encode(float[] vector, double norm, byte[] destination, int offset) {
+            quantize(codebooks, subDimension, normalize(vector.clone(), norm, metric), destination,
+                    offset);
+        }
+
+        @Override
+        public void decode(byte[] codes, int offset, double norm, float[] destination) {
+            float scale = metric != Metric.EUCLIDEAN ? (float) norm : 1;
+            for (int s = 0; s < codebooks.length; s++) {
+                int centroid = (codes[offset + s] & 0xFF) * subDimension;
+                for (int i = 0; i < subDimension; i++) {
+                    destination[s * subDimension + i] = codebooks[s][centroid + i] * scale;
+                }
+            }
+        }
+    }
+}
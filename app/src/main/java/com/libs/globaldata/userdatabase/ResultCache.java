@@ -0,0 +1,106 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Bounded LRU cache of recent search results. Entries are keyed by signed random projection
+ * signature of the searched vector, so that almost identical vectors of the same face in
+ * consecutive frames share the entry. Lookup checks the vector's bucket and the bucket which
+ * differs in the least certain bit, which catches vectors lying close to one of hyperplanes.
+ *
+ * Cache only stores results, entries are validated by the database with exact distances.
+ */
+class ResultCache {
+    private static final int BITS = 8;
+
+    private final int vectorLength;
+    private final float[] hyperplanes;
+    private final Map<Integer, CachedResult> entries;
+
+    /**
+     * Result of a search: searched vector, the closest user and lower bound of distance of all
+     * other users.
+     */
+    static class CachedResult {
+        final float[] vector;
+        final String username;
+        final float otherDistance;
+
+        CachedResult(float[] vector, String username, float otherDistance) {
+            this.vector = vector;
+            this.username = username;
+            this.otherDistance = otherDistance;
+        }
+    }
+
+    /**
+     * @param capacity     maximal number of entries, least recently used entry is dropped
+     * @param vectorLength length of cached vectors
+     */
+    ResultCache(int capacity, int vectorLength) {
+        this.vectorLength = vectorLength;
+        this.hyperplanes = new float[BITS * vectorLength];
+        Random random = new Random(42);
+        for (int i = 0; i < hyperplanes.length; i++) {
+            hyperplanes[i] = (float) random.nextGaussian();
+        }
+        this.entries = new LinkedHashMap<Integer, CachedResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, CachedResult> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Find entries which may hold result of the vector.
+     *
+     * @param vector of n-dimensions
+     * @return entries of the vector's bucket and of the bucket across the closest hyperplane,
+     * null when bucket is empty
+     */
+    synchronized CachedResult[] find(float[] vector) {
+        int signature = 0;
+        int uncertainBit = 0;
+        double uncertainty = Double.MAX_VALUE;
+
+        for (int h = 0; h < BITS; h++) {
+            double projection = VectorOperations.dotProduct(vector, hyperplanes, h * vectorLength);
+            if (projection >= 0) {
+                signature |= 1 << h;
+            }
+            if (Math.abs(projection) < uncertainty) {
+                uncertainty = Math.abs(projection);
+                uncertainBit = h;
+            }
+        }
+
+        return new CachedResult[]{entries.get(signature),
+                entries.get(signature ^ (1 << uncertainBit))};
+    }
+
+    /**
+     * Store result of the search.
+     *
+     * @param vector        searched vector
+     * @param username      the closest user
+     * @param otherDistance distance, which no other user is closer than
+     */
+    synchronized void put(float[] vector, String username, float otherDistance) {
+        int signature = 0;
+        for (int h = 0; h < BITS; h++) {
+            if (VectorOperations.dotProduct(vector, hyperplanes, h * vectorLength) >= 0) {
+                signature |= 1 << h;
+            }
+        }
+        entries.put(signature, new CachedResult(vector.clone(), username, otherDistance));
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,37 @@
+package com.libs.globaldata.userdatabase;
+
+/**
+ * Lossy encoding of rows into fixed number of bytes, learned by a trainable index. Store which
+ * dropped its full-precision vectors keeps rows only as codes and decodes them when they are
+ * read, see VectorStore.dropVectors. Codec is immutable, so that the store uses it without the
+ * lock of the index.
+ */
+interface RowCodec {
+
+    /**
+     * Get number of bytes of the code of one row.
+     *
+     * @return length of the code
+     */
+    int codeLength();
+
+    /**
+     * Encode vector into the code.
+     *
+     * @param vector      of n-dimensions
+     * @param norm        l2 norm of the vector
+     * @param destination array to write the code to
+     * @param offset      index of the first written byte
+     */
+    void encode(float[] vector, double norm, byte[] destination, int offset);
+
+    /**
+     * Decode code into approximation of the encoded vector.
+     *
+     * @param codes       array containing the code
+     * @param offset      index of the first byte of the code
+     * @param norm        l2 norm of the encoded vector
+     * @param destination vector of n-dimensions to write the approximation to
+     */
+    void decode(byte[] codes, int offset, double norm, float[] destination);
+}
@@ -0,0 +1,75 @@
+package com.libs.globaldata.userdatabase;
+
+/**
+ * Table of embedding rows owned by users, identified by int row ids. Implemented by the in-memory
+ * vector store and by the cold tier kept on disk, so that found rows of both are combined into
+ * users the same way.
+ */
+abstract class RowTable {
+
+    /**
+     * Get number of rows in use.
+     *
+     * @return number of rows
+     */
+    abstract int size();
+
+    /**
+     * Get upper bound of number of rows owned by one user.
+     *
+     * @return maximal number of rows of one user
+     */
+    abstract int getMaxUserRows();
+
+    /**
+     * Get number of users, which own at least one row.
+     *
+     * @return number of users
+     */
+    abstract int usersCount();
+
+    /**
+     * Get names of all users in order of addition.
+     *
+     * @return array of users names
+     */
+    abstract String[] getUsernames();
+
+    /**
+     * Get ids of all rows of given user.
+     *
+     * @param username owner of the rows
+     * @return copy of row ids, null if user does not exist
+     */
+    abstract int[] getRows(String username);
+
+    abstract String getUsername(int row);
+
+    abstract int getWeight(int row);
+
+    /**
+     * Get groups of the row's user.
+     *
+     * @param row id of the row
+     * @return mask of groups, bit i set when user belongs to group i
+     */
+    abstract long getGroups(int row);
+
+    /**
+     * Get copy of the row's vector.
+     *
+     * @param row id of the row
+     * @return vector of n-dimensions
+     */
+    abstract float[] getVector(int row);
+
+    /**
+     * Calculate distance between vector and row, using table's metric.
+     *
+     * @param vector     of n-dimensions
+     * @param vectorNorm l2 norm of the vector
+     * @param row        id of the row
+     * @return distance between vector and the row
+     */
+    abstract double distance(float[] vector, double vectorNorm, int row);
+}
@@ -0,0 +1,70 @@
+package com.libs.globaldata.userdatabase;
+
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exact scan of a range of the vector store, split in halves until ranges are small enough to be
+ * scanned by one thread. Every leaf collects its own best rows, which are merged on join, so
+ * threads never share a heap.
+ */
+class ScanTask extends RecursiveTask<TopKHeap[]> {
+    // Tasks are Serializable through ForkJoinTask, but they are never serialized
+    private static final long serialVersionUID = 1L;
+
+    private final VectorStore vectorStore;
+    private final float[][] vectors;
+    private final double[] vectorNorms;
+    private final int k;
+    private final float maxDistance;
+    private final int start;
+    private final int end;
+    private final int leafRows;
+
+    /**
+     * @param vectorStore store to scan
+     * @param vectors     of n-dimensions, null vectors are skipped
+     * @param vectorNorms l2 norms of the vectors
+     * @param k           maximal number of rows found per vector
+     * @param maxDistance distance cut-off, rows further away are skipped
+     * @param start       id of the first scanned row
+     * @param end         id of the row after the last scanned row
+     * @param leafRows    maximal number of rows scanned without splitting
+     */
+    ScanTask(VectorStore vectorStore, float[][] vectors, double[] vectorNorms, int k,
+             float maxDistance, int start, int end, int leafRows) {
+        this.vectorStore = vectorStore;
+        this.vectors = vectors;
+        this.vectorNorms = vectorNorms;
+        this.k = k;
+        this.maxDistance = maxDistance;
+        this.start = start;
+        this.end = end;
+        this.leafRows = leafRows;
+    }
+
+    @Override
+    protected TopKHeap[] compute() {
+        if (end - start <= leafRows) {
+            TopKHeap[] heaps = new TopKHeap[vectors.length];
+            for (int i = 0; i < vectors.length; i++) {
+                heaps[i] = new TopKHeap(k);
+            }
+            vectorStore.scan(vectors, vectorNorms, heaps, start, end, maxDistance);
+            return heaps;
+        }
+
+        int middle = (start + end) >>> 1;
+        ScanTask left = new ScanTask(vectorStore, vectors, vectorNorms, k, maxDistance,
+                start, middle, leafRows);
+        ScanTask right = new ScanTask(vectorStore, vectors, vectorNorms, k, maxDistance,
+                middle, end, leafRows);
+        left.fork();
+        TopKHeap[] heaps = right.compute();
+        TopKHeap[] leftHeaps = left.join();
+
+        for (int i = 0; i < heaps.length; i++) {
+            heaps[i].merge(leftHeaps[i]);
+        }
+        return heaps;
+    }
+}
@@ -0,0 +1,179 @@
+package com.libs.globaldata.userdatabase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Evaluation of search indexes against the exact scan of the database. Queries are searched
+ * with the exact scan first, which results are the ground truth, then with every evaluated index
+ * in turn, see EvaluationResult for the measured values.
+ *
+ * Queries are searched as in recognition: the closest user below the threshold decides whether
+ * the face is recognized, k closest users measure recall. Result cache of the database is
+ * disabled during evaluation and its own index is rebuilt at the end. Tiered storage should be
+ * disabled, as searches would move users between tiers.
+ */
+public class SearchEvaluation {
+    private final UserDatabase database;
+    private final float[][] queries;
+    private final int k;
+
+    // Threshold decisions and k closest users of the exact scan, per query
+    private String[] exactDecisions;
+    private String[][] exactClosest;
+
+    /**
+     * @param database database with users, real or synthetic
+     * @param queries  vectors searched with every mode, e.g. faces of enrolled users and
+     *                 strangers in proportion expected in recognition
+     * @param k        number of closest users used to measure recall
+     */
+    public SearchEvaluation(UserDatabase database, float[][] queries, int k) {
+        if (queries.length == 0 || k < 1) {
+            throw new AssertionError("Invalid evaluation parameters");
+        }
+        if (database.getNumberOfUsers() == 0) {
+            throw new AssertionError("Database is empty");
+        }
+        this.database = database;
+        this.queries = queries;
+        this.k = k;
+    }
+
+    /**
+     * Create indexes of all types, with parameters, which trade recall for speed, swept around
+     * their defaults.
+     *
+     * @return indexes by their description, in order of evaluation
+     */
+    public static Map<String, SearchIndex> defaultSweep() {
+        Map<String, SearchIndex> indexes = new LinkedHashMap<>();
+        for (int efSearch : new int[]{16, HnswIndex.DEFAULT_EF_SEARCH, 128}) {
+            indexes.put("HNSW efSearch = " + efSearch, new HnswIndex(HnswIndex.DEFAULT_M,
+                    HnswIndex.DEFAULT_EF_CONSTRUCTION, efSearch));
+        }
+        for (int probes : new int[]{1, IvfIndex.DEFAULT_PROBES, 16}) {
+            indexes.put("IVF probes = " + probes, new IvfIndex(IvfIndex.DEFAULT_LISTS, probes));
+        }
+        for (int rerank : new int[]{0, PqIndex.DEFAULT_RERANK, 128}) {
+            indexes.put("PQ rerank = " + rerank, new PqIndex(PqIndex.DEFAULT_SUBSPACES, rerank));
+        }
+        for (int rerank : new int[]{0, Sq8Index.DEFAULT_RERANK}) {
+            indexes.put("SQ8 rerank = " + rerank, new Sq8Index(rerank));
+        }
+        for (int tables : new int[]{8, LshIndex.DEFAULT_TABLES, 32}) {
+            indexes.put("LSH tables = " + tables, new LshIndex(tables, LshIndex.DEFAULT_BITS));
+        }
+        for (int rerank : new int[]{64, BinaryIndex.DEFAULT_RERANK, 1024}) {
+            indexes.put("BINARY rerank = " + rerank, new BinaryIndex(rerank));
+        }
+        for (int dimensions : new int[]{16, PcaIndex.DEFAULT_DIMENSIONS, 64}) {
+            indexes.put("PCA dimensions = " + dimensions,
+                    new PcaIndex(dimensions, PcaIndex.DEFAULT_RERANK));
+        }
+        indexes.put("VPTREE", new VpTreeIndex());
+        return indexes;
+    }
+
+    /**
+     * Measure the exact scan and given indexes. Indexes which need a model are trained before
+     * they are measured.
+     *
+     * @param indexes new indexes by their description
+     * @return results of the exact scan followed by results of the indexes
+     */
+    public List<EvaluationResult> evaluate(Map<String, SearchIndex> indexes) {
+        SearchIndex databaseIndex = database.getSearchIndex();
+        ResultCache databaseCache = database.getResultCache();
+        database.useResultCache(null);
+
+        List<EvaluationResult> results = new ArrayList<>();
+        try {
+            database.setSearchIndex(null);
+            results.add(measure("EXACT"));
+
+            for (Map.Entry<String, SearchIndex> entry : indexes.entrySet()) {
+                SearchIndex index = entry.getValue();
+                database.setSearchIndex(index);
+                if (index instanceof TrainableIndex && !((TrainableIndex<?, ?>) index).isTrained()) {
+                    ((TrainableIndex<?, ?>) index).train().join();
+                }
+                results.add(measure(entry.getKey()));
+            }
+        } finally {
+            database.setSearchIndex(databaseIndex);
+            database.useResultCache(databaseCache);
+        }
+        return results;
+    }
+
+    /**
+     * Search all queries with current index of the database and compare results with the exact
+     * scan, results of the first measured mode are the ground truth.
+     *
+     * @param description search mode with its parameters
+     * @return measured values
+     */
+    private EvaluationResult measure(String description) {
+        // Warm up, so that the first measured mode is not slowed down by compilation
+        for (float[] query : queries) {
+            database.findClosestRecordBelowThreshold(query);
+        }
+
+        long[] latencies = new long[queries.length];
+        String[] decisions = new String[queries.length];
+        String[][] closest = new String[queries.length][];
+        for (int q = 0; q < queries.length; q++) {
+            long start = System.nanoTime();
+            UserRecord record = database.findClosestRecordBelowThreshold(queries[q]);
+            latencies[q] = System.nanoTime() - start;
+            decisions[q] = record == null ? null : record.username;
+            closest[q] = database.findKClosestRecords(queries[q], k).usernames;
+        }
+        if (exactClosest == null) {
+            exactDecisions = decisions;
+            exactClosest = closest;
+        }
+
+        int agreements = 0;
+        int hitsAt1 = 0;
+        int hitsAtK = 0;
+        int relevant = 0;
+        for (int q = 0; q < queries.length; q++) {
+            if (Objects.equals(decisions[q], exactDecisions[q])) {
+                agreements++;
+            }
+            if (closest[q].length > 0 && closest[q][0].equals(exactClosest[q][0])) {
+                hitsAt1++;
+            }
+            Set<String> exact = new HashSet<>(Arrays.asList(exactClosest[q]));
+            for (String username : closest[q]) {
+                if (exact.contains(username)) {
+                    hitsAtK++;
+                }
+            }
+            relevant += exactClosest[q].length;
+        }
+
+        Arrays.sort(latencies);
+        SearchIndex index = database.getSearchIndex();
+        return new EvaluationResult(description, (double) hitsAt1 / queries.length,
+                (double) hitsAtK / relevant, (double) agreements / queries.length,
+                percentile(latencies, 50), percentile(latencies, 99),
+                index == null ? 0 : index.getMemoryBytes());
+    }
+
+    /**
+     * Get percentile of sorted values, nearest-rank method.
+     */
+    private static long percentile(long[] sorted, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
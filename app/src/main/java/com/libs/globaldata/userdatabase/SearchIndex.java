@@ -0,0 +1,162 @@
+package com.libs.globaldata.userdatabase;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Search structure built over rows of the database's vector store. Index is kept up to date by
+ * the database, which notifies it about every row appended to the store. Rows are identified by
+ * the same ids as in the vector store.
+ *
+ * Database only appends rows, removed and overwritten rows are marked as removed in the store
+ * and rejected by the heap of the search. Once they take enough of the store, store is compacted
+ * and replaced together with a copy of the index, see copyFor.
+ */
+public abstract class SearchIndex {
+    // Estimated size of header of an array and of a reference to an object
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+
+    // Store which rows are indexed, set when index is attached to the database
+    VectorStore vectorStore;
+
+    /**
+     * Attach index to the store and index all rows already present in it.
+     *
+     * @param vectorStore store to index
+     */
+    void attach(VectorStore vectorStore) {
+        this.vectorStore = vectorStore;
+        rebuild();
+    }
+
+    /**
+     * Create index of the same type and parameters and attach it to given store. Used when
+     * the database compacts its store, called on a background thread while this index is still
+     * searched and modified.
+     *
+     * @param vectorStore store to index
+     * @return new index of all rows of the store
+     */
+    abstract SearchIndex copyFor(VectorStore vectorStore);
+
+    /**
+     * Write structure of the index, so that it is read instead of rebuilt when the database is
+     * loaded, see IndexFile. Rows are written in order of the database file and identified by
+     * their position in it, removed rows are left out.
+     *
+     * @param out      stream to write to
+     * @param fileRows row ids of the store in order of the database file
+     * @return True if structure was written, False if index is rebuilt instead, nothing is
+     * written then
+     * @throws IOException if stream cannot be written
+     */
+    boolean write(DataOutputStream out, int[] fileRows) throws IOException {
+        return false;
+    }
+
+    /**
+     * Replace structure of the index with the one written by write. Attached store holds rows
+     * of the database file in its order.
+     *
+     * @param in mapped structure
+     * @return True if structure was read, False if parameters of the index do not match it
+     */
+    boolean read(ByteBuffer in) {
+        return false;
+    }
+
+    /**
+     * Map row ids of the store to their positions in the database file.
+     *
+     * @param fileRows row ids of the store in order of the database file
+     * @return position of every row of the store, -1 for removed rows
+     */
+    int[] toFilePositions(int[] fileRows) {
+        int[] positions = new int[vectorStore.size()];
+        Arrays.fill(positions, -1);
+        for (int position = 0; position < fileRows.length; position++) {
+            positions[fileRows[position]] = position;
+        }
+        return positions;
+    }
+
+    /**
+     * Drop current structure and index all rows of the store from scratch.
+     */
+    abstract void rebuild();
+
+    /**
+     * Index row appended to the store.
+     *
+     * @param row id of the added row
+     */
+    abstract void onAdd(int row);
+
+    /**
+     * Remove all rows from the index.
+     */
+    abstract void onClear();
+
+    /**
+     * Find rows closest to the vector and offer them to the heap.
+     *
+     * @param vector      of n-dimensions
+     * @param vectorNorm  l2 norm of the vector
+     * @param heap        heap collecting found rows, its capacity is the number of searched rows
+     * @param maxDistance distance cut-off, rows further away are skipped
+     */
+    abstract void search(float[] vector, double vectorNorm, TopKHeap heap, float maxDistance);
+
+    /**
+     * Estimate memory taken by the structure of the index. Vector store is shared with the
+     * exact scan, so it is not counted.
+     *
+     * @return approximate number of bytes
+     */
+    public abstract long getMemoryBytes();
+
+    static long sizeOfReferences(int length) {
+        return ARRAY_HEADER_BYTES + (long) REFERENCE_BYTES * length;
+    }
+
+    static long sizeOf(byte[] array) {
+        return array == null ? 0 : ARRAY_HEADER_BYTES + (long) array.length;
+    }
+
+    static long sizeOf(int[] array) {
+        return array == null ? 0 : ARRAY_HEADER_BYTES + 4L * array.length;
+    }
+
+    static long sizeOf(long[] array) {
+        return array == null ? 0 : ARRAY_HEADER_BYTES + 8L * array.length;
+    }
+
+    static long sizeOf(float[] array) {
+        return array == null ? 0 : ARRAY_HEADER_BYTES + 4L * array.length;
+    }
+
+    static long sizeOf(int[][] arrays) {
+        if (arrays == null) {
+            return 0;
+        }
+        long bytes = sizeOfReferences(arrays.length);
+        for (int[] array : arrays) {
+            bytes += sizeOf(array);
+        }
+        return bytes;
+    }
+
+    static long sizeOf(float[][] arrays) {
+        if (arrays == null) {
+            return 0;
+        }
+        long bytes = sizeOfReferences(arrays.length);
+        for (float[] array : arrays) {
+            bytes += sizeOf(array);
+        }
+        return bytes;
+    }
+}
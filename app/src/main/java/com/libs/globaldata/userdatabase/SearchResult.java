@@ -0,0 +1,28 @@
+package com.libs.globaldata.userdatabase;
+
+/**
+ * Result of k nearest users search. Candidates are stored in primitive arrays sorted by
+ * ascending distance, so that no UserRecord is created per candidate.
+ */
+public class SearchResult {
+    // Row ids of found users, valid only until next modification or search of the database,
+    // which may switch to the compacted store, -1 for users of the cold tier
+    public final int[] ids;
+    public final float[] distances;
+    public final String[] usernames;
+
+    SearchResult(int[] ids, float[] distances, String[] usernames) {
+        this.ids = ids;
+        this.distances = distances;
+        this.usernames = usernames;
+    }
+
+    /**
+     * Get the number of found users.
+     *
+     * @return int Number of users
+     */
+    public int size() {
+        return ids.length;
+    }
+}
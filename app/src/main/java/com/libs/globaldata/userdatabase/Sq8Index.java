@@ -0,0 +1,338 @@
+package com.libs.globaldata.userdatabase;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Scalar quantization index. Every value of the row is stored as signed byte equal to
+ * round((value - offset) / scale), so the search reads 4 times less memory than over floats.
+ *
+ * Offsets are learned per dimension (middle of the range seen in the database), scale is shared
+ * by all dimensions, so that squared euclidean distance of codes multiplied by scale² is the
+ * squared euclidean distance of vectors. Rows are scored with integer multiply-accumulate loop.
+ *
+ * By default codes do not replace the vectors, store keeps full-precision rows for re-ranking
+ * and for the exact scan, so the index adds a quarter to memory of the database. Index which
+ * does not retain vectors makes the store drop them once the parameters are trained, so that the
+ * database keeps only the codes, a quarter of FLOAT32 vectors. Rows are then read as decoded
+ * codes, by the exact scan, by records of users and by the database file, re-ranking is not
+ * possible and parameters are not trained again as the database grows.
+ *
+ * Tunable parameters:
+ * rerank        - number of candidates re-ranked with full-precision vectors, 0 disables
+ *                 re-ranking
+ * retainVectors - False to keep only the codes once parameters are trained, needs rerank 0
+ */
+public class Sq8Index extends TrainableIndex<float[], byte[]> {
+    public static final int DEFAULT_RERANK = 16;
+
+    private static final int MIN_TRAINING_ROWS = 64;
+    private static final int MAX_TRAINING_ROWS = 4096;
+
+    // Largest absolute value of the code, symmetric range keeps 0 in the middle
+    private static final int MAX_CODE = 127;
+
+    private int rerank;
+    private final boolean retainVectors;
+
+    // Row-major matrix of codes, row i starts at i * vectorLength, empty once codes are kept by
+    // the store instead
+    private byte[] codes = new byte[0];
+
+    public Sq8Index() {
+        this(DEFAULT_RERANK);
+    }
+
+    public Sq8Index(int rerank) {
+        this(rerank, true);
+    }
+
+    public Sq8Index(int rerank, boolean retainVectors) {
+        if (rerank < 0 || (rerank > 0 && !retainVectors)) {
+            throw new AssertionError("Invalid SQ8 parameters");
+        }
+        this.rerank = rerank;
+        this.retainVectors = retainVectors;
+    }
+
+    /**
+     * Set number of candidates re-ranked with full-precision vectors, which is possible only
+     * when vectors are retained.
+     *
+     * @param rerank number of candidates, 0 disables re-ranking
+     */
+    public synchronized void setRerank(int rerank) {
+        if (rerank < 0 || (rerank > 0 && !retainVectors)) {
+            throw new AssertionError("Invalid number of re-ranked candidates");
+        }
+        this.rerank = rerank;
+    }
+
+    public synchronized int getRerank() {
+        return rerank;
+    }
+
+    /**
+     * Learn quantization parameters. Model holds offsets of all dimensions followed by the scale.
+     */
+    @Override
+    float[] fit(float[] sample, int count, int dimension, Random random) {
+        float[] min = new float[dimension];
+        float[] max = new float[dimension];
+        Arrays.fill(min, Float.MAX_VALUE);
+        Arrays.fill(max, -Float.MAX_VALUE);
+
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < dimension; j++) {
+                float value = sample[i * dimension + j];
+                min[j] = Math.min(min[j], value);
+                max[j] = Math.max(max[j], value);
+            }
+        }
+
+        float[] parameters = new float[dimension + 1];
+        float range = 0;
+        for (int j = 0; j < dimension; j++) {
+            parameters[j] = (min[j] + max[j]) / 2;
+            range = Math.max(range, max[j] - min[j]);
+        }
+        parameters[dimension] = range > 0 ? range / (2 * MAX_CODE) : 1;
+
+        return parameters;
+    }
+
+    @Override
+    byte[] encodeRows(float[] newModel, int count) {
+        byte[] newCodes = new byte[count * vectorStore.getVectorLength()];
+        for (int row = 0; row < count; row++) {
+            encode(newModel, row, newCodes);
+        }
+        return newCodes;
+    }
+
+    @Override
+    void useCodes(byte[] newCodes, int count) {
+        codes = newCodes;
+        ensureCapacity(size);
+        for (int row = count; row < size; row++) {
+            encode(model, row, codes);
+        }
+        dropVectorsIfNeeded();
+    }
+
+    @Override
+    void writeModel(DataOutputStream out) throws IOException {
+        IndexFile.writeFloatArray(out, model);
+    }
+
+    @Override
+    float[] readModel(ByteBuffer in) {
+        // Center of every dimension followed by the scale
+        float[] parameters = IndexFile.readFloatArray(in);
+        return parameters.length == vectorStore.getVectorLength() + 1 ? parameters : null;
+    }
+
+    @Override
+    void writeCodes(DataOutputStream out, int[] fileRows) throws IOException {
+        int dimension = vectorStore.getVectorLength();
+        byte[] rowCodes = rowCodes(codes);
+        for (int row : fileRows) {
+            out.write(rowCodes, row * dimension, dimension);
+        }
+    }
+
+    @Override
+    boolean readCodes(ByteBuffer in) {
+        int length = size * vectorStore.getVectorLength();
+        if (in.remaining() < length) {
+            return false;
+        }
+        ensureCapacity(size);
+        in.get(codes, 0, length);
+        dropVectorsIfNeeded();
+        return true;
+    }
+
+    @Override
+    int minTrainingRows() {
+        return 1;
+    }
+
+    @Override
+    int autoTrainingRows() {
+        return MIN_TRAINING_ROWS;
+    }
+
+    @Override
+    int maxTrainingRows() {
+        return MAX_TRAINING_ROWS;
+    }
+
+    @Override
+    SearchIndex copyFor(VectorStore vectorStore) {
+        return attachCopy(new Sq8Index(rerank, retainVectors), vectorStore);
+    }
+
+    @Override
+    synchronized void rebuild() {
+        onClear();
+        size = vectorStore.size();
+        ensureCapacity(size);
+        trainIfNeeded();
+    }
+
+    @Override
+    synchronized void onAdd(int row) {
+        if (storeCodes() != null) {
+            // Store encoded the row with the parameters when the row was written
+            size++;
+            return;
+        }
+        ensureCapacity(row + 1);
+        size++;
+        if (model != null) {
+            encode(model, row, codes);
+        }
+        trainIfNeeded();
+    }
+
+    @Override
+    synchronized void onClear() {
+        resetTraining();
+    }
+
+    @Override
+    synchronized void search(float[] vector, double vectorNorm, TopKHeap heap, float maxDistance) {
+        if (model == null) {
+            // Quantization not trained yet, scan all rows
+            for (int row = 0; row < size; row++) {
+                offer(heap, row, (float) vectorStore.distance(vector, vectorNorm, row), maxDistance);
+            }
+            return;
+        }
+
+        int dimension = vectorStore.getVectorLength();
+        float scale = model[dimension];
+        byte[] query = new byte[dimension];
+        quantize(model, toQuantizerSpace(vector, vectorNorm), query, 0);
+
+        // Score all rows with integer squared distance
+        byte[] rowCodes = rowCodes(codes);
+        TopKHeap candidates = createCandidates(Math.max(heap.capacity(), rerank));
+        for (int row = 0, offset = 0; row < size; row++, offset += dimension) {
+            int distance = 0;
+            for (int i = 0; i < dimension; i++) {
+                int diff = query[i] - rowCodes[offset + i];
+                distance += diff * diff;
+            }
+            if (distance < candidates.bound(Float.MAX_VALUE)) {
+                candidates.offer(row, distance);
+            }
+        }
+
+        int[] ids = new int[candidates.size()];
+        float[] distances = new float[candidates.size()];
+        candidates.drain(ids, distances);
+
+        for (int i = 0; i < ids.length; i++) {
+            float distance = rerank > 0
+                    ? (float) vectorStore.distance(vector, vectorNorm, ids[i])
+                    : toMetricDistance(distances[i] * scale * scale);
+            offer(heap, ids[i], distance, maxDistance);
+        }
+    }
+
+    /**
+     * Replace row's values with codes.
+     *
+     * @param parameters  offsets and scale of the quantization
+     * @param row         id of the row
+     * @param destination codes to write row's code to
+     */
+    private void encode(float[] parameters, int row, byte[] destination) {
+        int dimension = vectorStore.getVectorLength();
+        float[] vector = toQuantizerSpace(row);
+        quantize(parameters, vector, destination, row * dimension);
+    }
+
+    /**
+     * Quantize vector into codes, values outside of the learned range are clamped.
+     *
+     * @param parameters  offsets and scale of the quantization
+     * @param vector      vector in quantizer space
+     * @param destination array to write codes to
+     * @param offset      index of the first written code
+     */
+    private static void quantize(float[] parameters, float[] vector, byte[] destination,
+                                 int offset) {
+        int dimension = vector.length;
+        float scale = parameters[dimension];
+
+        for (int i = 0; i < dimension; i++) {
+            int code = Math.round((vector[i] - parameters[i]) / scale);
+            destination[offset + i] = (byte) Math.max(-MAX_CODE, Math.min(MAX_CODE, code));
+        }
+    }
+
+    /**
+     * Make the store keep only the codes, unless vectors are retained.
+     */
+    private void dropVectorsIfNeeded() {
+        if (!retainVectors) {
+            dropVectors(new Codec(model, vectorStore.getMetric()), codes);
+            codes = new byte[0];
+        }
+    }
+
+    @Override
+    public synchronized long getMemoryBytes() {
+        return sizeOf(model) + sizeOf(rowCodes(codes));
+    }
+
+    private void ensureCapacity(int capacity) {
+        int dimension = vectorStore.getVectorLength();
+        if (capacity * dimension <= codes.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, Math.max(16, 2 * codes.length / dimension));
+        codes = Arrays.copyOf(codes, newCapacity * dimension);
+    }
+
+    /**
+     * Codec of the store which dropped its vectors, row is decoded as the center of its codes,
+     * scaled to norm of the row for normalized metrics.
+     */
+    private static final class Codec implements RowCodec {
+        private final float[] parameters;
+        private final Metric metric;
+
+        Codec(float[] parameters, Metric metric) {
+            this.parameters = parameters;
+            this.metric = metric;
+        }
+
+        @Override
+        public int codeLength() {
+            return parameters.length - 1;
+        }
+
+        @Override
+        public void encode(float[] vector, double norm, byte[] destination, int offset) {
+            quantize(parameters, normalize(vector.clone(), norm, metric), destination, offset);
+        }
+
+        @Override
+        public void decode(byte[] codes, int offset, double norm, float[] destination) {
+            int dimension = parameters.length - 1;
+            float scale = parameters[dimension];
+            float normScale = metric != Metric.EUCLIDEAN ? (float) norm : 1;
+            for (int i = 0; i < dimension; i++) {
+                destination[i] = (parameters[i] + codes[offset + i] * scale) * normScale;
+            }
+        }
+    }
+}
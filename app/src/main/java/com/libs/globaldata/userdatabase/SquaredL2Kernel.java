@@ -0,0 +1,54 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+/**
+ * Euclidean distance kernel. Score is squared euclidean distance, so square root is calculated
+ * only for found records.
+ */
+class SquaredL2Kernel implements DistanceKernel {
+
+    @Override
+    public double score(float[] vector, int vectorOffset, double vectorNorm,
+                        float[] matrix, int offset, double rowNorm, int length) {
+        return VectorOperations.squaredEuclideanDistance(vector, vectorOffset, matrix, offset, length);
+    }
+
+    @Override
+    public double score(float[] vector, int vectorOffset, double vectorNorm,
+                        short[] matrix, int offset, double rowNorm, int length) {
+        return VectorOperations.squaredEuclideanDistance(vector, vectorOffset, matrix, offset, length);
+    }
+
+    @Override
+    public double boundedScore(float[] query, float[] matrix, int offset, double rowNorm,
+                               int length, double bound) {
+        return VectorOperations.squaredEuclideanDistance(query, matrix, offset, 1, length, bound);
+    }
+
+    @Override
+    public double boundedScore(float[] query, short[] matrix, int offset, double rowNorm,
+                               int length, double bound) {
+        return VectorOperations.squaredEuclideanDistance(query, matrix, offset, 1, length, bound);
+    }
+
+    @Override
+    public float[] prepareQuery(float[] vector, double vectorNorm) {
+        return vector;
+    }
+
+    @Override
+    public double toDistance(double score) {
+        return Math.sqrt(score);
+    }
+
+    @Override
+    public double toScore(double distance) {
+        return distance * distance;
+    }
+
+    @Override
+    public double distance(float[] vector1, float[] vector2) {
+        return VectorOperations.euclideanDistance(vector1, vector2);
+    }
+}
@@ -0,0 +1,77 @@
+package com.libs.globaldata.userdatabase;
+
+/**
+ * Statistics of tiered storage of the database. Searches of the closest user are counted per
+ * searched vector, search is a hit of the tier if the tier holds user within the threshold.
+ */
+public class TierStats {
+    // Number of users kept in memory and in the cold tier file
+    public final int hotUsers;
+    public final int coldUsers;
+
+    // Number of searches, all of which start in the hot tier, and hits of the hot tier
+    public final long searches;
+    public final long hotHits;
+
+    // Number of searches, which fell through to the cold tier, and hits of the cold tier
+    public final long coldScans;
+    public final long coldHits;
+
+    // Time spent searching every tier, in nanoseconds
+    public final long hotNanos;
+    public final long coldNanos;
+
+    // Number of users moved between tiers
+    public final long promotions;
+    public final long demotions;
+
+    TierStats(int hotUsers, int coldUsers, long searches, long hotHits, long coldScans,
+              long coldHits, long hotNanos, long coldNanos, long promotions, long demotions) {
+        this.hotUsers = hotUsers;
+        this.coldUsers = coldUsers;
+        this.searches = searches;
+        this.hotHits = hotHits;
+        this.coldScans = coldScans;
+        this.coldHits = coldHits;
+        this.hotNanos = hotNanos;
+        this.coldNanos = coldNanos;
+        this.promotions = promotions;
+        this.demotions = demotions;
+    }
+
+    /**
+     * Get part of searches answered by the hot tier.
+     *
+     * @return ratio from 0 to 1, 0 if there were no searches
+     */
+    public double getHotHitRatio() {
+        return searches == 0 ? 0 : (double) hotHits / searches;
+    }
+
+    /**
+     * Get part of cold tier scans, which found the user.
+     *
+     * @return ratio from 0 to 1, 0 if there were no scans
+     */
+    public double getColdHitRatio() {
+        return coldScans == 0 ? 0 : (double) coldHits / coldScans;
+    }
+
+    /**
+     * Get mean time of searching the hot tier for one vector.
+     *
+     * @return time in nanoseconds, 0 if there were no searches
+     */
+    public long getMeanHotNanos() {
+        return searches == 0 ? 0 : hotNanos / searches;
+    }
+
+    /**
+     * Get mean time of scanning the cold tier for one vector.
+     *
+     * @return time in nanoseconds, 0 if there were no scans
+     */
+    public long getMeanColdNanos() {
+        return coldScans == 0 ? 0 : coldNanos / coldScans;
+    }
+}
@@ -0,0 +1,150 @@
+package com.libs.globaldata.userdatabase;
+
+import java.util.function.IntPredicate;
+
+/**
+ * Bounded max-heap of (id, distance) pairs kept in primitive arrays. Holds the k smallest
+ * distances offered so far, with the worst of them on top, so that a candidate can be rejected
+ * with a single comparison.
+ */
+class TopKHeap {
+    private final int[] ids;
+    private final float[] distances;
+    private int size;
+
+    // Ids which are never accepted, e.g. removed rows still present in the index, null if none
+    private final IntPredicate excluded;
+
+    TopKHeap(int k) {
+        this(k, null);
+    }
+
+    TopKHeap(int k, IntPredicate excluded) {
+        this.ids = new int[k];
+        this.distances = new float[k];
+        this.size = 0;
+        this.excluded = excluded;
+    }
+
+    /**
+     * Offer candidate to the heap. Candidate is accepted if heap is not full, or if it is
+     * closer than the current worst candidate, and it is not excluded.
+     *
+     * @param id       of the candidate
+     * @param distance of the candidate
+     * @return True if candidate was accepted, False otherwise
+     */
+    boolean offer(int id, float distance) {
+        if (excluded != null && excluded.test(id)) {
+            return false;
+        }
+        if (size < ids.length) {
+            // Append and sift up
+            int child = size++;
+            while (child > 0) {
+                int parent = (child - 1) >>> 1;
+                if (distances[parent] >= distance) {
+                    break;
+                }
+                ids[child] = ids[parent];
+                distances[child] = distances[parent];
+                child = parent;
+            }
+            ids[child] = id;
+            distances[child] = distance;
+            return true;
+        }
+
+        if (size == 0 || distance >= distances[0]) {
+            return false;
+        }
+
+        // Replace the worst candidate and sift down
+        siftDown(id, distance, size);
+        return true;
+    }
+
+    /**
+     * Get distance which a candidate has to beat to be accepted.
+     *
+     * @param maxDistance distance cut-off used while heap is not full
+     * @return current acceptance bound
+     */
+    float bound(float maxDistance) {
+        return isFull() ? Math.min(distances[0], maxDistance) : maxDistance;
+    }
+
+    boolean isFull() {
+        return size == ids.length;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return ids.length;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Offer all candidates of other heap to this heap. Other heap is not modified.
+     *
+     * @param other heap to merge from
+     */
+    void merge(TopKHeap other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.ids[i], other.distances[i]);
+        }
+    }
+
+    /**
+     * Drain the heap into arrays sorted by ascending distance. Heap is empty afterwards.
+     *
+     * @param outIds       array to write ids to, at least size() long
+     * @param outDistances array to write distances to, at least size() long
+     * @return number of written candidates
+     */
+    int drain(int[] outIds, float[] outDistances) {
+        int count = size;
+
+        for (int i = count - 1; i >= 0; i--) {
+            outIds[i] = ids[0];
+            outDistances[i] = distances[0];
+
+            size--;
+            if (size > 0) {
+                siftDown(ids[size], distances[size], size);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Put candidate at the root and restore heap order within first n elements.
+     */
+    private void siftDown(int id, float distance, int n) {
+        int parent = 0;
+        while (true) {
+            int child = 2 * parent + 1;
+            if (child >= n) {
+                break;
+            }
+            if (child + 1 < n && distances[child + 1] > distances[child]) {
+                child++;
+            }
+            if (distances[child] <= distance) {
+                break;
+            }
+            ids[parent] = ids[child];
+            distances[parent] = distances[child];
+            parent = child;
+        }
+        ids[parent] = id;
+        distances[parent] = distance;
+    }
+}
@@ -0,0 +1,437 @@
+package com.libs.globaldata.userdatabase;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Index which model (quantizer, codebooks) is learned from the indexed rows. Model is trained in
+ * the background on a copied sample of rows, once the database holds enough rows, and is trained
+ * again every time the database doubles its size. Until the first training is finished, index
+ * has no model and subclasses fall back to the exact scan.
+ *
+ * Rows are encoded with the new model on the training thread too, into new codes, which replace
+ * the current ones at once. Index stays searchable and rows can be added meanwhile, rows added
+ * during encoding are encoded when the codes are replaced. Index with byte codes may then make
+ * the store drop full-precision vectors, see dropVectors.
+ *
+ * @param <T> type of the trained model
+ * @param <C> type of codes of the rows
+ */
+public abstract class TrainableIndex<T, C> extends SearchIndex {
+    private static final Executor trainingExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "IndexTraining");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final Random random = new Random(42);
+
+    // Trained model, null until the first training is finished
+    T model = null;
+
+    // Number of indexed rows
+    int size = 0;
+
+    // Number of rows at the time of the last training
+    private int trainedSize = 0;
+    private CompletableFuture<Void> training = null;
+
+    // Incremented when index is cleared or model is loaded, so that outdated training is dropped
+    private int generation = 0;
+
+    // Model of the index this one was copied from, used instead of the first training
+    private T inheritedModel = null;
+
+    // Codec given to the store when it dropped full-precision vectors, null while it keeps them
+    private RowCodec storeCodec = null;
+
+    /**
+     * Check if model is trained, so that search uses the index.
+     *
+     * @return True if model is trained, False otherwise
+     */
+    public synchronized boolean isTrained() {
+        return model != null;
+    }
+
+    /**
+     * Train model in the background on sample of current rows and re-index all rows with it.
+     * Searches use previous model until training is finished.
+     *
+     * @return future completed when new model is in use
+     */
+    public synchronized CompletableFuture<Void> train() {
+        int[] rows = sampleRows();
+        int count = rows.length;
+        if (count < minTrainingRows()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Copy training sample, so that database can be modified during training
+        int dimension = vectorStore.getVectorLength();
+        float[] sample = new float[count * dimension];
+        for (int i = 0; i < count; i++) {
+            float[] vector = toQuantizerSpace(rows[i]);
+            System.arraycopy(vector, 0, sample, i * dimension, dimension);
+        }
+        long seed = random.nextLong();
+        int trainingGeneration = generation;
+
+        training = CompletableFuture
+                .supplyAsync(() -> fit(sample, count, dimension, new Random(seed)), trainingExecutor)
+                .thenAccept(newModel -> applyModel(newModel, trainingGeneration));
+        return training;
+    }
+
+    /**
+     * Learn model from the sample. Called on the training thread, must not access index state.
+     *
+     * @param sample    row-major matrix of training vectors, in quantizer space
+     * @param count     number of training vectors
+     * @param dimension length of the vectors
+     * @param random    source of randomness
+     * @return trained model
+     */
+    abstract T fit(float[] sample, int count, int dimension, Random random);
+
+    /**
+     * Encode rows with the model into new codes, which are not used by searches yet. Called on
+     * the training thread without the lock of the index, so it must not access index state other
+     * than parameters set when the index was attached. Rows of the store are read only, they are
+     * not modified once added. Encoded rows were added before the index was notified about them,
+     * under its lock, and the store publishes its grown arrays through volatile fields, so the
+     * training thread sees their values.
+     *
+     * @param newModel model to encode rows with
+     * @param count    number of encoded rows, starting with row 0
+     * @return codes of the rows
+     */
+    abstract C encodeRows(T newModel, int count);
+
+    /**
+     * Replace codes of all rows with codes returned by encodeRows, the model field holds their
+     * model. Rows added since encodeRows was called are encoded here.
+     *
+     * @param newCodes codes of the rows
+     * @param count    number of rows encoded in the codes
+     */
+    abstract void useCodes(C newCodes, int count);
+
+    /**
+     * Write the model, which is not null, and parameters it depends on.
+     *
+     * @param out stream to write to
+     * @throws IOException if stream cannot be written
+     */
+    abstract void writeModel(DataOutputStream out) throws IOException;
+
+    /**
+     * Read model written by writeModel.
+     *
+     * @param in mapped structure
+     * @return read model, null if it does not match parameters of the index
+     */
+    abstract T readModel(ByteBuffer in);
+
+    /**
+     * Write codes of given rows, computed with the model.
+     *
+     * @param out      stream to write to
+     * @param fileRows row ids of the store in order of the database file
+     * @throws IOException if stream cannot be written
+     */
+    abstract void writeCodes(DataOutputStream out, int[] fileRows) throws IOException;
+
+    /**
+     * Read codes of all rows written by writeCodes, the model field holds the read model.
+     *
+     * @param in mapped structure
+     * @return True if codes were read, False if they do not match the model or the rows
+     */
+    abstract boolean readCodes(ByteBuffer in);
+
+    /**
+     * Write the model and codes of the rows, so that neither training nor encoding of the rows
+     * is repeated on load. Index without model is rebuilt instead.
+     */
+    @Override
+    synchronized boolean write(DataOutputStream out, int[] fileRows) throws IOException {
+        if (model == null) {
+            return false;
+        }
+        writeModel(out);
+        writeCodes(out, fileRows);
+        return true;
+    }
+
+    @Override
+    synchronized boolean read(ByteBuffer in) {
+        T loadedModel = readModel(in);
+        if (loadedModel == null) {
+            return false;
+        }
+
+        // Clearing drops running training, read model is trained on the current rows
+        onClear();
+        size = vectorStore.size();
+        trainedSize = size;
+        model = loadedModel;
+        if (!readCodes(in)) {
+            onClear();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get minimal number of rows needed to train the model on demand.
+     */
+    abstract int minTrainingRows();
+
+    /**
+     * Get number of rows at which the model is trained automatically.
+     */
+    abstract int autoTrainingRows();
+
+    /**
+     * Get maximal number of rows used for training.
+     */
+    abstract int maxTrainingRows();
+
+    /**
+     * Start training if database has enough rows and has doubled since the last training.
+     */
+    void trainIfNeeded() {
+        if (inheritedModel != null) {
+            T copiedModel = inheritedModel;
+            inheritedModel = null;
+            useModel(copiedModel);
+            return;
+        }
+        if (isTraining() || storeCodes() != null) {
+            // Store without vectors has only rows decoded with the model to train on
+            return;
+        }
+        if (size >= autoTrainingRows() && size >= 2 * trainedSize) {
+            trainedSize = size;
+            train();
+        }
+    }
+
+    /**
+     * Check if training is running.
+     *
+     * @return True if model is being trained, False otherwise
+     */
+    boolean isTraining() {
+        return training != null && !training.isDone();
+    }
+
+    /**
+     * Use model trained before, e.g. loaded from file, and re-index all rows with it. Model is
+     * trained again only when the database doubles its size, running training is dropped.
+     *
+     * @param loadedModel model to use
+     */
+    synchronized void useModel(T loadedModel) {
+        generation++;
+        trainedSize = size;
+        model = loadedModel;
+        useCodes(encodeRows(loadedModel, size), size);
+    }
+
+    /**
+     * Attach copy of this index to the store. Copy starts with the current model of this index,
+     * so that it is not trained again.
+     *
+     * @param copy        new index of the same type and parameters
+     * @param vectorStore store to index
+     * @return attached copy
+     */
+    <I extends TrainableIndex<T, C>> I attachCopy(I copy, VectorStore vectorStore) {
+        synchronized (this) {
+            ((TrainableIndex<T, C>) copy).inheritedModel = model;
+        }
+        copy.attach(vectorStore);
+        return copy;
+    }
+
+    /**
+     * Drop the model and forget all indexed rows.
+     */
+    void resetTraining() {
+        model = null;
+        storeCodec = null;
+        size = 0;
+        trainedSize = 0;
+        generation++;
+    }
+
+    /**
+     * Copy vector into the space where model works. Normalized metrics work on unit vectors,
+     * so that euclidean distance follows angle between vectors.
+     *
+     * @param vector of n-dimensions
+     * @param norm   l2 norm of the vector
+     * @return copy of the vector in model space
+     */
+    float[] toQuantizerSpace(float[] vector, double norm) {
+        return normalize(vector.clone(), norm, vectorStore.getMetric());
+    }
+
+    /**
+     * Get row's vector in the space where model works.
+     *
+     * @param row id of the row
+     * @return copy of the row in model space
+     */
+    float[] toQuantizerSpace(int row) {
+        return normalize(vectorStore.getVector(row), vectorStore.getNorms()[row],
+                vectorStore.getMetric());
+    }
+
+    /**
+     * Normalize vector in place, if the metric is normalized.
+     *
+     * @param vector of n-dimensions
+     * @param norm   l2 norm of the vector
+     * @param metric metric of the store
+     * @return the vector
+     */
+    static float[] normalize(float[] vector, double norm, Metric metric) {
+        if (metric != Metric.EUCLIDEAN && norm > 0) {
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] /= norm;
+            }
+        }
+        return vector;
+    }
+
+    /**
+     * Convert squared euclidean distance in model space to the distance of the store's metric.
+     *
+     * @param squaredDistance squared euclidean distance in model space
+     * @return distance in store's metric
+     */
+    float toMetricDistance(float squaredDistance) {
+        if (vectorStore.getMetric() == Metric.COSINE) {
+            // Unit vectors: 1 - cos(a, b) = ‖a - b‖² / 2
+            return squaredDistance / 2;
+        }
+        return (float) Math.sqrt(squaredDistance);
+    }
+
+    /**
+     * Make the store drop full-precision vectors and keep rows only as given codes, see
+     * VectorStore.dropVectors. Model is not trained again automatically afterwards.
+     *
+     * @param codec codec of the model in use
+     * @param codes codes of all indexed rows written by the codec
+     */
+    void dropVectors(RowCodec codec, byte[] codes) {
+        storeCodec = codec;
+        vectorStore.dropVectors(codec, codes, size);
+    }
+
+    /**
+     * Get codes of the rows kept by the store, once it dropped full-precision vectors.
+     *
+     * @return codes of the store, null if the store keeps vectors
+     */
+    byte[] storeCodes() {
+        return storeCodec == null ? null : vectorStore.getCodes(storeCodec);
+    }
+
+    /**
+     * Get codes of the rows to search.
+     *
+     * @param indexCodes codes kept by the index
+     * @return codes kept by the store if it dropped full-precision vectors, indexCodes otherwise
+     */
+    byte[] rowCodes(byte[] indexCodes) {
+        byte[] storeCodes = storeCodes();
+        return storeCodes != null ? storeCodes : indexCodes;
+    }
+
+    /**
+     * Create heap of candidates scored with the model, which rejects rows marked as removed, so
+     * that they do not take places of live rows before re-ranking.
+     *
+     * @param capacity number of candidates
+     * @return empty heap
+     */
+    TopKHeap createCandidates(int capacity) {
+        return vectorStore.removedCount() == 0 ? new TopKHeap(capacity)
+                : new TopKHeap(capacity, vectorStore::isRemoved);
+    }
+
+    /**
+     * Offer row to the heap if it is closer than the heap's bound and distance cut-off.
+     */
+    static void offer(TopKHeap heap, int row, float distance, float maxDistance) {
+        if (distance <= heap.bound(maxDistance)) {
+            heap.offer(row, distance);
+        }
+    }
+
+    /**
+     * Encode current rows with newly trained model and use it. Rows are encoded without the lock,
+     * so that the index is searched and modified meanwhile. Called on the training thread.
+     *
+     * @param newModel           trained model
+     * @param trainingGeneration generation of the index when training was started
+     */
+    private void applyModel(T newModel, int trainingGeneration) {
+        int count;
+        synchronized (this) {
+            if (trainingGeneration != generation) {
+                // Index was cleared during training, train again on current rows
+                trainIfNeeded();
+                return;
+            }
+            count = size;
+        }
+
+        C newCodes = encodeRows(newModel, count);
+
+        synchronized (this) {
+            if (trainingGeneration != generation) {
+                trainIfNeeded();
+                return;
+            }
+            model = newModel;
+            useCodes(newCodes, count);
+        }
+    }
+
+    /**
+     * Choose distinct random rows in use, with partial Fisher-Yates shuffle. Removed rows are
+     * left out, so that the model follows current users.
+     *
+     * @return up to maxTrainingRows rows
+     */
+    private int[] sampleRows() {
+        int[] rows = new int[size];
+        int live = 0;
+        for (int row = 0; row < size; row++) {
+            if (!vectorStore.isRemoved(row)) {
+                rows[live++] = row;
+            }
+        }
+
+        int count = Math.min(live, maxTrainingRows());
+        for (int i = 0; i < count; i++) {
+            int j = i + random.nextInt(live - i);
+            int row = rows[i];
+            rows[i] = rows[j];
+            rows[j] = row;
+        }
+        return Arrays.copyOf(rows, count);
+    }
+}
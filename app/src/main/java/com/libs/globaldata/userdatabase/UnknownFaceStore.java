@@ -0,0 +1,320 @@
+package com.libs.globaldata.userdatabase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Store of faces which were not recognized, clustered online, so that frequent visitors can be
+ * enrolled in one action. Leader clustering: face joins the closest cluster within the cluster
+ * distance and corrects its averaged vector, otherwise it starts a new cluster. Clusters are
+ * users of an in-memory database with one embedding each, so the closest cluster is found with
+ * the same search as recognized users.
+ *
+ * Faces are offered by the recognition thread and clustered on a background thread, so that
+ * recognition never waits for clustering. Memory is bounded: faces offered while the queue is
+ * full are dropped, and when all clusters are taken, the cluster with the lowest activity is
+ * evicted. Activity counts faces joined to the cluster and is halved periodically, so that
+ * clusters of past visitors fade out. Every cluster keeps one face crop, of the face
+ * closest to its vector.
+ *
+ * @param <T> type of the face crop, e.g. Bitmap
+ */
+public class UnknownFaceStore<T> {
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    // Activity of clusters is halved every AGING_PERIOD * maxClusters faces
+    private static final int AGING_PERIOD = 16;
+
+    private final int vectorLength;
+    private final Metric metric;
+    private final float clusterDistance;
+    private final int maxClusters;
+    private final IndexType indexType;
+
+    // Clustering thread, faces are rejected when its queue is full
+    private final Executor clusteringExecutor;
+
+    // Vectors of the clusters, clusters are named by their ids
+    private UserDatabase clusterVectors;
+    private final Map<String, Entry<T>> entries = new HashMap<>();
+
+    private int nextId = 0;
+    private long clusteredFaces = 0;
+
+    // Counted without the lock, so that offering face never waits for clustering
+    private final AtomicLong droppedFaces = new AtomicLong();
+
+    /**
+     * Cluster of faces, as reported to operators.
+     */
+    public static class Cluster<T> {
+        public final int id;
+
+        // Number of faces joined to the cluster
+        public final int count;
+
+        // Crop of the face closest to the vector of the cluster
+        public final T crop;
+
+        // Average vector of the faces
+        public final float[] vector;
+
+        // Time of the last face joined, in milliseconds since epoch
+        public final long lastSeen;
+
+        Cluster(int id, int count, T crop, float[] vector, long lastSeen) {
+            this.id = id;
+            this.count = count;
+            this.crop = crop;
+            this.vector = vector;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    private static class Entry<T> {
+        int count = 1;
+        double activity = 1;
+        T crop;
+        float[] cropVector;
+        long lastSeen;
+    }
+
+    public UnknownFaceStore(int vectorLength, Metric metric, float clusterDistance, int maxClusters,
+                            IndexType indexType) {
+        this(vectorLength, metric, clusterDistance, maxClusters, indexType, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param vectorLength    length of face vectors
+     * @param metric          metric of face vectors
+     * @param clusterDistance maximal distance of face to vector of its cluster, e.g. threshold
+     *                        of the database which did not recognize the face
+     * @param maxClusters     maximal number of kept clusters
+     * @param indexType       index used to find the closest cluster
+     * @param queueCapacity   maximal number of faces waiting for clustering
+     */
+    public UnknownFaceStore(int vectorLength, Metric metric, float clusterDistance, int maxClusters,
+                            IndexType indexType, int queueCapacity) {
+        this(vectorLength, metric, clusterDistance, maxClusters, indexType,
+                createClusteringExecutor(queueCapacity));
+    }
+
+    /**
+     * Create store clustering faces on given executor, e.g. on the calling thread in tests.
+     *
+     * @param clusteringExecutor executor of clustering, throws RejectedExecutionException when
+     *                           face has to be dropped
+     */
+    UnknownFaceStore(int vectorLength, Metric metric, float clusterDistance, int maxClusters,
+                     IndexType indexType, Executor clusteringExecutor) {
+        if (maxClusters < 1 || !(clusterDistance >= 0)) {
+            throw new AssertionError("Invalid unknown face store parameters");
+        }
+        this.vectorLength = vectorLength;
+        this.metric = metric;
+        this.clusterDistance = clusterDistance;
+        this.maxClusters = maxClusters;
+        this.indexType = indexType;
+        this.clusterVectors = createClusterVectors();
+        this.clusteringExecutor = clusteringExecutor;
+    }
+
+    /**
+     * Queue face for clustering. Does not block, face is dropped if the queue is full. Face with
+     * infinite or NaN values is dropped too, it would fail on the clustering thread.
+     *
+     * @param vector of n-dimensions, not modified afterwards
+     * @param crop   image of the face
+     * @return True if face was queued, False if it was dropped
+     */
+    public boolean offer(float[] vector, T crop) {
+        if (vector.length != vectorLength) {
+            throw new AssertionError("Incorrect vector length");
+        }
+        for (float value : vector) {
+            if (!Float.isFinite(value)) {
+                droppedFaces.incrementAndGet();
+                return false;
+            }
+        }
+        try {
+            clusteringExecutor.execute(() -> cluster(vector, crop));
+            return true;
+        } catch (RejectedExecutionException e) {
+            droppedFaces.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Get clusters with at least given number of faces.
+     *
+     * @param minCount minimal number of faces
+     * @return clusters sorted by descending number of faces
+     */
+    public synchronized List<Cluster<T>> getClusters(int minCount) {
+        List<Cluster<T>> clusters = new ArrayList<>();
+        for (Map.Entry<String, Entry<T>> entry : entries.entrySet()) {
+            Entry<T> cluster = entry.getValue();
+            if (cluster.count >= minCount) {
+                clusters.add(new Cluster<>(Integer.parseInt(entry.getKey()), cluster.count,
+                        cluster.crop, clusterVectors.getUserVector(entry.getKey()),
+                        cluster.lastSeen));
+            }
+        }
+        clusters.sort((a, b) -> Integer.compare(b.count, a.count));
+        return clusters;
+    }
+
+    /**
+     * Enroll the cluster as a user of the database and remove it from the store. Vector of the
+     * cluster is added with weight of its faces, so that further corrections of the user are
+     * averaged with all of them. User is added without the lock of the store, so that
+     * clustering does not wait for the database, faces joined to the cluster meanwhile are
+     * removed with it.
+     *
+     * @param id       id of the cluster
+     * @param username name of the enrolled user
+     * @param database database of the same model as faces of the store
+     */
+    public void enroll(int id, String username, UserDatabase database) {
+        UserRecord userRecord;
+        synchronized (this) {
+            Entry<T> cluster = entries.get(String.valueOf(id));
+            if (cluster == null) {
+                throw new AssertionError("Cluster not found");
+            }
+            userRecord = new UserRecord(username, clusterVectors.getUserVector(String.valueOf(id)),
+                    cluster.count);
+        }
+        database.addUserRecord(userRecord);
+        remove(id);
+    }
+
+    /**
+     * Remove the cluster, e.g. when operator dismisses it.
+     *
+     * @param id id of the cluster
+     */
+    public synchronized void remove(int id) {
+        if (entries.remove(String.valueOf(id)) != null) {
+            clusterVectors.removeUserRecord(String.valueOf(id));
+        }
+    }
+
+    /**
+     * Remove all clusters. Faces already queued are still clustered.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        clusterVectors = createClusterVectors();
+    }
+
+    /**
+     * Get number of faces clustered since the store was created.
+     */
+    public synchronized long getClusteredFaces() {
+        return clusteredFaces;
+    }
+
+    /**
+     * Get number of faces dropped because the queue was full or their values were not finite.
+     */
+    public long getDroppedFaces() {
+        return droppedFaces.get();
+    }
+
+    /**
+     * Join face to the closest cluster or start a new one. Called on the clustering thread.
+     */
+    private synchronized void cluster(float[] vector, T crop) {
+        long now = System.currentTimeMillis();
+        SearchResult closest = clusterVectors.findKClosestRecords(vector, 1, clusterDistance);
+
+        if (closest.size() > 0) {
+            String id = closest.usernames[0];
+            Entry<T> cluster = entries.get(id);
+            clusterVectors.addUserRecord(new UserRecord(id, vector));
+            cluster.count++;
+            cluster.activity++;
+            cluster.lastSeen = now;
+
+            // Keep crop of the face closest to the corrected vector
+            float[] clusterVector = clusterVectors.getUserVector(id);
+            DistanceKernel kernel = metric.getKernel();
+            if (kernel.distance(vector, clusterVector)
+                    < kernel.distance(cluster.cropVector, clusterVector)) {
+                cluster.crop = crop;
+                cluster.cropVector = vector;
+            }
+        } else {
+            if (entries.size() >= maxClusters) {
+                evict();
+            }
+            String id = String.valueOf(nextId++);
+            Entry<T> cluster = new Entry<>();
+            cluster.crop = crop;
+            cluster.cropVector = vector;
+            cluster.lastSeen = now;
+            entries.put(id, cluster);
+            clusterVectors.addUserRecord(new UserRecord(id, vector));
+        }
+
+        clusteredFaces++;
+        if (clusteredFaces % ((long) AGING_PERIOD * maxClusters) == 0) {
+            for (Entry<T> cluster : entries.values()) {
+                cluster.activity /= 2;
+            }
+        }
+    }
+
+    /**
+     * Remove the cluster with the lowest activity, the least recently seen one of equal ones.
+     */
+    private void evict() {
+        String evicted = null;
+        Entry<T> evictedCluster = null;
+        for (Map.Entry<String, Entry<T>> entry : entries.entrySet()) {
+            Entry<T> cluster = entry.getValue();
+            if (evictedCluster == null || cluster.activity < evictedCluster.activity
+                    || (cluster.activity == evictedCluster.activity
+                    && cluster.lastSeen < evictedCluster.lastSeen)) {
+                evicted = entry.getKey();
+                evictedCluster = cluster;
+            }
+        }
+        entries.remove(evicted);
+        clusterVectors.removeUserRecord(evicted);
+    }
+
+    private static Executor createClusteringExecutor(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new AssertionError("Invalid unknown face store parameters");
+        }
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "UnknownFaces");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Create database of cluster vectors. It is kept only in memory, never saved or loaded.
+     */
+    private UserDatabase createClusterVectors() {
+        UserDatabase database = new UserDatabase("UnknownFaces", vectorLength, metric,
+                clusterDistance, indexType, VectorPrecision.FLOAT32);
+        database.setMaxEmbeddings(1);
+        database.setResultCache(0);
+        return database;
+    }
+}
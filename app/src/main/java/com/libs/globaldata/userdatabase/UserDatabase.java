@@ -3,7 +3,9 @@ package com.libs.globaldata.userdatabase;
 import android.content.Context;
 import android.util.Log;
 
+import com.common.VectorOperations;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.reflect.TypeToken;
 
@@ -12,121 +14,1507 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Type;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.function.BiFunction;
-import java.util.function.Function;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.assertEquals;
 
 public class UserDatabase {
     private final String Tag = "Database";
 
-    // Path of database file
+    // Minimal number of users, for which exact search is split across threads
+    public static final int DEFAULT_PARALLEL_SCAN_ROWS = 8192;
+
+    // Minimal number of rows scanned by one task of parallel search
+    private static final int MIN_LEAF_ROWS = 1024;
+
+    // Maximal number of embeddings stored per user
+    public static final int DEFAULT_MAX_EMBEDDINGS = 5;
+
+    // Number of the closest embeddings of the user averaged by MEAN aggregation
+    private static final int MEAN_TOP_MATCHES = 3;
+
+    // Number of recent searches kept in the result cache
+    public static final int DEFAULT_CACHE_ENTRIES = 64;
+
+    // Relative slack of the result cache validation, covers rounding of distances
+    private static final float CACHE_EPSILON = 1e-6f;
+
+    // Part of removed rows of the vector store, at which the store is compacted
+    public static final float DEFAULT_COMPACTION_RATIO = 0.25f;
+
+    // Minimal number of removed rows which triggers compaction, so that small stores are not
+    // copied after every few removals
+    private static final int MIN_COMPACTION_ROWS = 256;
+
+    private static final Executor compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Compaction");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Path of database file, null when database is kept only in memory
     private final File databaseFile;
 
+    // Path of the file with structure of the search index, saved together with the database
+    private final File indexFile;
+
     // Database identifier, to ensure safe loading
     private final String id;
 
     // Vector target length, to validate database inputs
     private final int vectorLength;
 
-    // Database type stored for json serialization
-    private final Type userDatabaseType;
-    private Map<String, UserRecord> usersRecords;
+    // Database type stored for json serialization
+    private final Type userDatabaseType;
+
+    // Database type of half-precision database file
+    private final Type halfUserDatabaseType;
+
+    // Types of database files storing list of embeddings, several per user
+    private final Type userListType;
+    private final Type halfUserListType;
+
+    // Contiguous storage of all users vectors, replaced with its copy on compaction
+    private VectorStore vectorStore;
+
+    // Enable saving database to internal device's storage
+    // Default is true
+    private boolean saveToFile;
+
+    private final float threshold;
+
+    // Distance to user of another name, within which enrolled vector is reported as duplicate
+    private float duplicateDistance;
+
+    // Approximate search structure, exact scan of the vector store is used when null
+    private SearchIndex searchIndex;
+
+    // Part of removed rows, at which the vector store is compacted
+    private float compactionRatio = DEFAULT_COMPACTION_RATIO;
+
+    // Compacted store waiting for its index, null when compaction is not running
+    private Compaction compaction;
+
+    // Pool running parallel exact search, single thread is used when null
+    private ForkJoinPool scanPool = ForkJoinPool.commonPool();
+
+    // Minimal number of users, for which exact search is run in parallel
+    private int parallelScanRows = DEFAULT_PARALLEL_SCAN_ROWS;
+
+    // Maximal number of embeddings kept per user, further photos are averaged into them
+    private int maxEmbeddings = DEFAULT_MAX_EMBEDDINGS;
+
+    // Way of combining distances of user's embeddings
+    private Aggregation aggregation = Aggregation.MIN;
+
+    // Results of recent searches of the closest user, null when disabled
+    private ResultCache resultCache;
+
+    // Path of the working file of the cold tier, null when database is kept only in memory
+    private final File coldFile;
+
+    // Users moved out of memory by tiered storage, null when tiered storage is disabled. Read
+    // without the lock of the database, so that searches lock it only with tiered storage
+    private volatile ColdStore coldStore;
+
+    // Maximal number of users kept in memory by tiered storage
+    private int maxHotUsers = Integer.MAX_VALUE;
+
+    // Decayed number of matches of every user in memory, in order of last match, tracked only
+    // when tiered storage is enabled
+    private final LinkedHashMap<String, Integer> matchCounts = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Number of matches since match counts were halved
+    private int matchesSinceDecay;
+
+    // Counters of tiered storage, see TierStats
+    private long searches;
+    private long hotHits;
+    private long coldScans;
+    private long coldHits;
+    private long hotNanos;
+    private long coldNanos;
+    private long promotions;
+    private long demotions;
+
+    public UserDatabase(Context context, String databaseName, int vectorLength, boolean loadOnCreation, Metric metric, float threshold) {
+        this(context, databaseName, vectorLength, loadOnCreation, metric, threshold, IndexType.EXACT);
+    }
+
+    public UserDatabase(Context context, String databaseName, int vectorLength, boolean loadOnCreation, Metric metric, float threshold, IndexType indexType) {
+        this(context, databaseName, vectorLength, loadOnCreation, metric, threshold, indexType, VectorPrecision.FLOAT32);
+    }
+
+    public UserDatabase(Context context, String databaseName, int vectorLength, boolean loadOnCreation, Metric metric, float threshold, IndexType indexType, VectorPrecision precision) {
+        this(context.getFilesDir(), databaseName, vectorLength, loadOnCreation, metric, threshold, indexType, precision);
+    }
+
+    /**
+     * Create database which files are kept in given directory, so that it can be used without
+     * Android context, e.g. in JVM unit tests.
+     *
+     * @param directory directory of the database file and files saved together with it
+     */
+    public UserDatabase(File directory, String databaseName, int vectorLength, boolean loadOnCreation, Metric metric, float threshold, IndexType indexType, VectorPrecision precision) {
+        this(directory, databaseName, vectorLength, metric, threshold, indexType, precision);
+        if (directory == null) {
+            throw new AssertionError("Database directory not given, use in-memory database instead");
+        }
+        Log.d(Tag, databaseFile.getAbsolutePath());
+
+        if (loadOnCreation) {
+            // Load Database on creation
+            loadDatabase();
+        }
+    }
+
+    /**
+     * Create database kept only in memory. It has no files, so it is never saved or loaded and
+     * tiered storage is not available, e.g. for temporary sets of vectors.
+     */
+    public UserDatabase(String databaseName, int vectorLength, Metric metric, float threshold, IndexType indexType, VectorPrecision precision) {
+        this(null, databaseName, vectorLength, metric, threshold, indexType, precision);
+    }
+
+    /**
+     * @param directory directory of the database files, null to keep database only in memory
+     */
+    private UserDatabase(File directory, String databaseName, int vectorLength, Metric metric, float threshold, IndexType indexType, VectorPrecision precision) {
+        if (directory != null) {
+            this.databaseFile = new File(directory, Tag + "_" + databaseName + ".json");
+            this.coldFile = new File(directory, Tag + "_" + databaseName + ".cold");
+            this.indexFile = new File(directory, Tag + "_" + databaseName + ".index");
+        } else {
+            this.databaseFile = null;
+            this.coldFile = null;
+            this.indexFile = null;
+        }
+        this.id = databaseName;
+        this.vectorLength = vectorLength;
+        this.userDatabaseType = new TypeToken<Map<String, UserRecord>>() {
+        }.getType();
+        this.halfUserDatabaseType = new TypeToken<Map<String, HalfUserRecord>>() {
+        }.getType();
+        this.userListType = new TypeToken<List<UserRecord>>() {
+        }.getType();
+        this.halfUserListType = new TypeToken<List<HalfUserRecord>>() {
+        }.getType();
+        this.saveToFile = directory != null;
+
+        this.vectorStore = new VectorStore(vectorLength, metric, precision);
+
+        this.threshold = threshold;
+        this.duplicateDistance = threshold;
+        this.resultCache = new ResultCache(DEFAULT_CACHE_ENTRIES, vectorLength);
+
+        setSearchIndex(IndexType.createIndex(indexType));
+    }
+
+    /**
+     * Enable database saving so that after every modification changes are also applied to the
+     * copy from device's storage.
+     */
+    public void enableDatabaseSaving() {
+        if (databaseFile == null) {
+            throw new AssertionError("Database kept only in memory cannot be saved");
+        }
+        saveToFile = true;
+    }
+
+    /**
+     * Disable database saving so that after every modification changes take place only in RAM
+     * and won't be saved to device's storage.
+     */
+    public void disableDatabaseSaving() {
+        saveToFile = false;
+    }
+
+    /**
+     * Set structure used to search the database. Index is built over all current users and kept
+     * up to date on every modification of the database. When the vector store is compacted,
+     * index is replaced with its copy, so current index should be read with getSearchIndex.
+     *
+     * @param searchIndex index to use, null to use exact scan of the whole database
+     */
+    public void setSearchIndex(SearchIndex searchIndex) {
+        compaction = null;
+        if (searchIndex != null) {
+            searchIndex.attach(vectorStore);
+        }
+        this.searchIndex = searchIndex;
+        invalidateCache();
+    }
+
+    /**
+     * Get structure used to search the database.
+     *
+     * @return current index, null if exact scan is used
+     */
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+
+    /**
+     * Set part of removed rows, at which the vector store is compacted. Removed and overwritten
+     * rows are only marked as removed, so that the index does not have to restructure itself.
+     * Once removed rows reach given part of the store, rows in use are copied into a new store
+     * and a new index is built over it in the background. Searches use the current store and
+     * index until the new index is ready.
+     *
+     * @param ratio part of removed rows from 0 to 1, 1 compacts only stores with no row in use
+     */
+    public void setCompactionRatio(float ratio) {
+        if (!(ratio > 0 && ratio <= 1)) {
+            throw new AssertionError("Compaction ratio must be in (0, 1]");
+        }
+        compactionRatio = ratio;
+    }
+
+    /**
+     * Configure parallel exact search. Database is split into row ranges scanned on the pool,
+     * every task keeps its own best records, which are merged at the end. Smaller databases are
+     * scanned on the calling thread, as task overhead would outweigh the gain.
+     *
+     * @param pool    pool to run search on, null to always use the calling thread
+     * @param minRows minimal number of users, for which search is run in parallel
+     */
+    public void setParallelScan(ForkJoinPool pool, int minRows) {
+        if (minRows < 1) {
+            throw new AssertionError("Invalid number of rows");
+        }
+        this.scanPool = pool;
+        this.parallelScanRows = minRows;
+    }
+
+    /**
+     * Set maximal number of embeddings kept per user. Photos added to the user are stored as
+     * separate embeddings up to this number, further photos are averaged into the closest one.
+     * Users keep embeddings stored before the change.
+     *
+     * @param maxEmbeddings maximal number of embeddings, 1 keeps a single averaged vector
+     */
+    public void setMaxEmbeddings(int maxEmbeddings) {
+        if (maxEmbeddings < 1) {
+            throw new AssertionError("Invalid number of embeddings");
+        }
+        this.maxEmbeddings = maxEmbeddings;
+    }
+
+    /**
+     * Set way of combining distances of user's embeddings into distance of the user.
+     *
+     * @param aggregation aggregation used by all searches
+     */
+    public void setAggregation(Aggregation aggregation) {
+        if (aggregation == null) {
+            throw new AssertionError("Null aggregation");
+        }
+        this.aggregation = aggregation;
+        invalidateCache();
+    }
+
+    /**
+     * Configure cache of the closest user searches. In live recognition the same face is
+     * searched in many consecutive frames, with almost identical vectors. Cached result is
+     * used only if one exact distance to the cached user proves, that no other user became
+     * closer, so cache never changes results. Cache is cleared on every modification of users.
+     *
+     * @param entries maximal number of cached searches, 0 disables the cache
+     */
+    public void setResultCache(int entries) {
+        if (entries < 0) {
+            throw new AssertionError("Invalid number of cache entries");
+        }
+        this.resultCache = entries > 0 ? new ResultCache(entries, vectorLength) : null;
+    }
+
+    ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Use given cache of the closest user searches, e.g. to restore cache disabled for
+     * evaluation of the search.
+     *
+     * @param resultCache cache to use, null disables the cache
+     */
+    void useResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+        invalidateCache();
+    }
+
+    /**
+     * Enable tiered storage for galleries too large to be kept in memory. Only given number of
+     * users is kept in the vector store and the search index, as the hot tier. Other users are
+     * moved to the cold tier, a memory-mapped file next to the database file, which is streamed
+     * only when no user of the hot tier is within the threshold. User matched in the cold tier
+     * is promoted to the hot tier, added users join the hot tier too. When the hot tier is full,
+     * users matched least often are demoted. Match counts are halved periodically, so that old
+     * matches fade out.
+     *
+     * Searches of k closest users read both tiers, so that their results do not depend on tiers.
+     * Searches of the closest user move users between tiers, so with tiered storage every search
+     * holds the lock of the database, like its modifications do.
+     *
+     * @param hotUsers maximal number of users kept in memory
+     */
+    public synchronized void enableTieredStorage(int hotUsers) {
+        if (hotUsers < 1) {
+            throw new AssertionError("Invalid number of users");
+        }
+        if (coldFile == null) {
+            throw new AssertionError("Tiered storage needs database file");
+        }
+        if (coldStore == null) {
+            coldStore = new ColdStore(coldFile, vectorLength, vectorStore.getMetric());
+            for (String username : vectorStore.getUsernames()) {
+                matchCounts.put(username, 0);
+            }
+        }
+        this.maxHotUsers = hotUsers;
+        demoteUsers(Collections.emptySet());
+    }
+
+    /**
+     * Disable tiered storage, users of the cold tier are moved back to memory and the cold tier
+     * file is removed.
+     */
+    public synchronized void disableTieredStorage() {
+        if (coldStore == null) {
+            return;
+        }
+        for (String username : coldStore.getUsernames()) {
+            promote(username);
+        }
+        coldStore.close();
+        coldStore = null;
+        maxHotUsers = Integer.MAX_VALUE;
+        matchCounts.clear();
+    }
+
+    /**
+     * Get statistics of tiered storage, counted since the database was created.
+     *
+     * @return current numbers of users and counters of both tiers
+     */
+    public synchronized TierStats getTierStats() {
+        return new TierStats(vectorStore.usersCount(),
+                coldStore == null ? 0 : coldStore.usersCount(), searches, hotHits, coldScans,
+                coldHits, hotNanos, coldNanos, promotions, demotions);
+    }
+
+    /**
+     * Find closest record from the database. Algorithm and time complexity is dependent
+     * on database type.
+     *
+     * @param vector of n-dimensions, for which the closest equivalent wil be found
+     * @return closest UserRecord - null if not found
+     */
+    public UserRecord findClosestRecord(float[] vector) {
+        if (vector == null) {
+            return null;
+        }
+        if (validateVector(vector)) {
+            SearchResult result = findClosest(new float[][]{vector}, Float.MAX_VALUE)[0];
+
+            return result.size() == 0 ? null : getUserRecord(result.usernames[0]);
+        } else {
+            throw new AssertionError("Incorrect vector length");
+        }
+    }
+
+    /**
+     * Find closest record from the database taking threshold into account. Database is scanned
+     * once with threshold as distance cut-off, so rows further than threshold are abandoned
+     * after a part of their values.
+     *
+     * @param vector of n-dimensions, for which the closest equivalent wil be found
+     * @return closest UserRecord - null if not found, record with "?" username if the closest
+     * user is further than threshold
+     */
+    public UserRecord findClosestRecordBelowThreshold(float[] vector) {
+        return toThresholdRecord(findClosest(new float[][]{vector}, threshold)[0]);
+    }
+
+    /**
+     * Find closest record among users of given groups taking threshold into account. Only rows
+     * of the groups are read, from posting lists of the groups, search index is not used.
+     *
+     * @param vector of n-dimensions, for which the closest equivalent wil be found
+     * @param groups mask of groups, see UserRecord.groupMask
+     * @return closest UserRecord - null if not found, record with "?" username if the closest
+     * user of the groups is further than threshold
+     */
+    public UserRecord findClosestRecordBelowThreshold(float[] vector, long groups) {
+        return toThresholdRecord(findKClosestRecords(vector, 1, threshold, groups));
+    }
+
+    /**
+     * Find k closest records from the database.
+     *
+     * @param vector of n-dimensions, for which the closest equivalents will be found
+     * @param k      maximal number of records to find
+     * @return up to k closest users sorted by ascending distance - null if vector is null
+     */
+    public SearchResult findKClosestRecords(float[] vector, int k) {
+        return findKClosestRecords(vector, k, Float.MAX_VALUE);
+    }
+
+    /**
+     * Find k closest records from the database, which are not further than given distance.
+     * Gallery is scanned once, candidates worse than the current k-th one or than the cut-off
+     * are rejected with a single comparison. Every user is reported once, with distance
+     * combined from user's embeddings and id of the closest embedding.
+     *
+     * @param vector      of n-dimensions, for which the closest equivalents will be found
+     * @param k           maximal number of records to find
+     * @param maxDistance distance cut-off, records further away are skipped
+     * @return up to k closest users sorted by ascending distance - null if vector is null
+     */
+    public SearchResult findKClosestRecords(float[] vector, int k, float maxDistance) {
+        if (vector == null) {
+            return null;
+        }
+        if (k <= 0) {
+            throw new AssertionError("k must be positive");
+        }
+        if (validateVector(vector)) {
+            if (coldStore != null) {
+                synchronized (this) {
+                    return searchTiers(vector, k, maxDistance, false, 0);
+                }
+            }
+            return searchTiers(vector, k, maxDistance, false, 0);
+        } else {
+            throw new AssertionError("Incorrect vector length");
+        }
+    }
+
+    /**
+     * Find k closest records among users of given groups, which are not further than given
+     * distance. Only rows of the groups are scanned, read from posting lists of the groups,
+     * search index is not used.
+     *
+     * @param vector      of n-dimensions, for which the closest equivalents will be found
+     * @param k           maximal number of records to find
+     * @param maxDistance distance cut-off, records further away are skipped
+     * @param groups      mask of groups, see UserRecord.groupMask
+     * @return up to k closest users sorted by ascending distance - null if vector is null
+     */
+    public SearchResult findKClosestRecords(float[] vector, int k, float maxDistance, long groups) {
+        if (vector == null) {
+            return null;
+        }
+        if (k <= 0) {
+            throw new AssertionError("k must be positive");
+        }
+        if (validateVector(vector)) {
+            if (coldStore != null) {
+                synchronized (this) {
+                    return searchTiers(vector, k, maxDistance, true, groups);
+                }
+            }
+            return searchTiers(vector, k, maxDistance, true, groups);
+        } else {
+            throw new AssertionError("Incorrect vector length");
+        }
+    }
+
+    /**
+     * Find k closest records in both tiers. Caller holds the lock of the database, if tiered
+     * storage is enabled.
+     *
+     * @param vector      of n-dimensions, for which the closest equivalents will be found
+     * @param k           maximal number of records to find
+     * @param maxDistance distance cut-off, records further away are skipped
+     * @param filter      True to search only users of given groups
+     * @param groups      mask of groups, see UserRecord.groupMask
+     * @return up to k closest users sorted by ascending distance
+     */
+    private SearchResult searchTiers(float[] vector, int k, float maxDistance, boolean filter,
+                                     long groups) {
+        installCompaction();
+        double vectorNorm = VectorOperations.l2Norm(vector);
+        SearchResult result = search(vector, vectorNorm, k, maxDistance, null,
+                filter ? vectorStore.getGroupRows(groups) : null);
+        if (coldStore != null && coldStore.size() > 0) {
+            result = mergeTiers(result, searchCold(vector, vectorNorm, k, maxDistance, null,
+                    filter, groups), k);
+        }
+        return result;
+    }
+
+    /**
+     * Find closest record for every vector of the batch. Gallery is read once for the whole
+     * batch, instead of once per vector.
+     *
+     * @param vectors of n-dimensions, for which the closest equivalents will be found
+     * @return closest UserRecord per vector - null if not found or vector is null
+     */
+    public UserRecord[] findClosestRecords(float[][] vectors) {
+        SearchResult[] results = findClosest(vectors, Float.MAX_VALUE);
+        UserRecord[] records = new UserRecord[results.length];
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null && results[i].size() > 0) {
+                records[i] = getUserRecord(results[i].usernames[0]);
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Find closest record for every vector of the batch taking threshold into account.
+     *
+     * @param vectors of n-dimensions, for which the closest equivalents will be found
+     * @return closest UserRecord per vector - null if not found or vector is null, record with
+     * "?" username if the closest user is further than threshold
+     */
+    public UserRecord[] findClosestRecordsBelowThreshold(float[][] vectors) {
+        SearchResult[] results = findClosest(vectors, threshold);
+        UserRecord[] records = new UserRecord[results.length];
+
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null || isEmpty()) {
+                continue;
+            }
+            if (results[i].size() > 0) {
+                records[i] = getUserRecord(results[i].usernames[0]);
+            } else {
+                records[i] = new UserRecord("?", null);
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Find k closest records for every vector of the batch, which are not further than given
+     * distance. Exact search splits gallery into tiles, every tile is scored against all vectors
+     * while it is in cache, so the gallery is streamed from memory once per batch.
+     *
+     * @param vectors     of n-dimensions, for which the closest equivalents will be found
+     * @param k           maximal number of records to find per vector
+     * @param maxDistance distance cut-off, records further away are skipped
+     * @return up to k closest users sorted by ascending distance per vector - null for null vector
+     */
+    public SearchResult[] findKClosestRecords(float[][] vectors, int k, float maxDistance) {
+        if (vectors == null) {
+            return null;
+        }
+        if (k <= 0) {
+            throw new AssertionError("k must be positive");
+        }
+
+        if (coldStore != null) {
+            synchronized (this) {
+                return searchTiers(vectors, k, maxDistance);
+            }
+        }
+        return searchTiers(vectors, k, maxDistance);
+    }
+
+    /**
+     * Find k closest records in both tiers for every vector of the batch. Caller holds the lock
+     * of the database, if tiered storage is enabled.
+     *
+     * @param vectors     of n-dimensions, for which the closest equivalents will be found
+     * @param k           maximal number of records to find per vector
+     * @param maxDistance distance cut-off, records further away are skipped
+     * @return up to k closest users sorted by ascending distance per vector - null for null vector
+     */
+    private SearchResult[] searchTiers(float[][] vectors, int k, float maxDistance) {
+        installCompaction();
+        SearchResult[] results = searchHot(vectors, k, maxDistance);
+        if (coldStore == null || coldStore.size() == 0) {
+            return results;
+        }
+
+        double[] norms = new double[vectors.length];
+        TopKHeap[] heaps = new TopKHeap[vectors.length];
+        for (int i = 0; i < vectors.length; i++) {
+            if (vectors[i] != null) {
+                norms[i] = VectorOperations.l2Norm(vectors[i]);
+                heaps[i] = new TopKHeap(candidateRows(coldStore, k));
+            }
+        }
+        coldStore.scan(vectors, norms, heaps, maxDistance);
+        for (int i = 0; i < vectors.length; i++) {
+            if (heaps[i] != null) {
+                results[i] = mergeTiers(results[i], searchCold(vectors[i], norms[i], k,
+                        maxDistance, heaps[i], false, 0), k);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Set distance used by duplicate detection on enrollment.
+     *
+     * @param distance vector closer than given distance to user of another name is a duplicate,
+     *                 threshold of the database by default, so that the vector would be
+     *                 recognized as the other user
+     */
+    public void setDuplicateDistance(float distance) {
+        if (!(distance >= 0)) {
+            throw new AssertionError("Invalid duplicate distance");
+        }
+        this.duplicateDistance = distance;
+    }
+
+    /**
+     * Find user of another name, which is within duplicate distance of the vector about to be
+     * enrolled, so that the same person is not enrolled under two names.
+     *
+     * @param username name under which the vector is enrolled
+     * @param vector   of n-dimensions
+     * @return name of the closest such user, null if there is none
+     */
+    public String findDuplicateIdentity(String username, float[] vector) {
+        return findDuplicateIdentities(new String[]{username}, new float[][]{vector})[0];
+    }
+
+    /**
+     * Find duplicates for a batch of vectors about to be enrolled, e.g. by bulk import.
+     *
+     * @param usernames names under which the vectors are enrolled
+     * @param vectors   of n-dimensions
+     * @return name of the closest user of another name within duplicate distance per vector,
+     * null if there is none and the vector can be enrolled
+     * @see #findDuplicateIdentities(UserDatabase[], String[], float[][][])
+     */
+    public String[] findDuplicateIdentities(String[] usernames, float[][] vectors) {
+        return findDuplicateIdentities(new UserDatabase[]{this}, usernames, new float[][][]{vectors});
+    }
+
+    /**
+     * Find duplicates for a batch of faces about to be enrolled to databases of several models.
+     * Every database is searched once for all faces, with the batched search of k closest
+     * users. Faces are then accepted in order: face is a duplicate, if any database finds user
+     * of another name within its duplicate distance, among its users or among faces of the
+     * batch accepted before. Duplicates are not enrolled, so later faces are not compared with
+     * them, and all databases agree on which faces are accepted.
+     *
+     * @param databases databases of the models
+     * @param usernames names under which the faces are enrolled
+     * @param vectors   vectors of the faces per database, vectors[d][i] is face i of database d
+     * @return name of the closest user of another name per face, found by the first database
+     * which finds one, null if face can be enrolled
+     */
+    public static String[] findDuplicateIdentities(UserDatabase[] databases, String[] usernames,
+                                                   float[][][] vectors) {
+        if (databases.length != vectors.length) {
+            throw new AssertionError("Number of databases and vectors differs");
+        }
+        String[] duplicates = new String[usernames.length];
+        if (usernames.length == 0) {
+            return duplicates;
+        }
+
+        // Closest user of another name of every database, every user is reported once, so one
+        // of two closest users has another name
+        SearchResult[][] results = new SearchResult[databases.length][];
+        for (int d = 0; d < databases.length; d++) {
+            if (usernames.length != vectors[d].length) {
+                throw new AssertionError("Number of usernames and vectors differs");
+            }
+            for (float[] vector : vectors[d]) {
+                if (!databases[d].validateVector(vector)) {
+                    throw new AssertionError("Incorrect vector");
+                }
+            }
+            results[d] = databases[d].findKClosestRecords(vectors[d], 2,
+                    databases[d].duplicateDistance);
+        }
+
+        int[] accepted = new int[usernames.length];
+        int acceptedCount = 0;
+        for (int i = 0; i < usernames.length; i++) {
+            for (int d = 0; d < databases.length && duplicates[i] == null; d++) {
+                duplicates[i] = databases[d].findDuplicate(usernames, vectors[d], i, results[d][i],
+                        accepted, acceptedCount);
+            }
+            if (duplicates[i] == null) {
+                accepted[acceptedCount++] = i;
+            }
+        }
+        return duplicates;
+    }
+
+    /**
+     * Find the closest user of another name within duplicate distance of the face of a batch.
+     *
+     * @param usernames     names of the faces of the batch
+     * @param vectors       vectors of the faces of the batch
+     * @param face          index of the checked face
+     * @param result        closest users of the database to the face
+     * @param accepted      indexes of faces accepted before
+     * @param acceptedCount number of faces accepted before
+     * @return name of the closest such user or face, null if there is none
+     */
+    private String findDuplicate(String[] usernames, float[][] vectors, int face,
+                                 SearchResult result, int[] accepted, int acceptedCount) {
+        String duplicate = null;
+        double closestDistance = Double.MAX_VALUE;
+        for (int j = 0; j < result.size(); j++) {
+            if (!result.usernames[j].equals(usernames[face])) {
+                duplicate = result.usernames[j];
+                closestDistance = result.distances[j];
+                break;
+            }
+        }
+
+        DistanceKernel kernel = vectorStore.getMetric().getKernel();
+        for (int j = 0; j < acceptedCount; j++) {
+            int other = accepted[j];
+            if (usernames[other].equals(usernames[face])) {
+                continue;
+            }
+            double distance = kernel.distance(vectors[face], vectors[other]);
+            if (distance <= duplicateDistance && distance < closestDistance) {
+                duplicate = usernames[other];
+                closestDistance = distance;
+            }
+        }
+        return duplicate;
+    }
+
+    /**
+     * Find k closest records of the hot tier for every vector of the batch.
+     *
+     * @param vectors     of n-dimensions, for which the closest equivalents will be found
+     * @param k           maximal number of records to find per vector
+     * @param maxDistance distance cut-off, records further away are skipped
+     * @return up to k closest users sorted by ascending distance per vector - null for null vector
+     */
+    private SearchResult[] searchHot(float[][] vectors, int k, float maxDistance) {
+        double[] norms = new double[vectors.length];
+        TopKHeap[] heaps = new TopKHeap[vectors.length];
+        for (int i = 0; i < vectors.length; i++) {
+            if (vectors[i] == null) {
+                continue;
+            }
+            if (!validateVector(vectors[i])) {
+                throw new AssertionError("Incorrect vector length");
+            }
+            norms[i] = VectorOperations.l2Norm(vectors[i]);
+            heaps[i] = createHeap(candidateRows(vectorStore, k));
+        }
+
+        if (searchIndex != null) {
+            // Index structures are searched per vector
+            for (int i = 0; i < vectors.length; i++) {
+                if (heaps[i] != null) {
+                    searchIndex.search(vectors[i], norms[i], heaps[i], maxDistance);
+                }
+            }
+        } else {
+            scanExact(vectors, norms, heaps, maxDistance);
+        }
+
+        SearchResult[] results = new SearchResult[vectors.length];
+        for (int i = 0; i < vectors.length; i++) {
+            if (heaps[i] != null) {
+                results[i] = search(vectors[i], norms[i], k, maxDistance, heaps[i], null);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Find the closest user of every vector. With tiered storage the hot tier is searched first,
+     * cold tier is scanned only for vectors without user within the threshold in the hot tier,
+     * all of them in one pass over the file. Users found in the cold tier within the threshold
+     * are promoted to the hot tier, under the lock of the database.
+     *
+     * @param vectors     of n-dimensions, null vectors are skipped
+     * @param maxDistance distance cut-off, users further away are skipped
+     * @return the closest user per vector - null for null vector
+     */
+    private SearchResult[] findClosest(float[][] vectors, float maxDistance) {
+        if (coldStore != null) {
+            synchronized (this) {
+                return findClosestInTiers(vectors, maxDistance);
+            }
+        }
+        return findClosestInTiers(vectors, maxDistance);
+    }
+
+    /**
+     * Find the closest user of every vector in both tiers and move matched users between tiers.
+     * Caller holds the lock of the database, if tiered storage is enabled.
+     *
+     * @param vectors     of n-dimensions, null vectors are skipped
+     * @param maxDistance distance cut-off, users further away are skipped
+     * @return the closest user per vector - null for null vector
+     */
+    private SearchResult[] findClosestInTiers(float[][] vectors, float maxDistance) {
+        installCompaction();
+        if (coldStore == null) {
+            return findClosestHot(vectors, maxDistance);
+        }
+
+        long start = System.nanoTime();
+        SearchResult[] results = findClosestHot(vectors, maxDistance);
+        hotNanos += System.nanoTime() - start;
+
+        float[][] missed = new float[vectors.length][];
+        double[] norms = new double[vectors.length];
+        TopKHeap[] heaps = new TopKHeap[vectors.length];
+        int misses = 0;
+        for (int i = 0; i < vectors.length; i++) {
+            if (results[i] == null) {
+                continue;
+            }
+            searches++;
+            if (results[i].size() > 0 && results[i].distances[0] <= threshold) {
+                hotHits++;
+                recordMatch(results[i].usernames[0]);
+            } else if (coldStore.size() > 0) {
+                missed[i] = vectors[i];
+                norms[i] = VectorOperations.l2Norm(vectors[i]);
+                heaps[i] = new TopKHeap(candidateRows(coldStore, 1));
+                misses++;
+            }
+        }
+        if (misses == 0) {
+            return results;
+        }
+
+        start = System.nanoTime();
+        coldStore.scan(missed, norms, heaps, maxDistance);
+        SearchResult[] found = new SearchResult[vectors.length];
+        for (int i = 0; i < vectors.length; i++) {
+            if (heaps[i] != null) {
+                found[i] = searchCold(missed[i], norms[i], 1, maxDistance, heaps[i], false, 0);
+            }
+        }
+        coldNanos += System.nanoTime() - start;
+        coldScans += misses;
+
+        Set<String> promoted = new HashSet<>();
+        for (int i = 0; i < vectors.length; i++) {
+            SearchResult cold = found[i];
+            if (cold == null || cold.size() == 0
+                    || (results[i].size() > 0 && results[i].distances[0] <= cold.distances[0])) {
+                continue;
+            }
+            results[i] = mergeTiers(results[i], cold, 1);
+            if (cold.distances[0] <= threshold) {
+                coldHits++;
+                String username = cold.usernames[0];
+                if (promoted.add(username)) {
+                    promote(username);
+                }
+                recordMatch(username);
+            }
+        }
+        demoteUsers(promoted);
+        compactIfNeeded();
+
+        return results;
+    }
+
+    /**
+     * Find the closest user of the hot tier for every vector, vectors close to recently searched
+     * ones are answered from the result cache. Remaining vectors are searched for two closest
+     * users, distance of the second one is cached as lower bound of distances of other users.
+     *
+     * @param vectors     of n-dimensions, null vectors are skipped
+     * @param maxDistance distance cut-off, users further away are skipped
+     * @return the closest user per vector - null for null vector
+     */
+    private SearchResult[] findClosestHot(float[][] vectors, float maxDistance) {
+        if (resultCache == null || (aggregation == Aggregation.MEAN
+                && vectorStore.getMetric() == Metric.COSINE)) {
+            // Mean of cosine distances does not satisfy the triangle inequality
+            return searchHot(vectors, 1, maxDistance);
+        }
+
+        SearchResult[] results = new SearchResult[vectors.length];
+        float[][] missed = new float[vectors.length][];
+        boolean anyMissed = false;
+        for (int i = 0; i < vectors.length; i++) {
+            if (vectors[i] == null) {
+                continue;
+            }
+            if (!validateVector(vectors[i])) {
+                throw new AssertionError("Incorrect vector length");
+            }
+            results[i] = findCached(vectors[i], VectorOperations.l2Norm(vectors[i]), maxDistance);
+            if (results[i] == null) {
+                missed[i] = vectors[i];
+                anyMissed = true;
+            }
+        }
+        if (!anyMissed) {
+            return results;
+        }
+
+        // Only complete exact search proves, that users not found are further than the cut-off
+        boolean complete = (searchIndex == null || searchIndex instanceof VpTreeIndex)
+                && vectorStore.removedCount() == 0;
+        SearchResult[] found = searchHot(missed, 2, maxDistance);
+        for (int i = 0; i < vectors.length; i++) {
+            SearchResult result = found[i];
+            if (result == null) {
+                continue;
+            }
+            if (result.size() > 1) {
+                resultCache.put(missed[i], result.usernames[0], result.distances[1]);
+            } else if (result.size() == 1 && complete) {
+                resultCache.put(missed[i], result.usernames[0], maxDistance);
+            }
+            int count = Math.min(result.size(), 1);
+            results[i] = new SearchResult(Arrays.copyOf(result.ids, count),
+                    Arrays.copyOf(result.distances, count), Arrays.copyOf(result.usernames, count));
+        }
+
+        return results;
+    }
+
+    /**
+     * Answer search of the closest user from the result cache. Cached user is still the closest
+     * one if its distance grown by the distance between searched and cached vector does not
+     * exceed the cached distance of other users, as by the triangle inequality distance of every
+     * user to the searched vector differs from distance to the cached vector at most by
+     * the distance between the vectors.
+     *
+     * @param vector      of n-dimensions
+     * @param vectorNorm  l2 norm of the vector
+     * @param maxDistance distance cut-off
+     * @return the closest user, null if cache does not hold valid result
+     */
+    private SearchResult findCached(float[] vector, double vectorNorm, float maxDistance) {
+        for (ResultCache.CachedResult entry : resultCache.find(vector)) {
+            if (entry == null) {
+                continue;
+            }
+            int[] rows = vectorStore.getRows(entry.username);
+            if (rows == null) {
+                continue;
+            }
+
+            float[] rowDistances = new float[rows.length];
+            int closest = 0;
+            for (int j = 0; j < rows.length; j++) {
+                rowDistances[j] = (float) vectorStore.distance(vector, vectorNorm, rows[j]);
+                if (rowDistances[j] < rowDistances[closest]) {
+                    closest = j;
+                }
+            }
+            float distance = aggregation == Aggregation.MEAN
+                    ? meanDistance(rowDistances) : rowDistances[closest];
+            double shift = vectorStore.getMetric().getKernel().distance(vector, entry.vector);
+
+            if (toMetricDistance(distance) + toMetricDistance(shift)
+                    <= toMetricDistance(entry.otherDistance) * (1 - CACHE_EPSILON)) {
+                if (distance > maxDistance) {
+                    return new SearchResult(new int[0], new float[0], new String[0]);
+                }
+                return new SearchResult(new int[]{rows[closest]}, new float[]{distance},
+                        new String[]{entry.username});
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Convert distance to distance satisfying the triangle inequality. Cosine distance of unit
+     * vectors is half of their squared euclidean distance.
+     *
+     * @param distance in database's metric
+     * @return distance in metric space
+     */
+    private double toMetricDistance(double distance) {
+        if (vectorStore.getMetric() == Metric.COSINE) {
+            return Math.sqrt(Math.max(0, 2 * distance));
+        }
+        return distance;
+    }
+
+    /**
+     * Clear the result cache, called on every modification of users.
+     */
+    private void invalidateCache() {
+        if (resultCache != null) {
+            resultCache.clear();
+        }
+    }
+
+    /**
+     * Scan all rows of the vector store for given vectors. Large databases are split into row
+     * ranges scanned in parallel on the scan pool.
+     *
+     * @param vectors     of n-dimensions, null vectors are skipped
+     * @param vectorNorms l2 norms of the vectors
+     * @param heaps       heap per vector, collecting the closest rows
+     * @param maxDistance distance cut-off, rows further away are skipped
+     */
+    private void scanExact(float[][] vectors, double[] vectorNorms, TopKHeap[] heaps, float maxDistance) {
+        int size = vectorStore.size();
+        ForkJoinPool pool = scanPool;
+
+        if (pool == null || size < parallelScanRows || pool.getParallelism() < 2) {
+            vectorStore.scan(vectors, vectorNorms, heaps, 0, size, maxDistance);
+            return;
+        }
+
+        // Few tasks per thread, so that threads which finish early can steal remaining work
+        int leafRows = Math.max(MIN_LEAF_ROWS, size / (4 * pool.getParallelism()));
+        int k = 1;
+        for (TopKHeap heap : heaps) {
+            if (heap != null) {
+                k = heap.capacity();
+            }
+        }
+
+        TopKHeap[] found = pool.invoke(new ScanTask(vectorStore, vectors, vectorNorms, k,
+                maxDistance, 0, size, leafRows));
+        for (int i = 0; i < heaps.length; i++) {
+            if (heaps[i] != null) {
+                heaps[i].merge(found[i]);
+            }
+        }
+    }
+
+    /**
+     * Find k closest users. Rows are collected into the heap and combined into users, if
+     * collected rows turn out to be too few to decide about k closest users, search is repeated
+     * with larger heap.
+     *
+     * @param vector      of n-dimensions, for which the closest equivalents will be found
+     * @param vectorNorm  l2 norm of the vector
+     * @param k           maximal number of users to find
+     * @param maxDistance distance cut-off, users further away are skipped
+     * @param heap        heap already filled with rows of candidateRows(vectorStore, k)
+     *                    capacity, null to search the database
+     * @param rows        ids of rows to scan, null to search all rows
+     * @return up to k closest users sorted by ascending distance
+     */
+    private SearchResult search(float[] vector, double vectorNorm, int k, float maxDistance,
+                                TopKHeap heap, int[] rows) {
+        int capacity = candidateRows(vectorStore, k);
+
+        while (true) {
+            if (heap == null) {
+                heap = createHeap(capacity);
+                if (rows != null) {
+                    vectorStore.scan(vector, vectorNorm, heap, rows, maxDistance);
+                } else if (searchIndex != null) {
+                    searchIndex.search(vector, vectorNorm, heap, maxDistance);
+                } else {
+                    scanExact(new float[][]{vector}, new double[]{vectorNorm},
+                            new TopKHeap[]{heap}, maxDistance);
+                }
+            }
+
+            SearchResult result = toSearchResult(vectorStore, heap, vector, vectorNorm, k,
+                    maxDistance);
+            if (result != null) {
+                return result;
+            }
+            capacity = Math.min(capacity * 4, vectorStore.size());
+            heap = null;
+        }
+    }
+
+    /**
+     * Create heap collecting rows of the vector store. Removed rows stay in the index until
+     * the store is compacted, so the heap rejects them.
+     *
+     * @param capacity number of rows to collect
+     * @return empty heap
+     */
+    private TopKHeap createHeap(int capacity) {
+        return vectorStore.removedCount() == 0 ? new TopKHeap(capacity)
+                : new TopKHeap(capacity, vectorStore::isRemoved);
+    }
+
+    /**
+     * Find k closest users of the cold tier, like search of the hot tier. Rows are streamed from
+     * the cold tier file, search is repeated with larger heap if needed.
+     *
+     * @param vector      of n-dimensions, for which the closest equivalents will be found
+     * @param vectorNorm  l2 norm of the vector
+     * @param k           maximal number of users to find
+     * @param maxDistance distance cut-off, users further away are skipped
+     * @param heap        heap already filled with rows of candidateRows(coldStore, k) capacity,
+     *                    null to scan the cold tier
+     * @param filter      True to scan only users of given groups
+     * @param groups      mask of groups, see UserRecord.groupMask
+     * @return up to k closest users sorted by ascending distance
+     */
+    private SearchResult searchCold(float[] vector, double vectorNorm, int k, float maxDistance,
+                                    TopKHeap heap, boolean filter, long groups) {
+        int capacity = candidateRows(coldStore, k);
+
+        while (true) {
+            if (heap == null) {
+                heap = new TopKHeap(capacity);
+                if (filter) {
+                    coldStore.scan(vector, vectorNorm, heap, maxDistance, groups);
+                } else {
+                    coldStore.scan(new float[][]{vector}, new double[]{vectorNorm},
+                            new TopKHeap[]{heap}, maxDistance);
+                }
+            }
+
+            SearchResult result = toSearchResult(coldStore, heap, vector, vectorNorm, k,
+                    maxDistance);
+            if (result != null) {
+                return result;
+            }
+            capacity = Math.min(capacity * 4, coldStore.size());
+            heap = null;
+        }
+    }
+
+    /**
+     * Merge results of the hot and the cold tier. Every user belongs to one of the tiers, so
+     * results do not share users.
+     *
+     * @param hot  result of the hot tier
+     * @param cold result of the cold tier
+     * @param k    maximal number of users to report
+     * @return up to k closest users of both results, with -1 row ids of cold tier users
+     */
+    private static SearchResult mergeTiers(SearchResult hot, SearchResult cold, int k) {
+        int count = Math.min(hot.size() + cold.size(), k);
+        int[] ids = new int[count];
+        float[] distances = new float[count];
+        String[] usernames = new String[count];
+
+        int h = 0;
+        int c = 0;
+        for (int i = 0; i < count; i++) {
+            if (c == cold.size() || (h < hot.size() && hot.distances[h] <= cold.distances[c])) {
+                ids[i] = hot.ids[h];
+                distances[i] = hot.distances[h];
+                usernames[i] = hot.usernames[h];
+                h++;
+            } else {
+                ids[i] = -1;
+                distances[i] = cold.distances[c];
+                usernames[i] = cold.usernames[c];
+                c++;
+            }
+        }
+
+        return new SearchResult(ids, distances, usernames);
+    }
+
+    /**
+     * Move user from the cold tier to the vector store and the index.
+     *
+     * @param username user of the cold tier
+     */
+    private void promote(String username) {
+        for (int row : coldStore.getRows(username)) {
+            int hotRow = vectorStore.add(username, coldStore.getVector(row),
+                    coldStore.getWeight(row), coldStore.getGroups(row));
+            if (searchIndex != null) {
+                searchIndex.onAdd(hotRow);
+            }
+        }
+        coldStore.removeUser(username);
+        matchCounts.put(username, 0);
+        invalidateCache();
+        promotions++;
+    }
+
+    /**
+     * Move user from the vector store and the index to the cold tier.
+     *
+     * @param username user of the hot tier
+     */
+    private void demote(String username) {
+        int[] rows = vectorStore.getRows(username);
+        float[][] vectors = new float[rows.length][];
+        for (int i = 0; i < rows.length; i++) {
+            vectors[i] = vectorStore.getVector(rows[i]);
+        }
+        int[] weights = new int[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            weights[i] = vectorStore.getWeight(rows[i]);
+        }
+        long groups = vectorStore.getGroups(rows[0]);
+
+        removeRow(username);
+        for (int i = 0; i < rows.length; i++) {
+            coldStore.add(username, vectors[i], weights[i], groups);
+        }
+        demotions++;
+    }
+
+    /**
+     * Demote users with the lowest match counts, until the hot tier fits its limit. Among users
+     * with equal counts, users matched least recently are demoted first.
+     *
+     * @param keep users, which are not demoted
+     */
+    private void demoteUsers(Set<String> keep) {
+        int excess = vectorStore.usersCount() - maxHotUsers;
+        if (coldStore == null || excess <= 0) {
+            return;
+        }
 
-    // Enable saving database to internal device's storage
-    // Default is true
-    private boolean saveToFile;
+        // Sort by count, then by position in order of last match, which breaks ties
+        String[] usernames = new String[matchCounts.size()];
+        long[] order = new long[usernames.length];
+        int index = 0;
+        for (Map.Entry<String, Integer> entry : matchCounts.entrySet()) {
+            usernames[index] = entry.getKey();
+            order[index] = ((long) entry.getValue() << 32) | index;
+            index++;
+        }
+        Arrays.sort(order);
 
-    private final BiFunction<float[], float[], Double> distanceFunction;
-    private final Function<float[], float[]> normalizationFuction;
-    private final float threshold;
+        for (int i = 0; i < order.length && excess > 0; i++) {
+            String username = usernames[(int) order[i]];
+            if (!keep.contains(username)) {
+                demote(username);
+                excess--;
+            }
+        }
+    }
 
-    public UserDatabase(Context context, String databaseName, int vectorLength, boolean loadOnCreation, Metric metric, float threshold) {
-        this.databaseFile = new File(context.getFilesDir(), Tag + "_" + databaseName + ".json");
-        Log.d(Tag, databaseFile.getAbsolutePath());
-        this.id = databaseName;
-        this.vectorLength = vectorLength;
-        this.userDatabaseType = new TypeToken<Map<String, UserRecord>>() {
-        }.getType();
-        this.saveToFile = true;
+    /**
+     * Count match of the user of the hot tier. All counts are halved after as many matches as
+     * there are users in the hot tier.
+     *
+     * @param username matched user
+     */
+    private void recordMatch(String username) {
+        Integer count = matchCounts.get(username);
+        matchCounts.put(username, count == null ? 1 : count + 1);
 
-        this.usersRecords = new HashMap<String, UserRecord>();
+        if (++matchesSinceDecay >= matchCounts.size()) {
+            matchesSinceDecay = 0;
+            matchCounts.replaceAll((user, userCount) -> userCount / 2);
+        }
+    }
 
-        this.distanceFunction = Metric.getDistanceFunction(metric);
-        this.normalizationFuction = Metric.getNormalizationFunction(metric);
-        this.threshold = threshold;
+    /**
+     * Move user to the hot tier before modification, if user is in the cold tier.
+     *
+     * @param username of the user
+     */
+    private void promoteIfCold(String username) {
+        if (coldStore != null && coldStore.getRows(username) != null) {
+            promote(username);
+        }
+    }
 
-        if (loadOnCreation) {
-            // Load Database on creation
-            loadDatabase();
+    /**
+     * Count addition to the user of the hot tier like its match and demote other users, if
+     * the hot tier is full.
+     *
+     * @param username of the added user
+     */
+    private void admitToHotTier(String username) {
+        if (coldStore != null) {
+            recordMatch(username);
+            demoteUsers(Collections.singleton(username));
         }
     }
 
     /**
-     * Enable database saving so that after every modification changes are also applied to the
-     * copy from device's storage.
+     * Get tables holding users, the vector store and the cold tier if tiered storage is enabled.
+     *
+     * @return tables of rows
      */
-    public void enableDatabaseSaving() {
-        saveToFile = true;
+    private RowTable[] getTables() {
+        return coldStore == null ? new RowTable[]{vectorStore}
+                : new RowTable[]{vectorStore, coldStore};
     }
 
     /**
-     * Disable database saving so that after every modification changes take place only in RAM
-     * and won't be saved to device's storage.
+     * Get table holding rows of the user.
+     *
+     * @param username of the user
+     * @return the vector store or the cold tier, null if user does not exist
      */
-    public void disableDatabaseSaving() {
-        saveToFile = false;
+    private RowTable getTable(String username) {
+        for (RowTable table : getTables()) {
+            if (table.getRows(username) != null) {
+                return table;
+            }
+        }
+        return null;
     }
 
     /**
-     * Find closest record from the database. Algorithm and time complexity is dependent
-     * on database type.
+     * Check if there are no users in any of tiers.
      *
-     * @param vector of n-dimensions, for which the closest equivalent wil be found
-     * @return closest UserRecord - null if not found
+     * @return True if database is empty
      */
-    public UserRecord findClosestRecord(float[] vector) {
-        if (vector == null) {
+    private boolean isEmpty() {
+        return vectorStore.usersCount() == 0 && (coldStore == null || coldStore.size() == 0);
+    }
+
+    /**
+     * Convert result of threshold search to the record of the closest user.
+     *
+     * @param result of search with threshold as distance cut-off
+     * @return closest UserRecord - null if vector was null or database is empty, record with
+     * "?" username if no user is within the threshold
+     */
+    private UserRecord toThresholdRecord(SearchResult result) {
+        if (result == null || isEmpty()) {
             return null;
         }
-        if (validateVector(vector)) {
-            UserRecord closestRecord = null;
-            double minDist = Double.MAX_VALUE;
+        if (result.size() > 0) {
+            return getUserRecord(result.usernames[0]);
+        }
+        return new UserRecord("?", null);
+    }
+
+    /**
+     * Get number of rows, which have to be found to report k closest users. Rows closer than
+     * the closest row of the k-th user belong to at most k - 1 other users.
+     *
+     * @param table searched table of rows
+     * @param k     number of users to report
+     * @return number of rows to collect
+     */
+    private int candidateRows(RowTable table, int k) {
+        int userRows = table.getMaxUserRows();
+        int rows = aggregation == Aggregation.MIN ? (k - 1) * userRows + 1 : k * userRows;
+        return Math.min(rows, Math.max(table.size(), 1));
+    }
+
+    /**
+     * Drain heap of found rows into SearchResult, reporting every user once. Mean distance of
+     * the user is not lower than distance of its closest row, so if heap was full, users without
+     * found rows may be closer than found ones only if the last found row is closer than
+     * the k-th found user.
+     *
+     * @param table       table of found rows
+     * @param heap        with found rows
+     * @param vector      searched vector
+     * @param vectorNorm  l2 norm of the searched vector
+     * @param k           maximal number of users to report
+     * @param maxDistance distance cut-off of the users
+     * @return SearchResult sorted by ascending distance, null if more rows have to be found
+     */
+    private SearchResult toSearchResult(RowTable table, TopKHeap heap, float[] vector,
+                                        double vectorNorm, int k, float maxDistance) {
+        boolean truncated = heap.isFull() && heap.capacity() < table.size();
+        int count = heap.size();
+        int[] ids = new int[count];
+        float[] distances = new float[count];
+        heap.drain(ids, distances);
+        float lastRowDistance = count > 0 ? distances[count - 1] : 0;
 
-            for (String user : usersRecords.keySet()) {
-                double prevMinDist = minDist;
+        // Keep the closest row of every user, rows are sorted by ascending distance
+        int users = 0;
+        Set<String> seen = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            if (table.getMaxUserRows() == 1 || seen.add(table.getUsername(ids[i]))) {
+                ids[users] = ids[i];
+                distances[users] = distances[i];
+                users++;
+            }
+        }
 
-                minDist = Math.min(minDist, distanceFunction.apply(
-                        normalizationFuction.apply(vector),
-                        normalizationFuction.apply(usersRecords.get(user).vector)));
+        if (aggregation == Aggregation.MEAN && table.getMaxUserRows() > 1) {
+            users = aggregateMean(table, ids, distances, users, vector, vectorNorm, maxDistance);
 
-                if (minDist < prevMinDist) {
-                    closestRecord = usersRecords.get(user);
-                }
+            float bound = users >= k ? distances[k - 1] : maxDistance;
+            if (truncated && lastRowDistance < bound) {
+                return null;
             }
+        }
 
-            return closestRecord;
-        } else {
-            throw new AssertionError("Incorrect vector length");
+        users = Math.min(users, k);
+        String[] usernames = new String[users];
+        for (int i = 0; i < users; i++) {
+            usernames[i] = table.getUsername(ids[i]);
         }
+
+        return new SearchResult(Arrays.copyOf(ids, users), Arrays.copyOf(distances, users),
+                usernames);
     }
 
     /**
-     * Find closest record from the database taking threshold into account.
+     * Replace distances of candidate users with mean distance of their closest embeddings and
+     * sort candidates again.
      *
-     * @param vector of n-dimensions, for which the closest equivalent wil be found
-     * @return closest UserRecord - null if not found
+     * @param table       table of found rows
+     * @param ids         closest row of every candidate user
+     * @param distances   distances of the rows, replaced with users distances
+     * @param users       number of candidate users
+     * @param vector      searched vector
+     * @param vectorNorm  l2 norm of the searched vector
+     * @param maxDistance distance cut-off of the users
+     * @return number of users within the cut-off
      */
-    public UserRecord findClosestRecordBelowThreshold(float[] vector) {
-        UserRecord result = findClosestRecord(vector);
-        Double dist = distanceFunction.apply(normalizationFuction.apply(vector), normalizationFuction.apply(result.vector));
-        if(dist  <= new Double(threshold)){
-            return result;
+    private int aggregateMean(RowTable table, int[] ids, float[] distances, int users,
+                              float[] vector, double vectorNorm, float maxDistance) {
+        TopKHeap sorted = new TopKHeap(Math.max(users, 1));
+        for (int i = 0; i < users; i++) {
+            int[] rows = table.getRows(table.getUsername(ids[i]));
+            float[] rowDistances = new float[rows.length];
+            for (int j = 0; j < rows.length; j++) {
+                rowDistances[j] = (float) table.distance(vector, vectorNorm, rows[j]);
+            }
+            float distance = meanDistance(rowDistances);
+            if (distance <= maxDistance) {
+                sorted.offer(ids[i], distance);
+            }
         }
-        return new UserRecord("?", null);
+
+        return sorted.drain(ids, distances);
+    }
+
+    /**
+     * Calculate mean distance of the closest embeddings of the user.
+     *
+     * @param rowDistances distances of all embeddings of the user, sorted by the call
+     * @return mean of MEAN_TOP_MATCHES smallest distances
+     */
+    private static float meanDistance(float[] rowDistances) {
+        Arrays.sort(rowDistances);
+
+        int matches = Math.min(MEAN_TOP_MATCHES, rowDistances.length);
+        float sum = 0;
+        for (int j = 0; j < matches; j++) {
+            sum += rowDistances[j];
+        }
+        return sum / matches;
+    }
+
+    /**
+     * Create UserRecord from the row of the vector store or the cold tier.
+     *
+     * @param table table holding the row
+     * @param row   id of the row
+     * @return UserRecord holding copy of the row's data
+     */
+    private UserRecord getRecord(RowTable table, int row) {
+        UserRecord record = new UserRecord(table.getUsername(row), table.getVector(row),
+                table.getWeight(row));
+        record.groups = table.getGroups(row);
+        return record;
     }
     /**
      * Validate given vector's data to check, if it matches database characteristics:
@@ -155,19 +1543,51 @@ public class UserDatabase {
     }
 
     /**
-     * Add new UserRecord to the database.
+     * Add new UserRecord to the database. User joins groups of the record, in addition to groups
+     * it already belongs to.
      *
      * @param userRecord to add to database
      */
-    public void addUserRecord(UserRecord userRecord) {
+    public synchronized void addUserRecord(UserRecord userRecord) {
         if (validateVector(userRecord.vector)) {
-            if (!usersRecords.containsKey(userRecord.username)) {
-                // If user doesn't exist in database, insert the record
-                usersRecords.put(userRecord.username, userRecord);
+            installCompaction();
+            promoteIfCold(userRecord.username);
+            int[] userRows = vectorStore.getRows(userRecord.username);
+            if (userRows == null || userRows.length < maxEmbeddings) {
+                // Store the record as new embedding of the user
+                int row = vectorStore.add(userRecord.username, userRecord.vector,
+                        userRecord.getWeight(), userRecord.groups);
+                if (searchIndex != null) {
+                    searchIndex.onAdd(row);
+                }
             } else {
-                // If user exists in database, update the record
-                usersRecords.get(userRecord.username).correctVector(userRecord.vector);
+                // If user has all embeddings, correct the closest one
+                double vectorNorm = VectorOperations.l2Norm(userRecord.vector);
+                int row = userRows[0];
+                for (int userRow : userRows) {
+                    if (vectorStore.distance(userRecord.vector, vectorNorm, userRow)
+                            < vectorStore.distance(userRecord.vector, vectorNorm, row)) {
+                        row = userRow;
+                    }
+                }
+                float[] corrected = vectorStore.getVector(row);
+                int weight = vectorStore.getWeight(row);
+                for (int i = 0; i < vectorLength; i++) {
+                    corrected[i] = (corrected[i] * weight + userRecord.vector[i]) / (weight + 1);
+                }
+
+                // Corrected row is appended and the old one removed, so that index only adds
+                // a row, weight is tracked for further corrections
+                row = vectorStore.replace(row, corrected, weight + 1);
+                vectorStore.setGroups(userRecord.username,
+                        vectorStore.getGroups(row) | userRecord.groups);
+                if (searchIndex != null) {
+                    searchIndex.onAdd(row);
+                }
             }
+            invalidateCache();
+            admitToHotTier(userRecord.username);
+            compactIfNeeded();
 
             // Serialize database immediately
             if (saveToFile) {
@@ -179,13 +1599,37 @@ public class UserDatabase {
     }
 
     /**
-     * Add UserRecord to the database. If user already exists, override it's data.
+     * Add UserRecord to the database. If user already exists, override it's data, all
+     * embeddings and groups of the user are replaced with the record.
      *
      * @param userRecord to add to database
      */
-    public void forceAddUserRecord(UserRecord userRecord) {
+    public synchronized void forceAddUserRecord(UserRecord userRecord) {
         if (validateVector(userRecord.vector)) {
-            usersRecords.put(userRecord.username, userRecord);
+            installCompaction();
+            promoteIfCold(userRecord.username);
+            int[] userRows = vectorStore.getRows(userRecord.username);
+            if (userRows == null) {
+                int row = vectorStore.add(userRecord.username, userRecord.vector,
+                        userRecord.getWeight(), userRecord.groups);
+                if (searchIndex != null) {
+                    searchIndex.onAdd(row);
+                }
+            } else {
+                // Keep the first embedding and override it
+                for (int i = userRows.length - 1; i > 0; i--) {
+                    removeRow(vectorStore.getRows(userRecord.username)[i]);
+                }
+                int row = vectorStore.replace(vectorStore.getRow(userRecord.username),
+                        userRecord.vector, userRecord.getWeight());
+                vectorStore.setGroups(userRecord.username, userRecord.groups);
+                if (searchIndex != null) {
+                    searchIndex.onAdd(row);
+                }
+            }
+            invalidateCache();
+            admitToHotTier(userRecord.username);
+            compactIfNeeded();
 
             // Serialize database immediately
             if (saveToFile) {
@@ -196,14 +1640,38 @@ public class UserDatabase {
         }
     }
 
+    /**
+     * Replace groups of the user.
+     *
+     * @param userName of the user
+     * @param groups   mask of groups, see UserRecord.groupMask
+     */
+    public synchronized void setUserGroups(String userName, long groups) {
+        installCompaction();
+        if (vectorStore.getRow(userName) != -1) {
+            vectorStore.setGroups(userName, groups);
+        } else if (coldStore != null && coldStore.getRows(userName) != null) {
+            coldStore.setGroups(userName, groups);
+        } else {
+            throw new AssertionError("User does not exist");
+        }
+
+        // Serialize database immediately
+        if (saveToFile) {
+            saveDatabase();
+        }
+    }
+
     /**
      * Remove userRecord by user name.
      * Grants that there will be no user with given user name.
      *
      * @param userName of the user to remove
      */
-    public void removeUserRecord(String userName) {
-        usersRecords.remove(userName);
+    public synchronized void removeUserRecord(String userName) {
+        installCompaction();
+        removeRow(userName);
+        compactIfNeeded();
 
         // Serialize database immediately
         if (saveToFile) {
@@ -217,8 +1685,10 @@ public class UserDatabase {
      *
      * @param userRecord to remove
      */
-    public void removeUserRecord(UserRecord userRecord) {
-        usersRecords.remove(userRecord.username);
+    public synchronized void removeUserRecord(UserRecord userRecord) {
+        installCompaction();
+        removeRow(userRecord.username);
+        compactIfNeeded();
 
         // Serialize database immediately
         if (saveToFile) {
@@ -226,14 +1696,138 @@ public class UserDatabase {
         }
     }
 
+    /**
+     * Remove all rows of the user from the vector store and the index, or from the cold tier.
+     *
+     * @param userName of the user to remove
+     */
+    private void removeRow(String userName) {
+        invalidateCache();
+        int row;
+        while ((row = vectorStore.getRow(userName)) != -1) {
+            removeRow(row);
+        }
+        if (coldStore != null) {
+            coldStore.removeUser(userName);
+            matchCounts.remove(userName);
+        }
+    }
+
+    /**
+     * Remove row from the vector store. Row is only marked as removed, it stays in the index
+     * until the store is compacted and searches skip it meanwhile.
+     *
+     * @param row id of the row to remove
+     */
+    private void removeRow(int row) {
+        vectorStore.markRemoved(row);
+    }
+
+    /**
+     * Start compaction of the vector store, if removed rows reached the compaction ratio. Rows
+     * in use are copied into a new store at once, which is a pass of memory copies, new index is
+     * built over it in the background. Until the index is ready, database keeps using
+     * the current store and index.
+     */
+    private void compactIfNeeded() {
+        int removed = vectorStore.removedCount();
+        if (compaction != null || removed < MIN_COMPACTION_ROWS
+                || removed < compactionRatio * vectorStore.size()) {
+            return;
+        }
+
+        int[] rowMap = new int[vectorStore.size()];
+        VectorStore compacted = vectorStore.compact(rowMap);
+        if (searchIndex == null) {
+            vectorStore = compacted;
+            invalidateCache();
+            return;
+        }
+
+        SearchIndex index = searchIndex;
+        compaction = new Compaction(compacted, rowMap, CompletableFuture.supplyAsync(
+                () -> index.copyFor(compacted), compactionExecutor));
+    }
+
+    /**
+     * Switch to the compacted store, once its index is built. Rows modified since compaction
+     * started are applied to the new store and index first, rows removed in the meantime are
+     * removed, added rows are added and changed groups are copied.
+     */
+    private void installCompaction() {
+        if (compaction == null || !compaction.index.isDone()) {
+            return;
+        }
+        Compaction finished = compaction;
+        compaction = null;
+
+        SearchIndex index;
+        try {
+            index = finished.index.join();
+        } catch (CompletionException e) {
+            Log.e(Tag + "_" + id, "Unable to build index of compacted store");
+            e.printStackTrace();
+            return;
+        }
+
+        VectorStore compacted = finished.store;
+        int[] rowMap = finished.rowMap;
+        for (int row = 0; row < rowMap.length; row++) {
+            if (rowMap[row] == -1) {
+                continue;
+            }
+            if (vectorStore.isRemoved(row)) {
+                compacted.markRemoved(rowMap[row]);
+            } else if (vectorStore.getGroups(row) != compacted.getGroups(rowMap[row])) {
+                compacted.setGroups(vectorStore.getUsername(row), vectorStore.getGroups(row));
+            }
+        }
+        for (int row = rowMap.length; row < vectorStore.size(); row++) {
+            if (!vectorStore.isRemoved(row)) {
+                index.onAdd(compacted.add(vectorStore.getUsername(row), vectorStore.getVector(row),
+                        vectorStore.getWeight(row), vectorStore.getGroups(row)));
+            }
+        }
+
+        vectorStore = compacted;
+        searchIndex = index;
+        invalidateCache();
+    }
+
     /**
      * Get userRecord by user name.
      *
      * @param userName of the searched user
      * @return UserRecord if found. Null if user does not exist
      */
-    public UserRecord getUserRecord(String userName) {
-        return usersRecords.get(userName);
+    public synchronized UserRecord getUserRecord(String userName) {
+        RowTable table = getTable(userName);
+        if (table == null) {
+            return null;
+        }
+        int[] rows = table.getRows(userName);
+        if (rows.length == 1) {
+            return getRecord(table, rows[0]);
+        }
+
+        // Weighted mean of the embeddings, equal to the average of all added vectors
+        float[] vector = new float[vectorLength];
+        int weight = 0;
+        for (int row : rows) {
+            float[] rowVector = table.getVector(row);
+            int rowWeight = table.getWeight(row);
+            for (int i = 0; i < vectorLength; i++) {
+                vector[i] += rowVector[i] * rowWeight;
+            }
+            weight += rowWeight;
+        }
+        for (int i = 0; i < vectorLength; i++) {
+            vector[i] /= weight;
+        }
+
+        UserRecord userRecord = new UserRecord(userName, vector, weight);
+        userRecord.groups = table.getGroups(rows[0]);
+        return userRecord;
     }
 
     /**
@@ -243,7 +1837,29 @@ public class UserDatabase {
      * @return vector if found. Null if user does not exist
      */
     public float[] getUserVector(String userName) {
-        return usersRecords.get(userName).vector;
+        UserRecord userRecord = getUserRecord(userName);
+        return userRecord == null ? null : userRecord.vector;
+    }
+
+    /**
+     * Get all embeddings of the user.
+     *
+     * @param userName of the searched user
+     * @return UserRecord per embedding, weight is number of photos averaged into the embedding.
+     * Null if user does not exist
+     */
+    public synchronized UserRecord[] getUserEmbeddings(String userName) {
+        RowTable table = getTable(userName);
+        if (table == null) {
+            return null;
+        }
+
+        int[] rows = table.getRows(userName);
+        UserRecord[] embeddings = new UserRecord[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            embeddings[i] = getRecord(table, rows[i]);
+        }
+        return embeddings;
     }
 
     /**
@@ -251,8 +1867,12 @@ public class UserDatabase {
      *
      * @return int Number of users
      */
-    public int getNumberOfUsers() {
-        return getUsersArray().length;
+    public synchronized int getNumberOfUsers() {
+        int users = 0;
+        for (RowTable table : getTables()) {
+            users += table.usersCount();
+        }
+        return users;
     }
 
     /**
@@ -260,17 +1880,21 @@ public class UserDatabase {
      *
      * @return array of users names
      */
-    public String[] getUsersArray() {
-        // Receive set of keys and convert it to array
-        Set<String> usersSet = usersRecords.keySet();
-
-        return usersSet.toArray(new String[0]);
+    public synchronized String[] getUsersArray() {
+        List<String> usernames = new ArrayList<>();
+        for (RowTable table : getTables()) {
+            usernames.addAll(Arrays.asList(table.getUsernames()));
+        }
+        return usernames.toArray(new String[0]);
     }
 
     /**
      * Deserialize user database.
      */
-    public void loadDatabase() {
+    public synchronized void loadDatabase() {
+        if (databaseFile == null) {
+            throw new AssertionError("Database kept only in memory cannot be loaded");
+        }
         if (!databaseFile.exists()) {
             Log.w(Tag + "_" + id, "Unable to load database. File not found");
             return;
@@ -299,32 +1923,140 @@ public class UserDatabase {
         String loadedId = databaseJson.get("Id").getAsString();
         int loadedVectorLength = databaseJson.get("VectorLength").getAsInt();
         String serializedUserRecords = databaseJson.get("UserRecords").getAsString();
+        // Files saved before precision was introduced hold float vectors
+        VectorPrecision loadedPrecision = databaseJson.has("Precision")
+                ? VectorPrecision.valueOf(databaseJson.get("Precision").getAsString())
+                : VectorPrecision.FLOAT32;
 
         // Validate database
         assertEquals("Wrong type of database", id, loadedId);
         assertEquals("Wrong size of database", vectorLength, loadedVectorLength);
 
-        // Load users records
-        usersRecords.clear();
-        usersRecords = gson.fromJson(serializedUserRecords, userDatabaseType);
+        // Load users records, files saved before multiple embeddings hold map of users
+        JsonElement records = gson.fromJson(serializedUserRecords, JsonElement.class);
+        vectorStore.clear();
+        compaction = null;
+        invalidateCache();
+        if (coldStore != null) {
+            coldStore.clear();
+            matchCounts.clear();
+        }
+        if (loadedPrecision == VectorPrecision.FLOAT16) {
+            List<HalfUserRecord> usersRecords = records.isJsonArray()
+                    ? gson.fromJson(records, halfUserListType)
+                    : new ArrayList<>(gson.<Map<String, HalfUserRecord>>fromJson(records, halfUserDatabaseType).values());
+            for (HalfUserRecord userRecord : usersRecords) {
+                addLoadedRow(userRecord.username, userRecord.decodeVector(), userRecord.weight,
+                        userRecord.groups);
+            }
+        } else {
+            List<UserRecord> usersRecords = records.isJsonArray()
+                    ? gson.fromJson(records, userListType)
+                    : new ArrayList<>(gson.<Map<String, UserRecord>>fromJson(records, userDatabaseType).values());
+            for (UserRecord userRecord : usersRecords) {
+                addLoadedRow(userRecord.username, userRecord.vector, userRecord.getWeight(),
+                        userRecord.groups);
+            }
+        }
+        if (searchIndex != null && !loadIndex()) {
+            searchIndex.rebuild();
+
+            // Use saved projection instead of training it again
+            if (searchIndex instanceof PcaIndex && databaseJson.has("Projection")) {
+                ((PcaIndex) searchIndex).useProjection(gson.fromJson(
+                        databaseJson.get("Projection").getAsString(), PcaIndex.Projection.class));
+            }
+        }
 
         Log.d(Tag + "_" + id, "Database file loaded");
     }
 
+    /**
+     * Read structure of the search index saved together with the database.
+     *
+     * @return True if index was read, False if it has to be rebuilt, e.g. when file is missing,
+     * damaged or was not written for the loaded rows
+     */
+    private boolean loadIndex() {
+        if (!indexFile.exists()) {
+            return false;
+        }
+        if (!IndexFile.read(indexFile, searchIndex, vectorStore)) {
+            Log.w(Tag + "_" + id, "Index file does not match the database, rebuilding index");
+            return false;
+        }
+        Log.d(Tag + "_" + id, "Index file loaded");
+        return true;
+    }
+
+    /**
+     * Add row read from the database file. With tiered storage, users which do not fit into
+     * the hot tier are written to the cold tier directly.
+     *
+     * @param username owner of the vector
+     * @param vector   of n-dimensions
+     * @param weight   number of vectors averaged into given vector
+     * @param groups   mask of groups of the user
+     */
+    private void addLoadedRow(String username, float[] vector, int weight, long groups) {
+        if (coldStore != null && vectorStore.getRows(username) == null
+                && (coldStore.getRows(username) != null || vectorStore.usersCount() >= maxHotUsers)) {
+            coldStore.add(username, vector, weight, groups);
+            return;
+        }
+        vectorStore.add(username, vector, weight, groups);
+        if (coldStore != null) {
+            matchCounts.putIfAbsent(username, 0);
+        }
+    }
+
     /**
      * Serialize user database.
      */
-    public void saveDatabase() {
+    public synchronized void saveDatabase() {
+        if (databaseFile == null) {
+            throw new AssertionError("Database kept only in memory cannot be saved");
+        }
 
-        // Serialize userRecords to Json
+        // Collect embeddings from the vector store, users in order of addition, and serialize
+        // them to Json
         Gson gson = new Gson();
-        String serializedUserRecords = gson.toJson(usersRecords);
+        String serializedUserRecords;
+        if (vectorStore.getPrecision() == VectorPrecision.FLOAT16) {
+            List<HalfUserRecord> usersRecords = new ArrayList<>();
+            for (RowTable table : getTables()) {
+                for (String username : table.getUsernames()) {
+                    for (int row : table.getRows(username)) {
+                        usersRecords.add(new HalfUserRecord(username, table.getVector(row),
+                                table.getWeight(row), table.getGroups(row)));
+                    }
+                }
+            }
+            serializedUserRecords = gson.toJson(usersRecords);
+        } else {
+            List<UserRecord> usersRecords = new ArrayList<>();
+            for (RowTable table : getTables()) {
+                for (String username : table.getUsernames()) {
+                    for (int row : table.getRows(username)) {
+                        usersRecords.add(getRecord(table, row));
+                    }
+                }
+            }
+            serializedUserRecords = gson.toJson(usersRecords);
+        }
 
         // Complete Json object with database header data
         JsonObject databaseJson = new JsonObject();
         databaseJson.addProperty("Id", id);
         databaseJson.addProperty("VectorLength", vectorLength);
+        databaseJson.addProperty("Precision", vectorStore.getPrecision().name());
         databaseJson.addProperty("UserRecords", serializedUserRecords);
+        if (searchIndex instanceof PcaIndex) {
+            PcaIndex.Projection projection = ((PcaIndex) searchIndex).getProjection();
+            if (projection != null) {
+                databaseJson.addProperty("Projection", gson.toJson(projection));
+            }
+        }
 
         // Write json object to file
         String databaseString = databaseJson.toString();
@@ -335,22 +2067,121 @@ public class UserDatabase {
             e.printStackTrace();
             throw new AssertionError("Cannot save database");
         }
+        saveIndex();
 
         Log.d(Tag + "_" + id, "Database file saved");
     }
 
+    /**
+     * Write structure of the search index next to the database file, so that it is not rebuilt
+     * on load. Rows of the hot tier are written in the same order as into the database file.
+     * Index is only a cache of the database, so it is removed instead if it cannot be written.
+     */
+    private void saveIndex() {
+        if (searchIndex == null) {
+            removeIndexFile();
+            return;
+        }
+
+        int[] fileRows = new int[vectorStore.size() - vectorStore.removedCount()];
+        int position = 0;
+        for (String username : vectorStore.getUsernames()) {
+            for (int row : vectorStore.getRows(username)) {
+                fileRows[position++] = row;
+            }
+        }
+
+        try {
+            if (!IndexFile.write(indexFile, searchIndex, vectorStore, fileRows)) {
+                removeIndexFile();
+            }
+        } catch (IOException e) {
+            Log.e(Tag + "_" + id, "Cannot save index");
+            e.printStackTrace();
+            removeIndexFile();
+        }
+    }
+
+    private void removeIndexFile() {
+        if (indexFile != null && indexFile.exists() && !indexFile.delete()) {
+            Log.w(Tag + "_" + id, "Cannot remove the index file");
+        }
+    }
+
     /**
      * Removes database file if created.
      */
-    public void clear() {
-        usersRecords.clear();
+    public synchronized void clear() {
+        vectorStore.clear();
+        compaction = null;
+        invalidateCache();
+        if (coldStore != null) {
+            coldStore.clear();
+            matchCounts.clear();
+        }
+        if (searchIndex != null) {
+            searchIndex.onClear();
+        }
 
-        if (databaseFile.exists()) {
+        if (databaseFile != null && databaseFile.exists()) {
             if (databaseFile.delete()) {
                 Log.d(Tag + "_" + id, "Database file removed.");
             } else {
                 throw new AssertionError("Cannot remove the database file");
             }
         }
+        removeIndexFile();
+    }
+
+    /**
+     * Store compacted from the vector store and future of the index being built over it.
+     */
+    private static class Compaction {
+        final VectorStore store;
+
+        // Row id of the current store to row id of the compacted one, -1 for removed rows
+        final int[] rowMap;
+
+        final CompletableFuture<SearchIndex> index;
+
+        Compaction(VectorStore store, int[] rowMap, CompletableFuture<SearchIndex> index) {
+            this.store = store;
+            this.rowMap = rowMap;
+            this.index = index;
+        }
+    }
+
+    /**
+     * User record of half-precision database file. Vector is stored as Base64 of little-endian
+     * half-precision numbers, which takes about 3 characters per value instead of about 12
+     * characters of float written as decimal text.
+     */
+    private static class HalfUserRecord {
+        String username;
+        String vector;
+        int weight;
+        long groups;
+
+        HalfUserRecord(String username, float[] vector, int weight, long groups) {
+            // Vectors of the store are already rounded, so rounding again keeps them
+            ByteBuffer buffer = ByteBuffer.allocate(vector.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+            for (float value : vector) {
+                buffer.putShort(VectorOperations.toHalf(value));
+            }
+            this.username = username;
+            this.vector = Base64.getEncoder().encodeToString(buffer.array());
+            this.weight = weight;
+            this.groups = groups;
+        }
+
+        float[] decodeVector() {
+            ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(vector))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            float[] decoded = new float[buffer.remaining() / 2];
+            for (int i = 0; i < decoded.length; i++) {
+                decoded[i] = VectorOperations.toFloat(buffer.getShort());
+            }
+            return decoded;
+        }
     }
 }
@@ -9,12 +9,38 @@ public class UserRecord implements Serializable {
     public float[] vector;
     private int weight;
 
+    // Mask of groups (e.g. sites) the user belongs to, bit i is set for group i
+    public long groups;
+
     public UserRecord(String username, float[] vector) {
         this.weight = 1;
         this.username = username;
         this.vector = vector;
     }
 
+    UserRecord(String username, float[] vector, int weight) {
+        this.weight = weight;
+        this.username = username;
+        this.vector = vector;
+    }
+
+    /**
+     * Create mask of given groups, to be set as groups of the record or used to filter search.
+     *
+     * @param groups ids of the groups, from 0 to 63
+     * @return mask with bits of given groups set
+     */
+    public static long groupMask(int... groups) {
+        long mask = 0;
+        for (int group : groups) {
+            if (group < 0 || group >= VectorStore.GROUPS) {
+                throw new AssertionError("Invalid group");
+            }
+            mask |= 1L << group;
+        }
+        return mask;
+    }
+
     /**
      * Correct vector's value with given vector, to get average vector.
      *
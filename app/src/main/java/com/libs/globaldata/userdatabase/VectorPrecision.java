@@ -0,0 +1,13 @@
+package com.libs.globaldata.userdatabase;
+
+/**
+ * Precision of the vectors kept in the database, both in memory and in the database file.
+ *
+ * FLOAT32 - 4 bytes per value, vectors are stored exactly as given
+ * FLOAT16 - 2 bytes per value (IEEE 754 half-precision), halves memory and file size, values are
+ *           rounded to about 3 significant digits, which is far below noise of face embeddings
+ */
+public enum VectorPrecision {
+    FLOAT32,
+    FLOAT16
+}
@@ -0,0 +1,851 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Contiguous storage of user vectors. All vectors are kept in one row-major float matrix,
+ * so that searching the database is a linear sweep over primitive memory. Each row is
+ * identified by an int row id, which is mapped to the username. One user may own several rows,
+ * one per stored embedding. Next to each row its l2 norm is
+ * cached, so that normalized metrics do not need to re-normalize stored vectors while searching.
+ *
+ * In FLOAT16 precision the matrix holds half-precision numbers instead of floats. Vectors are
+ * rounded when written and widened to float while computing distances, callers always see floats.
+ *
+ * Trained quantization index may make the store drop the matrices, see dropVectors. Rows are then
+ * kept only as codes of the index and decoded whenever they are read, so callers see approximate
+ * vectors and distances.
+ *
+ * Users may be tagged with up to 64 groups (e.g. sites). Every group keeps a posting list of its
+ * rows, so that search restricted to some groups reads only their rows.
+ *
+ * Rows are only appended. Removed rows are marked in a bitmap and skipped by scans, their slots
+ * stay in use until the store is compacted into a new one, see compact.
+ */
+class VectorStore extends RowTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Size of the block of rows scored against all vectors of the scan, so that the block
+    // stays in the L1/L2 cache while it is reused
+    private static final int TILE_BYTES = 32 * 1024;
+
+    // Number of groups, one bit of the groups mask per group
+    static final int GROUPS = Long.SIZE;
+
+    // Length of every stored vector (row length)
+    private final int vectorLength;
+
+    // Metric used to compare vectors with rows
+    private final Metric metric;
+
+    // Primitive kernel of the metric
+    private final DistanceKernel kernel;
+
+    // Precision of stored vectors, decides which of the matrices is used
+    private final VectorPrecision precision;
+
+    // Matrices and norms are read by training threads of indexes, which do not lock the store.
+    // They are volatile, so that a grown array is seen with the rows copied into it, rows added
+    // later are seen through the lock of the index notified about them.
+
+    // Row-major matrix of vectors, row i starts at i * vectorLength, null in FLOAT16 precision
+    // and when vectors are dropped
+    private volatile float[] matrix;
+
+    // Row-major matrix of half-precision vectors, null in FLOAT32 precision and when vectors are
+    // dropped
+    private volatile short[] halfMatrix;
+
+    // Rows kept as codes instead of the matrices, null while the store keeps full-precision
+    // vectors. Set before the matrices are dropped, so readers which see no matrix see the codes
+    private volatile EncodedRows encodedRows;
+
+    // Row id to username table
+    private String[] usernames;
+
+    // Row id to number of vectors averaged into the row
+    private int[] weights;
+
+    // Row id to l2 norm of the row, updated on every row modification
+    private volatile float[] norms;
+
+    // Row id to mask of groups of the row's user, bit i is set when user belongs to group i
+    private long[] groups;
+
+    // Posting list of every group, ids of rows belonging to the group, and its length
+    private final int[][] groupRows = new int[GROUPS][];
+    private final int[] groupSizes = new int[GROUPS];
+
+    // Username to row ids table, in order of users addition
+    private final Map<String, int[]> rows;
+
+    // Number of rows in use
+    private int size;
+
+    // Upper bound of number of rows owned by one user
+    private int maxUserRows;
+
+    // Bitmap of removed rows, bit (row % 64) of word (row / 64), and number of set bits
+    private long[] removed;
+    private int removedCount;
+
+    VectorStore(int vectorLength, Metric metric) {
+        this(vectorLength, metric, VectorPrecision.FLOAT32);
+    }
+
+    VectorStore(int vectorLength, Metric metric, VectorPrecision precision) {
+        this.vectorLength = vectorLength;
+        this.metric = metric;
+        this.kernel = metric.getKernel();
+        this.precision = precision;
+        if (precision == VectorPrecision.FLOAT16) {
+            this.halfMatrix = new short[INITIAL_CAPACITY * vectorLength];
+        } else {
+            this.matrix = new float[INITIAL_CAPACITY * vectorLength];
+        }
+        this.usernames = new String[INITIAL_CAPACITY];
+        this.weights = new int[INITIAL_CAPACITY];
+        this.norms = new float[INITIAL_CAPACITY];
+        this.groups = new long[INITIAL_CAPACITY];
+        this.rows = new LinkedHashMap<>();
+        this.removed = new long[(INITIAL_CAPACITY + 63) / 64];
+        this.size = 0;
+        this.maxUserRows = 1;
+    }
+
+    /**
+     * Append new row to the store.
+     *
+     * @param username owner of the vector
+     * @param vector   of n-dimensions
+     * @param weight   number of vectors averaged into given vector
+     * @return row id of the added vector
+     */
+    int add(String username, float[] vector, int weight) {
+        return add(username, vector, weight, 0);
+    }
+
+    /**
+     * Append new row to the store and add its user to given groups. Rows of one user always
+     * share the groups, so existing rows of the user join the groups too.
+     *
+     * @param username owner of the vector
+     * @param vector   of n-dimensions
+     * @param weight   number of vectors averaged into given vector
+     * @param groups   mask of groups to add the user to
+     * @return row id of the added vector
+     */
+    synchronized int add(String username, float[] vector, int weight, long groups) {
+        ensureCapacity(size + 1);
+        write(size, vector, weight);
+        return append(username, groups);
+    }
+
+    /**
+     * Register row written at the end of the matrix as new row of the user.
+     *
+     * @param username owner of the row
+     * @param groups   mask of groups to add the user to
+     * @return row id of the added row
+     */
+    private int append(String username, long groups) {
+        int row = size;
+        usernames[row] = username;
+        int[] userRows = rows.get(username);
+        if (userRows == null) {
+            rows.put(username, new int[]{row});
+        } else {
+            userRows = Arrays.copyOf(userRows, userRows.length + 1);
+            userRows[userRows.length - 1] = row;
+            rows.put(username, userRows);
+            maxUserRows = Math.max(maxUserRows, userRows.length);
+            groups |= this.groups[userRows[0]];
+        }
+        size++;
+        setGroups(username, groups);
+
+        return row;
+    }
+
+    /**
+     * Write vector, weight and norm of the row. Norm is calculated from stored values, so that
+     * it matches the row also after rounding to half-precision. Row kept as code keeps norm of
+     * the given vector, its decoded approximation is scaled to it.
+     *
+     * @param row    id of the row
+     * @param vector of n-dimensions
+     * @param weight number of vectors averaged into given vector
+     */
+    private void write(int row, float[] vector, int weight) {
+        int offset = row * vectorLength;
+
+        if (encodedRows != null) {
+            norms[row] = (float) VectorOperations.l2Norm(vector);
+            encodedRows.encode(row, vector, norms[row]);
+        } else if (halfMatrix != null) {
+            double squaredNorm = 0;
+            for (int i = 0; i < vectorLength; i++) {
+                short half = VectorOperations.toHalf(vector[i]);
+                halfMatrix[offset + i] = half;
+                float item = VectorOperations.toFloat(half);
+                squaredNorm += item * item;
+            }
+            norms[row] = (float) Math.sqrt(squaredNorm);
+        } else {
+            System.arraycopy(vector, 0, matrix, offset, vectorLength);
+            norms[row] = (float) VectorOperations.l2Norm(vector);
+        }
+        weights[row] = weight;
+    }
+
+    /**
+     * Replace row with a new row appended to the store, old row is marked as removed. New row
+     * takes place of the old one among rows of the user and keeps its groups, so that index
+     * only has to add the new row.
+     *
+     * @param row    id of the row to replace
+     * @param vector of n-dimensions
+     * @param weight number of vectors averaged into given vector
+     * @return row id of the new row
+     */
+    synchronized int replace(int row, float[] vector, int weight) {
+        ensureCapacity(size + 1);
+        int newRow = size;
+        write(newRow, vector, weight);
+        usernames[newRow] = usernames[row];
+        replaceRow(usernames[row], row, newRow);
+        size++;
+
+        long rowGroups = groups[row];
+        setRowGroups(row, 0);
+        setRowGroups(newRow, rowGroups);
+        removed[row >>> 6] |= 1L << row;
+        removedCount++;
+        return newRow;
+    }
+
+    /**
+     * Mark row as removed. Row keeps its slot and its vector, so ids of other rows and indexes
+     * built over them stay valid, but it no longer belongs to its user and is skipped by scans.
+     *
+     * @param row id of the row to remove
+     */
+    void markRemoved(int row) {
+        replaceRow(usernames[row], row, -1);
+        setRowGroups(row, 0);
+        removed[row >>> 6] |= 1L << row;
+        removedCount++;
+    }
+
+    /**
+     * Check if row was marked as removed.
+     *
+     * @param row id of the row
+     * @return True if row is removed, False otherwise
+     */
+    boolean isRemoved(int row) {
+        return (removed[row >>> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * Get number of rows marked as removed, which slots are reclaimed by compaction.
+     *
+     * @return number of removed rows
+     */
+    int removedCount() {
+        return removedCount;
+    }
+
+    /**
+     * Copy rows in use into a new store, removed rows are dropped. Users keep their order and
+     * rows of every user are placed next to each other. Vectors are copied as stored, without
+     * rounding them again, rows kept as codes stay codes of the same codec.
+     *
+     * @param rowMap filled with new id of every row of this store, -1 for removed rows, at
+     *               least size() long
+     * @return compacted store
+     */
+    synchronized VectorStore compact(int[] rowMap) {
+        VectorStore compacted = new VectorStore(vectorLength, metric, precision);
+        if (encodedRows != null) {
+            compacted.useCodes(encodedRows.codec, new byte[0]);
+        }
+        compacted.ensureCapacity(size - removedCount);
+        Arrays.fill(rowMap, 0, size, -1);
+
+        for (Map.Entry<String, int[]> entry : rows.entrySet()) {
+            for (int row : entry.getValue()) {
+                int target = compacted.size;
+                if (encodedRows != null) {
+                    int length = encodedRows.codec.codeLength();
+                    System.arraycopy(encodedRows.codes, row * length, compacted.encodedRows.codes,
+                            target * length, length);
+                } else if (halfMatrix != null) {
+                    System.arraycopy(halfMatrix, row * vectorLength, compacted.halfMatrix,
+                            target * vectorLength, vectorLength);
+                } else {
+                    System.arraycopy(matrix, row * vectorLength, compacted.matrix,
+                            target * vectorLength, vectorLength);
+                }
+                compacted.weights[target] = weights[row];
+                compacted.norms[target] = norms[row];
+                rowMap[row] = compacted.append(entry.getKey(), groups[row]);
+            }
+        }
+
+        return compacted;
+    }
+
+    /**
+     * Replace row id in the user's rows table.
+     *
+     * @param username owner of the row
+     * @param oldRow   row id to replace
+     * @param newRow   new row id, -1 to remove old row id from the table
+     */
+    private void replaceRow(String username, int oldRow, int newRow) {
+        int[] userRows = rows.get(username);
+        int index = 0;
+        while (userRows[index] != oldRow) {
+            index++;
+        }
+
+        if (newRow != -1) {
+            userRows[index] = newRow;
+        } else if (userRows.length == 1) {
+            rows.remove(username);
+        } else {
+            userRows[index] = userRows[userRows.length - 1];
+            rows.put(username, Arrays.copyOf(userRows, userRows.length - 1));
+        }
+    }
+
+    /**
+     * Calculate distance between vector and row, using store's metric. Normalized metrics use
+     * cached norm of the row, so only one dot product is calculated and no vector is allocated.
+     *
+     * @param vector     of n-dimensions
+     * @param vectorNorm l2 norm of the vector
+     * @param row        id of the row
+     * @return distance between vector and the row
+     */
+    @Override
+    double distance(float[] vector, double vectorNorm, int row) {
+        return distance(vector, 0, vectorNorm, row);
+    }
+
+    /**
+     * Calculate distance between two rows, using store's metric.
+     *
+     * @param row1 id of the first row
+     * @param row2 id of the second row
+     * @return distance between the rows
+     */
+    double distance(int row1, int row2) {
+        float[] matrix = this.matrix;
+        if (matrix == null) {
+            return distance(getVector(row1), 0, norms[row1], row2);
+        }
+        return distance(matrix, row1 * vectorLength, norms[row1], row2);
+    }
+
+    /**
+     * Calculate distance between vector stored at given offset and row, using store's metric.
+     *
+     * @param source       array containing the vector
+     * @param sourceOffset index of the first element of the vector in the array
+     * @param sourceNorm   l2 norm of the vector
+     * @param row          id of the row
+     * @return distance between vector and the row
+     */
+    double distance(float[] source, int sourceOffset, double sourceNorm, int row) {
+        int offset = row * vectorLength;
+        short[] halfMatrix = this.halfMatrix;
+        float[] matrix = this.matrix;
+        double score;
+        if (halfMatrix != null) {
+            score = kernel.score(source, sourceOffset, sourceNorm, halfMatrix, offset, norms[row], vectorLength);
+        } else if (matrix != null) {
+            score = kernel.score(source, sourceOffset, sourceNorm, matrix, offset, norms[row], vectorLength);
+        } else {
+            score = kernel.score(source, sourceOffset, sourceNorm, getVector(row), 0, norms[row], vectorLength);
+        }
+
+        return kernel.toDistance(score);
+    }
+
+    /**
+     * Score range of rows against all given vectors and offer them to vectors' heaps. Range is
+     * split into tiles, every tile is scored against all vectors while it is in cache, so rows
+     * are streamed from memory once for the whole batch. Row's distance is abandoned as soon as
+     * it exceeds the distance the row has to beat to enter the heap. Removed rows are skipped.
+     *
+     * @param vectors     of n-dimensions, null vectors are skipped
+     * @param vectorNorms l2 norms of the vectors
+     * @param heaps       heap per vector, collecting the closest rows
+     * @param start       id of the first scanned row
+     * @param end         id of the row after the last scanned row
+     * @param maxDistance distance cut-off, rows further away are skipped
+     */
+    void scan(float[][] vectors, double[] vectorNorms, TopKHeap[] heaps, int start, int end,
+              float maxDistance) {
+        // Volatile fields are read once, not for every row
+        float[] matrix = this.matrix;
+        short[] halfMatrix = this.halfMatrix;
+        EncodedRows encodedRows = this.encodedRows;
+        float[] norms = this.norms;
+        float[] decoded = new float[vectorLength];
+
+        int bytesPerValue = halfMatrix != null ? 2 : 4;
+        int tileRows = Math.max(1, TILE_BYTES / (bytesPerValue * vectorLength));
+
+        float[][] queries = new float[vectors.length][];
+        for (int i = 0; i < vectors.length; i++) {
+            if (vectors[i] != null) {
+                queries[i] = kernel.prepareQuery(vectors[i], vectorNorms[i]);
+            }
+        }
+
+        for (int tileStart = start; tileStart < end; tileStart += tileRows) {
+            int tileEnd = Math.min(end, tileStart + tileRows);
+
+            for (int i = 0; i < vectors.length; i++) {
+                TopKHeap heap = heaps[i];
+                float[] query = queries[i];
+                if (query == null) {
+                    continue;
+                }
+                // Rows are compared by score, distance is calculated only for accepted rows
+                double bound = kernel.toScore(heap.bound(maxDistance));
+                for (int row = tileStart; row < tileEnd; row++) {
+                    if (removedCount > 0 && isRemoved(row)) {
+                        continue;
+                    }
+                    double score = score(query, matrix, halfMatrix, encodedRows, decoded, row,
+                            norms[row], bound);
+
+                    if (score <= bound) {
+                        heap.offer(row, (float) kernel.toDistance(score));
+                        bound = kernel.toScore(heap.bound(maxDistance));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Score listed rows against the vector and offer them to the heap. Rows are abandoned as
+     * soon as they exceed the distance needed to enter the heap, like in the scan of row range.
+     *
+     * @param vector      of n-dimensions
+     * @param vectorNorm  l2 norm of the vector
+     * @param heap        heap collecting the closest rows
+     * @param rowIds      ids of the rows to score
+     * @param maxDistance distance cut-off, rows further away are skipped
+     */
+    void scan(float[] vector, double vectorNorm, TopKHeap heap, int[] rowIds, float maxDistance) {
+        float[] matrix = this.matrix;
+        short[] halfMatrix = this.halfMatrix;
+        EncodedRows encodedRows = this.encodedRows;
+        float[] norms = this.norms;
+        float[] decoded = new float[vectorLength];
+        float[] query = kernel.prepareQuery(vector, vectorNorm);
+        double bound = kernel.toScore(heap.bound(maxDistance));
+
+        for (int row : rowIds) {
+            double score = score(query, matrix, halfMatrix, encodedRows, decoded, row, norms[row],
+                    bound);
+
+            if (score <= bound) {
+                heap.offer(row, (float) kernel.toDistance(score));
+                bound = kernel.toScore(heap.bound(maxDistance));
+            }
+        }
+    }
+
+    /**
+     * Calculate bounded score of prepared query and row, read from the matrix in use or decoded
+     * from its code. Matrices and codes are read by the caller once for the whole scan.
+     *
+     * @param query       prepared query
+     * @param matrix      matrix of vectors, null if not used
+     * @param halfMatrix  matrix of half-precision vectors, null if not used
+     * @param encodedRows codes of rows, used when there is no matrix
+     * @param decoded     buffer for decoded row
+     * @param row         id of the row
+     * @param rowNorm     l2 norm of the row
+     * @param bound       score, after exceeding which calculation is abandoned
+     * @return score, value greater than bound if calculation was abandoned
+     */
+    private double score(float[] query, float[] matrix, short[] halfMatrix,
+                         EncodedRows encodedRows, float[] decoded, int row, double rowNorm,
+                         double bound) {
+        int offset = row * vectorLength;
+        if (halfMatrix != null) {
+            return kernel.boundedScore(query, halfMatrix, offset, rowNorm, vectorLength, bound);
+        }
+        if (matrix != null) {
+            return kernel.boundedScore(query, matrix, offset, rowNorm, vectorLength, bound);
+        }
+        encodedRows.decode(row, rowNorm, decoded);
+        return kernel.boundedScore(query, decoded, 0, rowNorm, vectorLength, bound);
+    }
+
+    /**
+     * Set groups of all rows of the user.
+     *
+     * @param username owner of the rows
+     * @param groups   mask of groups, bit i set when user belongs to group i
+     */
+    void setGroups(String username, long groups) {
+        for (int row : rows.get(username)) {
+            setRowGroups(row, groups);
+        }
+    }
+
+    /**
+     * Get groups of the row's user.
+     *
+     * @param row id of the row
+     * @return mask of groups, bit i set when user belongs to group i
+     */
+    @Override
+    long getGroups(int row) {
+        return groups[row];
+    }
+
+    /**
+     * Get rows of users belonging to at least one of given groups, read from groups posting
+     * lists. Rows are sorted, so that they are read from the matrix in order.
+     *
+     * @param mask mask of groups
+     * @return ids of the rows
+     */
+    int[] getGroupRows(long mask) {
+        int count = 0;
+        for (long bits = mask; bits != 0; bits &= bits - 1) {
+            count += groupSizes[Long.numberOfTrailingZeros(bits)];
+        }
+
+        // Row of user in several of given groups is taken from the first of them only
+        int[] found = new int[count];
+        int length = 0;
+        long visited = 0;
+        for (long bits = mask; bits != 0; bits &= bits - 1) {
+            int group = Long.numberOfTrailingZeros(bits);
+            for (int i = 0; i < groupSizes[group]; i++) {
+                int row = groupRows[group][i];
+                if ((groups[row] & visited) == 0) {
+                    found[length++] = row;
+                }
+            }
+            visited |= 1L << group;
+        }
+
+        Arrays.sort(found, 0, length);
+        return Arrays.copyOf(found, length);
+    }
+
+    /**
+     * Remove all rows. Store which dropped its vectors keeps full-precision vectors again, until
+     * its index is trained on the new rows.
+     */
+    synchronized void clear() {
+        if (encodedRows != null) {
+            if (precision == VectorPrecision.FLOAT16) {
+                halfMatrix = new short[usernames.length * vectorLength];
+            } else {
+                matrix = new float[usernames.length * vectorLength];
+            }
+            encodedRows = null;
+        }
+        Arrays.fill(usernames, 0, size, null);
+        Arrays.fill(groups, 0, size, 0);
+        Arrays.fill(groupSizes, 0);
+        Arrays.fill(removed, 0);
+        removedCount = 0;
+        rows.clear();
+        size = 0;
+        maxUserRows = 1;
+    }
+
+    /**
+     * Get id of the first row of given user.
+     *
+     * @param username owner of the row
+     * @return row id, -1 if user does not exist
+     */
+    int getRow(String username) {
+        int[] userRows = rows.get(username);
+        return userRows == null ? -1 : userRows[0];
+    }
+
+    /**
+     * Get ids of all rows of given user.
+     *
+     * @param username owner of the rows
+     * @return copy of row ids, null if user does not exist
+     */
+    @Override
+    int[] getRows(String username) {
+        int[] userRows = rows.get(username);
+        return userRows == null ? null : userRows.clone();
+    }
+
+    /**
+     * Get upper bound of number of rows owned by one user. Bound is not lowered when rows are
+     * removed.
+     *
+     * @return maximal number of rows of one user
+     */
+    @Override
+    int getMaxUserRows() {
+        return maxUserRows;
+    }
+
+    /**
+     * Get number of users, which own at least one row.
+     *
+     * @return number of users
+     */
+    @Override
+    int usersCount() {
+        return rows.size();
+    }
+
+    @Override
+    String getUsername(int row) {
+        return usernames[row];
+    }
+
+    @Override
+    int getWeight(int row) {
+        return weights[row];
+    }
+
+    /**
+     * Get cached l2 norms of rows. Only first size() values are valid, reference is invalidated
+     * when the store grows.
+     *
+     * @return array of rows norms
+     */
+    float[] getNorms() {
+        return norms;
+    }
+
+    /**
+     * Get copy of the row's vector.
+     *
+     * @param row id of the row
+     * @return vector of n-dimensions
+     */
+    @Override
+    float[] getVector(int row) {
+        int offset = row * vectorLength;
+        short[] halfMatrix = this.halfMatrix;
+        float[] matrix = this.matrix;
+        float[] vector = new float[vectorLength];
+        if (halfMatrix != null) {
+            for (int i = 0; i < vectorLength; i++) {
+                vector[i] = VectorOperations.toFloat(halfMatrix[offset + i]);
+            }
+        } else if (matrix != null) {
+            System.arraycopy(matrix, offset, vector, 0, vectorLength);
+        } else {
+            encodedRows.decode(row, norms[row], vector);
+        }
+        return vector;
+    }
+
+    /**
+     * Calculate checksum of stored values of given rows, in given order, so that structures
+     * built for the rows can be checked to match them. Rows kept as codes are checksummed as
+     * decoded vectors in store's precision, like they are saved to the database file and loaded
+     * again.
+     *
+     * @param rowIds ids of the rows
+     * @return CRC32 of the rows' values
+     */
+    long checksum(int[] rowIds) {
+        short[] halfMatrix = this.halfMatrix;
+        float[] matrix = this.matrix;
+        CRC32 crc = new CRC32();
+        boolean half = precision == VectorPrecision.FLOAT16;
+        ByteBuffer buffer = ByteBuffer.allocate(vectorLength * (half ? 2 : 4));
+        for (int row : rowIds) {
+            buffer.clear();
+            if (halfMatrix != null) {
+                buffer.asShortBuffer().put(halfMatrix, row * vectorLength, vectorLength);
+            } else if (matrix != null) {
+                buffer.asFloatBuffer().put(matrix, row * vectorLength, vectorLength);
+            } else {
+                float[] vector = getVector(row);
+                for (int i = 0; i < vectorLength; i++) {
+                    if (half) {
+                        buffer.putShort(VectorOperations.toHalf(vector[i]));
+                    } else {
+                        buffer.putFloat(vector[i]);
+                    }
+                }
+            }
+            crc.update(buffer.array(), 0, buffer.capacity());
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Drop the matrices and keep rows only as codes of the index, rows are decoded from them
+     * whenever they are read. Rows which the index did not encode yet are encoded here, rows
+     * written later are encoded when they are written. Store keeps vectors again once it is
+     * cleared.
+     *
+     * @param codec codec of the index
+     * @param codes codes of the first count rows written by the codec, copied
+     * @param count number of rows encoded in the codes
+     */
+    synchronized void dropVectors(RowCodec codec, byte[] codes, int count) {
+        int length = codec.codeLength();
+        byte[] newCodes = Arrays.copyOf(codes, usernames.length * length);
+        for (int row = count; row < size; row++) {
+            codec.encode(getVector(row), norms[row], newCodes, row * length);
+        }
+        useCodes(codec, newCodes);
+    }
+
+    /**
+     * Get codes of rows, if the store keeps rows as codes of given codec.
+     *
+     * @param codec codec of the index
+     * @return row-major matrix of codes, reference is invalidated when the store grows, null if
+     * the store keeps vectors or codes of another codec
+     */
+    byte[] getCodes(RowCodec codec) {
+        EncodedRows encodedRows = this.encodedRows;
+        return encodedRows != null && encodedRows.codec == codec ? encodedRows.codes : null;
+    }
+
+    VectorPrecision getPrecision() {
+        return precision;
+    }
+
+    int getVectorLength() {
+        return vectorLength;
+    }
+
+    Metric getMetric() {
+        return metric;
+    }
+
+    @Override
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get names of all users in order of addition.
+     *
+     * @return array of users names
+     */
+    @Override
+    String[] getUsernames() {
+        return rows.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Set groups of the row and update posting lists of changed groups. Row removed from
+     * posting list is replaced with the last row of the list.
+     *
+     * @param row       id of the row
+     * @param newGroups mask of groups
+     */
+    private void setRowGroups(int row, long newGroups) {
+        for (long bits = groups[row] & ~newGroups; bits != 0; bits &= bits - 1) {
+            int group = Long.numberOfTrailingZeros(bits);
+            int[] posting = groupRows[group];
+            int index = 0;
+            while (posting[index] != row) {
+                index++;
+            }
+            posting[index] = posting[--groupSizes[group]];
+        }
+        for (long bits = newGroups & ~groups[row]; bits != 0; bits &= bits - 1) {
+            int group = Long.numberOfTrailingZeros(bits);
+            if (groupRows[group] == null) {
+                groupRows[group] = new int[INITIAL_CAPACITY];
+            } else if (groupSizes[group] == groupRows[group].length) {
+                groupRows[group] = Arrays.copyOf(groupRows[group], groupSizes[group] * 2);
+            }
+            groupRows[group][groupSizes[group]++] = row;
+        }
+        groups[row] = newGroups;
+    }
+
+    /**
+     * Grow backing arrays, so that at least given number of rows fits.
+     *
+     * @param capacity required number of rows
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= usernames.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(capacity, usernames.length * 2);
+        if (encodedRows != null) {
+            int length = encodedRows.codec.codeLength();
+            encodedRows = new EncodedRows(encodedRows.codec,
+                    Arrays.copyOf(encodedRows.codes, newCapacity * length));
+        } else if (halfMatrix != null) {
+            halfMatrix = Arrays.copyOf(halfMatrix, newCapacity * vectorLength);
+        } else {
+            matrix = Arrays.copyOf(matrix, newCapacity * vectorLength);
+        }
+        usernames = Arrays.copyOf(usernames, newCapacity);
+        groups = Arrays.copyOf(groups, newCapacity);
+        weights = Arrays.copyOf(weights, newCapacity);
+        norms = Arrays.copyOf(norms, newCapacity);
+        removed = Arrays.copyOf(removed, (newCapacity + 63) / 64);
+    }
+
+    /**
+     * Replace the matrices with codes. Codes are published before the matrices are dropped.
+     *
+     * @param codec codec which wrote the codes
+     * @param codes row-major matrix of codes
+     */
+    private void useCodes(RowCodec codec, byte[] codes) {
+        encodedRows = new EncodedRows(codec, codes);
+        matrix = null;
+        halfMatrix = null;
+    }
+
+    /**
+     * Codes of rows together with their codec, replaced at once, so that codes are never
+     * decoded with another codec.
+     */
+    private static final class EncodedRows {
+        final RowCodec codec;
+
+        // Row-major matrix of codes, row i starts at i * codec.codeLength()
+        final byte[] codes;
+
+        EncodedRows(RowCodec codec, byte[] codes) {
+            this.codec = codec;
+            this.codes = codes;
+        }
+
+        void encode(int row, float[] vector, double norm) {
+            codec.encode(vector, norm, codes, row * codec.codeLength());
+        }
+
+        void decode(int row, double norm, float[] destination) {
+            codec.decode(codes, row * codec.codeLength(), norm, destination);
+        }
+    }
+}
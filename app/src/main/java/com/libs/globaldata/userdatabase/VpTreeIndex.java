@@ -0,0 +1,483 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Exact vantage-point tree index. Every node picks a vantage row and splits remaining rows of
+ * the node by the median of their distances to it into inner and outer child. Search skips
+ * whole child when triangle inequality proves, that none of its rows can be closer than the
+ * current k-th result, so results are the same as of the exact scan.
+ *
+ * Tree is built in euclidean space: EUCLIDEAN metric uses vectors as they are, normalized metrics
+ * use unit vectors, which euclidean distance ranks rows the same as cosine distance.
+ *
+ * Tree is not rebalanced on modifications. Added rows are scanned linearly until the tree is
+ * rebuilt, removed rows stay in the tree and are rejected by the heap of the search. Tree is
+ * rebuilt in the background when added rows outnumber half of its rows, or on demand with
+ * rebuildInBackground, e.g. after bulk enrollment. Searches use the previous tree until the
+ * rebuild is finished.
+ */
+public class VpTreeIndex extends SearchIndex {
+    private static final Executor buildExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "VpTreeBuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Nodes with no more rows are scanned linearly
+    private static final int LEAF_ROWS = 8;
+
+    // Minimal number of changes which triggers rebuild, so that small galleries are not rebuilt
+    private static final int MIN_REBUILD_CHANGES = 256;
+
+    // Relative slack of pruning tests, covers rounding of distances calculated in floats
+    private static final float EPSILON = 1e-5f;
+
+    private Tree tree = Tree.EMPTY;
+
+    // Rows out of the tree, scanned linearly
+    private int[] pending = new int[0];
+    private int pendingSize = 0;
+
+    // Positions of the tree without row, left by rows removed before the tree was written
+    private int deadCount = 0;
+
+    // Number of indexed rows, rows added during background rebuild are added to the new tree
+    private int size = 0;
+    private CompletableFuture<Void> building = null;
+
+    // Incremented when index is cleared, so that results of outdated rebuild are dropped
+    private int generation = 0;
+
+    private long visitedRows = 0;
+
+    /**
+     * Get number of distances to the searched vector calculated by all searches. Exact scan
+     * calculates one distance per row of the database in every search.
+     *
+     * @return number of visited rows
+     */
+    public synchronized long getVisitedRows() {
+        return visitedRows;
+    }
+
+    /**
+     * Build new tree over current rows in the background. Searches use previous tree, rows
+     * added in the meantime are added to the new tree once it is built. If another build
+     * is running, new one starts after it, so that rows added since its start are in the tree.
+     *
+     * @return future completed when the new tree is used
+     */
+    public synchronized CompletableFuture<Void> rebuildInBackground() {
+        if (building != null && !building.isDone()) {
+            return building.thenCompose(ignored -> rebuildInBackground());
+        }
+
+        Snapshot snapshot = takeSnapshot();
+        int dimension = vectorStore.getVectorLength();
+        int buildGeneration = generation;
+        building = CompletableFuture
+                .supplyAsync(() -> Tree.build(snapshot.rows, snapshot.points, dimension), buildExecutor)
+                .thenAccept(newTree -> applyTree(newTree, buildGeneration));
+        return building;
+    }
+
+    @Override
+    SearchIndex copyFor(VectorStore vectorStore) {
+        VpTreeIndex copy = new VpTreeIndex();
+        copy.attach(vectorStore);
+        return copy;
+    }
+
+    /**
+     * Write current tree and rows out of it. Removed rows stay in the tree as dead positions,
+     * vantage points keep routing the search with their copies.
+     */
+    @Override
+    synchronized boolean write(DataOutputStream out, int[] fileRows) throws IOException {
+        int[] positions = toFilePositions(fileRows);
+        int[] treeRows = new int[tree.size];
+        for (int position = 0; position < tree.size; position++) {
+            int row = tree.rows[position];
+            treeRows[position] = row >= 0 ? positions[row] : -1;
+        }
+
+        out.writeInt(tree.size);
+        IndexFile.writeInts(out, treeRows, 0, tree.size);
+        IndexFile.writeFloats(out, tree.medians, 0, tree.size);
+        IndexFile.writeFloats(out, tree.parentDistances, 0, tree.size);
+        IndexFile.writeInts(out, tree.vantages, 0, tree.size);
+        out.writeInt(tree.vantageCount);
+        IndexFile.writeFloats(out, tree.vantagePoints, 0,
+                tree.vantageCount * vectorStore.getVectorLength());
+
+        int[] pendingRows = new int[pendingSize];
+        int pendingCount = 0;
+        for (int i = 0; i < pendingSize; i++) {
+            if (positions[pending[i]] != -1) {
+                pendingRows[pendingCount++] = positions[pending[i]];
+            }
+        }
+        out.writeInt(pendingCount);
+        IndexFile.writeInts(out, pendingRows, 0, pendingCount);
+        return true;
+    }
+
+    @Override
+    synchronized boolean read(ByteBuffer in) {
+        onClear();
+        Tree newTree = new Tree(in.getInt());
+        IndexFile.readInts(in, newTree.rows, 0, newTree.size);
+        IndexFile.readFloats(in, newTree.medians, 0, newTree.size);
+        IndexFile.readFloats(in, newTree.parentDistances, 0, newTree.size);
+        IndexFile.readInts(in, newTree.vantages, 0, newTree.size);
+        newTree.vantageCount = in.getInt();
+        newTree.vantagePoints = new float[newTree.vantageCount * vectorStore.getVectorLength()];
+        IndexFile.readFloats(in, newTree.vantagePoints, 0, newTree.vantagePoints.length);
+
+        tree = newTree;
+        size = vectorStore.size();
+        for (int position = 0; position < newTree.size; position++) {
+            if (newTree.rows[position] < 0) {
+                deadCount++;
+            }
+        }
+        for (int count = in.getInt(); count > 0; count--) {
+            add(in.getInt());
+        }
+        return true;
+    }
+
+    @Override
+    synchronized void rebuild() {
+        onClear();
+        Snapshot snapshot = takeSnapshot();
+        size = snapshot.rows.length;
+        install(Tree.build(snapshot.rows, snapshot.points, vectorStore.getVectorLength()));
+    }
+
+    @Override
+    synchronized void onAdd(int row) {
+        add(row);
+        size = row + 1;
+        rebuildIfNeeded();
+    }
+
+    @Override
+    synchronized void onClear() {
+        tree = Tree.EMPTY;
+        pendingSize = 0;
+        deadCount = 0;
+        size = 0;
+        generation++;
+    }
+
+    @Override
+    synchronized void search(float[] vector, double vectorNorm, TopKHeap heap, float maxDistance) {
+        if (tree.size > 0) {
+            float[] query = vectorStore.getMetric() == Metric.EUCLIDEAN
+                    ? vector : VectorOperations.l2Normalize(vector);
+            searchNode(0, tree.size, Float.NaN, query, vector, vectorNorm, heap, maxDistance);
+        }
+
+        for (int i = 0; i < pendingSize; i++) {
+            offer(pending[i], vector, vectorNorm, heap, maxDistance);
+        }
+    }
+
+    /**
+     * Search node of the tree spanning given positions.
+     *
+     * @param from           first position of the node, its vantage point for inner nodes
+     * @param to             position after the last position of the node
+     * @param parentDistance tree distance of the query to the vantage point of the parent node
+     * @param query          vector in tree's space
+     */
+    private void searchNode(int from, int to, double parentDistance, float[] query, float[] vector,
+                            double vectorNorm, TopKHeap heap, float maxDistance) {
+        if (to - from <= LEAF_ROWS) {
+            // Rows of the leaf keep their distance to the parent's vantage point
+            for (int position = from; position < to; position++) {
+                int row = tree.rows[position];
+                if (row < 0) {
+                    continue;
+                }
+                double radius = toTreeDistance(heap.bound(maxDistance));
+                double gap = Math.abs(parentDistance - tree.parentDistances[position]);
+                if (gap > radius + EPSILON * (parentDistance + radius)) {
+                    continue;
+                }
+                offer(row, vector, vectorNorm, heap, maxDistance);
+            }
+            return;
+        }
+
+        int row = tree.rows[from];
+        double distance;
+        if (row >= 0) {
+            distance = toTreeDistance(offer(row, vector, vectorNorm, heap, maxDistance));
+        } else {
+            // Removed vantage point still routes the search, with its copy kept by the tree
+            int offset = tree.vantages[from] * query.length;
+            visitedRows++;
+            distance = Math.sqrt(VectorOperations.squaredEuclideanDistance(
+                    query, 0, tree.vantagePoints, offset, query.length));
+        }
+
+        int middle = Tree.middle(from, to);
+        double median = tree.medians[from];
+        double slack = EPSILON * (distance + median);
+        if (distance < median) {
+            searchNode(from + 1, middle, distance, query, vector, vectorNorm, heap, maxDistance);
+            if (distance + toTreeDistance(heap.bound(maxDistance)) >= median - slack) {
+                searchNode(middle, to, distance, query, vector, vectorNorm, heap, maxDistance);
+            }
+        } else {
+            searchNode(middle, to, distance, query, vector, vectorNorm, heap, maxDistance);
+            if (distance - toTreeDistance(heap.bound(maxDistance)) <= median + slack) {
+                searchNode(from + 1, middle, distance, query, vector, vectorNorm, heap, maxDistance);
+            }
+        }
+    }
+
+    /**
+     * Calculate distance of the row with store's metric and offer it to the heap.
+     *
+     * @return distance of the row
+     */
+    private float offer(int row, float[] vector, double vectorNorm, TopKHeap heap, float maxDistance) {
+        visitedRows++;
+        float distance = (float) vectorStore.distance(vector, vectorNorm, row);
+        if (distance <= heap.bound(maxDistance)) {
+            heap.offer(row, distance);
+        }
+        return distance;
+    }
+
+    /**
+     * Convert distance of store's metric to euclidean distance in tree's space.
+     */
+    private double toTreeDistance(float distance) {
+        if (vectorStore.getMetric() == Metric.COSINE) {
+            // Unit vectors: 1 - cos(a, b) = ‖a - b‖² / 2
+            return Math.sqrt(Math.max(0, 2.0 * distance));
+        }
+        return distance;
+    }
+
+    private void add(int row) {
+        if (pendingSize == pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(16, pendingSize * 2));
+        }
+        pending[pendingSize++] = row;
+    }
+
+    private void rebuildIfNeeded() {
+        if ((building == null || building.isDone())
+                && pendingSize + deadCount >= Math.max(MIN_REBUILD_CHANGES, tree.size / 2)) {
+            rebuildInBackground();
+        }
+    }
+
+    /**
+     * Copy current rows in tree's space.
+     */
+    private Snapshot takeSnapshot() {
+        int size = vectorStore.size();
+        int dimension = vectorStore.getVectorLength();
+        boolean normalize = vectorStore.getMetric() != Metric.EUCLIDEAN;
+
+        Snapshot snapshot = new Snapshot();
+        snapshot.rows = new int[size];
+        snapshot.points = new float[size * dimension];
+        for (int row = 0; row < size; row++) {
+            float[] vector = vectorStore.getVector(row);
+            if (normalize) {
+                vector = VectorOperations.l2Normalize(vector);
+            }
+            snapshot.rows[row] = row;
+            System.arraycopy(vector, 0, snapshot.points, row * dimension, dimension);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Use newly built tree and add rows added during the build, which follow its rows.
+     *
+     * @param newTree         built tree
+     * @param buildGeneration generation of the index when build was started
+     */
+    private synchronized void applyTree(Tree newTree, int buildGeneration) {
+        if (buildGeneration != generation) {
+            // Index was cleared during the build, rows since then are in the current state
+            return;
+        }
+
+        install(newTree);
+        for (int row = newTree.size; row < size; row++) {
+            add(row);
+        }
+    }
+
+    /**
+     * Use the tree, rows out of the tree are dropped.
+     */
+    private void install(Tree newTree) {
+        tree = newTree;
+        pendingSize = 0;
+        deadCount = 0;
+    }
+
+    @Override
+    public synchronized long getMemoryBytes() {
+        return sizeOf(tree.rows) + sizeOf(tree.medians) + sizeOf(tree.parentDistances)
+                + sizeOf(tree.vantages) + sizeOf(tree.vantagePoints) + sizeOf(pending);
+    }
+
+    /**
+     * Rows copied for the build, with their vectors in tree's space.
+     */
+    private static class Snapshot {
+        int[] rows;
+        float[] points;
+    }
+
+    /**
+     * Vantage-point tree laid out in arrays. Node spanning positions [from, to) has its vantage
+     * point at position from, inner child at [from + 1, middle) and outer child at [middle, to).
+     * Nodes with at most LEAF_ROWS positions are leaves.
+     */
+    private static class Tree {
+        static final Tree EMPTY = new Tree(0);
+
+        final int size;
+
+        // Row id at every position, -1 when the row was removed before the tree was written
+        final int[] rows;
+
+        // Median distance of node's rows to its vantage point, indexed by node's first position
+        final float[] medians;
+
+        // Distance of the row to vantage point of its parent node
+        final float[] parentDistances;
+
+        // Index of node's vantage point in vantagePoints, indexed by node's first position
+        final int[] vantages;
+        float[] vantagePoints = new float[0];
+        int vantageCount = 0;
+
+        private Tree(int size) {
+            this.size = size;
+            this.rows = new int[size];
+            this.medians = new float[size];
+            this.parentDistances = new float[size];
+            this.vantages = new int[size];
+        }
+
+        static int middle(int from, int to) {
+            return from + 1 + (to - from - 1) / 2;
+        }
+
+        /**
+         * Build tree over copied rows.
+         *
+         * @param rows      ids of the rows
+         * @param points    row-major matrix of rows' vectors in tree's space
+         * @param dimension length of the vectors
+         * @return built tree
+         */
+        static Tree build(int[] rows, float[] points, int dimension) {
+            Tree tree = new Tree(rows.length);
+            int[] order = new int[rows.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            tree.buildNode(0, rows.length, order, points, dimension, new Random(42));
+
+            for (int position = 0; position < rows.length; position++) {
+                tree.rows[position] = rows[order[position]];
+            }
+            return tree;
+        }
+
+        /**
+         * Choose vantage point of the node and split its rows by the median distance.
+         *
+         * @param order index of the copied row at every position, permuted by the build
+         */
+        private void buildNode(int from, int to, int[] order, float[] points, int dimension,
+                               Random random) {
+            if (to - from <= LEAF_ROWS) {
+                return;
+            }
+
+            swap(order, parentDistances, from, from + random.nextInt(to - from));
+            int vantageOffset = order[from] * dimension;
+            for (int position = from + 1; position < to; position++) {
+                parentDistances[position] = (float) VectorOperations.euclideanDistance(
+                        points, vantageOffset, points, order[position] * dimension, dimension);
+            }
+
+            int middle = middle(from, to);
+            select(order, parentDistances, from + 1, to - 1, middle);
+            medians[from] = parentDistances[middle];
+
+            if (vantageCount * dimension == vantagePoints.length) {
+                vantagePoints = Arrays.copyOf(vantagePoints, Math.max(16, vantageCount * 2) * dimension);
+            }
+            System.arraycopy(points, vantageOffset, vantagePoints, vantageCount * dimension, dimension);
+            vantages[from] = vantageCount++;
+
+            buildNode(from + 1, middle, order, points, dimension, random);
+            buildNode(middle, to, order, points, dimension, random);
+        }
+
+        /**
+         * Partially sort positions [left, right] by distance, so that position k holds k-th
+         * smallest distance, with smaller before and greater after it (quickselect).
+         */
+        private static void select(int[] order, float[] distances, int left, int right, int k) {
+            while (left < right) {
+                float pivot = distances[(left + right) >>> 1];
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (distances[i] < pivot) {
+                        i++;
+                    }
+                    while (distances[j] > pivot) {
+                        j--;
+                    }
+                    if (i <= j) {
+                        swap(order, distances, i++, j--);
+                    }
+                }
+                if (k <= j) {
+                    right = j;
+                } else if (k >= i) {
+                    left = i;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private static void swap(int[] order, float[] distances, int i, int j) {
+            int index = order[i];
+            order[i] = order[j];
+            order[j] = index;
+            float distance = distances[i];
+            distances[i] = distances[j];
+            distances[j] = distance;
+        }
+    }
+}
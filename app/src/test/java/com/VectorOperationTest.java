@@ -6,6 +6,7 @@ import org.junit.Test;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Unit test for vector operations.
@@ -47,4 +48,55 @@ public class VectorOperationTest {
         double result = VectorOperations.cosineSimilarity(array, array1);
         assertEquals(expected, result, 0.00001);
     }
+
+    /**
+     * Test of squared euclidean distance abandoned after exceeding the bound.
+     */
+    @Test
+    public void boundedSquaredDistanceTest() {
+        float[] array = {3, 4, 1, 2, 8, 6, 4, 1, 9, 1, 2};
+        float[] matrix = {0, 5, 1, 4, 2, 1, 7, 40, 11, 2, 1, 2};
+        double expected = Math.pow(VectorOperations.euclideanDistance(array, matrix, 1), 2);
+
+        double result = VectorOperations.squaredEuclideanDistance(array, matrix, 1, 1, array.length,
+                Double.MAX_VALUE);
+        assertEquals(expected, result, 0.001);
+
+        // First block of 8 values already exceeds the bound
+        result = VectorOperations.squaredEuclideanDistance(array, matrix, 1, 1, array.length, 100);
+        assertTrue(result > 100 && result < expected);
+
+        // Scaled row
+        float[] halved = new float[matrix.length];
+        for (int i = 0; i < matrix.length; i++) {
+            halved[i] = matrix[i] * 2;
+        }
+        result = VectorOperations.squaredEuclideanDistance(array, halved, 1, 0.5F, array.length,
+                Double.MAX_VALUE);
+        assertEquals(expected, result, 0.001);
+    }
+
+    /**
+     * Test of conversion between float and half-precision numbers.
+     */
+    @Test
+    public void halfPrecisionTest() {
+        float[] exact = {0, 1, -2, 0.5F, 65504, 0.000061035156F, 0.000000059604645F};
+        for (float value : exact) {
+            assertEquals(value, VectorOperations.toFloat(VectorOperations.toHalf(value)), 0);
+        }
+
+        // Rounding to the closest half-precision number
+        assertEquals(0.33325195F, VectorOperations.toFloat(VectorOperations.toHalf(1 / 3F)), 0);
+        assertEquals(Float.POSITIVE_INFINITY, VectorOperations.toFloat(VectorOperations.toHalf(70000)), 0);
+
+        float[] array = {0.3F, -0.12F, 0.07F, 0.9F};
+        short[] halfArray = new short[array.length];
+        for (int i = 0; i < array.length; i++) {
+            halfArray[i] = VectorOperations.toHalf(array[i]);
+        }
+        double expected = VectorOperations.euclideanDistance(array, 0, new float[4], 0, 4);
+        double result = VectorOperations.euclideanDistance(new float[4], 0, halfArray, 0, 4);
+        assertEquals(expected, result, 0.001);
+    }
 }
\ No newline at end of file
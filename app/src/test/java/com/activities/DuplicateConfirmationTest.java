@@ -0,0 +1,72 @@
+package com.activities;
+
+import com.libs.globaldata.userdatabase.IndexType;
+import com.libs.globaldata.userdatabase.Metric;
+import com.libs.globaldata.userdatabase.UserDatabase;
+import com.libs.globaldata.userdatabase.UserRecord;
+import com.libs.globaldata.userdatabase.VectorPrecision;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit test for confirmation of duplicate faces on enrollment. Faces lie on a line, so that
+ * their distances are easily compared with the duplicate distance.
+ */
+public class DuplicateConfirmationTest {
+    private static final int VECTOR_LENGTH = 4;
+    private static final float DUPLICATE_DISTANCE = 1;
+
+    /**
+     * Test that duplicate is reported once, and adding the face again confirms it.
+     */
+    @Test
+    public void confirmationTest() {
+        UserDatabase database = createDatabase();
+        database.addUserRecord(new UserRecord("alice", face(0)));
+        UserDatabase[] databases = {database};
+        float[][] vectors = {face(0.8f)};
+
+        DuplicateConfirmation confirmation = new DuplicateConfirmation();
+        assertEquals("alice", confirmation.check(databases, "bob", vectors));
+        assertNull(confirmation.check(databases, "bob", vectors));
+
+        confirmation.reset();
+        assertEquals("alice", confirmation.check(databases, "bob", vectors));
+    }
+
+    /**
+     * Test that databases reporting different users are confirmed one by one, instead of
+     * warning about them in turns forever.
+     */
+    @Test
+    public void multipleDatabasesTest() {
+        UserDatabase first = createDatabase();
+        first.addUserRecord(new UserRecord("alice", face(0)));
+        UserDatabase second = createDatabase();
+        second.addUserRecord(new UserRecord("carol", face(0)));
+        UserDatabase[] databases = {first, second};
+        float[][] vectors = {face(0.8f), face(0.8f)};
+
+        DuplicateConfirmation confirmation = new DuplicateConfirmation();
+        assertEquals("alice", confirmation.check(databases, "bob", vectors));
+        assertEquals("carol", confirmation.check(databases, "bob", vectors));
+        assertNull(confirmation.check(databases, "bob", vectors));
+    }
+
+    private static UserDatabase createDatabase() {
+        UserDatabase database = new UserDatabase("duplicates", VECTOR_LENGTH, Metric.EUCLIDEAN,
+                DUPLICATE_DISTANCE, IndexType.EXACT, VectorPrecision.FLOAT32);
+        database.setDuplicateDistance(DUPLICATE_DISTANCE);
+        return database;
+    }
+
+    /**
+     * Create face at given position on the line.
+     */
+    private static float[] face(float position) {
+        return new float[]{position, 0, 0, 1};
+    }
+}
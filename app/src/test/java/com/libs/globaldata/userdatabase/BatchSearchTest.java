@@ -0,0 +1,73 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit test for batched search, compares it with searches of single vectors.
+ */
+public class BatchSearchTest {
+    private static final int VECTOR_LENGTH = 128;
+    private static final int USERS = 500;
+    private static final int QUERIES = 50;
+    private static final int K = 5;
+
+    /**
+     * Test that every vector of the batch gets the same users and distances as when searched
+     * alone, with every metric and precision. Null vectors of the batch get null results.
+     */
+    @Test
+    public void sameResultsTest() {
+        for (VectorPrecision precision : VectorPrecision.values()) {
+            for (Metric metric : Metric.values()) {
+                String description = precision + " " + metric;
+                float threshold = metric == Metric.EUCLIDEAN ? 14 : 0.5f;
+                Random random = new Random(17);
+                UserDatabase database = new UserDatabase("batch", VECTOR_LENGTH, metric,
+                        threshold, IndexType.EXACT, precision);
+                database.setResultCache(0);
+
+                float[][] identities = new float[USERS][];
+                for (int i = 0; i < USERS; i++) {
+                    identities[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+                    database.addUserRecord(new UserRecord("user" + i,
+                            TestVectors.noisyCopy(random, identities[i], 0.3f)));
+                }
+
+                // Faces of users, strangers and a null vector
+                float[][] batch = new float[QUERIES][];
+                for (int q = 1; q < QUERIES; q++) {
+                    batch[q] = q % 4 == 0
+                            ? TestVectors.randomVector(random, VECTOR_LENGTH, 1)
+                            : TestVectors.noisyCopy(random, identities[random.nextInt(USERS)],
+                                    0.3f);
+                }
+
+                SearchResult[] results = database.findKClosestRecords(batch, K, threshold);
+                UserRecord[] closest = database.findClosestRecords(batch);
+                UserRecord[] belowThreshold = database.findClosestRecordsBelowThreshold(batch);
+                assertNull(description, results[0]);
+                assertNull(description, closest[0]);
+                assertNull(description, belowThreshold[0]);
+
+                for (int q = 1; q < QUERIES; q++) {
+                    SearchResult expected = database.findKClosestRecords(batch[q], K, threshold);
+                    assertArrayEquals(description, expected.usernames, results[q].usernames);
+                    assertArrayEquals(description, expected.distances, results[q].distances,
+                            1e-5f);
+
+                    assertEquals(description, database.findClosestRecord(batch[q]).username,
+                            closest[q].username);
+                    assertEquals(description,
+                            database.findClosestRecordBelowThreshold(batch[q]).username,
+                            belowThreshold[q].username);
+                }
+            }
+        }
+    }
+}
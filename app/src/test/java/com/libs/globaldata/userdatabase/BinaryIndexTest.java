@@ -0,0 +1,65 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for binary sign-code index, compares it with the exact scan.
+ */
+public class BinaryIndexTest {
+    private static final int VECTOR_LENGTH = 100;
+    private static final int USERS = 2000;
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+
+    /**
+     * Test that Hamming prefilter with re-ranking finds the closest rows with every metric, and
+     * that more re-ranked candidates give better recall. Vector length is not a multiple of 64,
+     * so the last word of codes is partial.
+     */
+    @Test
+    public void recallTest() {
+        for (Metric metric : Metric.values()) {
+            Random random = new Random(7);
+            VectorStore vectorStore = IndexRecall.createStore(random, metric, USERS,
+                    VECTOR_LENGTH);
+            BinaryIndex index = new BinaryIndex(K);
+            index.attach(vectorStore);
+            index.train().join();
+            assertTrue(index.isTrained());
+            float[][] queries = IndexRecall.createQueries(random, vectorStore, QUERIES, 0.3f);
+
+            double[] narrow = IndexRecall.measure(vectorStore, index, queries, K);
+            index.setRerank(BinaryIndex.DEFAULT_RERANK);
+            double[] wide = IndexRecall.measure(vectorStore, index, queries, K);
+
+            assertTrue(metric.name(), wide[0] >= 0.99);
+            assertTrue(metric.name(), wide[1] >= 0.7);
+            assertTrue(metric.name(), wide[1] > narrow[1]);
+        }
+    }
+
+    /**
+     * Test that re-ranking all rows gives exact results, also for rows added after training.
+     */
+    @Test
+    public void rerankAllTest() {
+        Random random = new Random(9);
+        VectorStore vectorStore = IndexRecall.createStore(random, Metric.COSINE, USERS,
+                VECTOR_LENGTH);
+        BinaryIndex index = new BinaryIndex(2 * USERS);
+        index.attach(vectorStore);
+        index.train().join();
+        for (int i = USERS; i < 2 * USERS; i++) {
+            index.onAdd(vectorStore.add("user" + i,
+                    TestVectors.randomVector(random, VECTOR_LENGTH, 1), 1));
+        }
+
+        float[][] queries = IndexRecall.createQueries(random, vectorStore, QUERIES, 0.3f);
+        assertEquals(1, IndexRecall.measure(vectorStore, index, queries, K)[1], 0);
+    }
+}
@@ -0,0 +1,128 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for distance kernels of all metrics, compares them with distances calculated from
+ * the definitions.
+ */
+public class DistanceKernelTest {
+    private static final int VECTOR_LENGTH = 64;
+    private static final int ROWS = 3;
+    private static final int PAIRS = 100;
+
+    /**
+     * Test that distance of the kernel is the metric's distance.
+     */
+    @Test
+    public void distanceTest() {
+        Random random = new Random(23);
+        for (Metric metric : Metric.values()) {
+            DistanceKernel kernel = metric.getKernel();
+            for (int p = 0; p < PAIRS; p++) {
+                float[] vector1 = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+                float[] vector2 = TestVectors.randomVector(random, VECTOR_LENGTH, 2);
+                assertEquals(metric.name(), expectedDistance(metric, vector1, vector2),
+                        kernel.distance(vector1, vector2), 1e-5);
+            }
+        }
+    }
+
+    /**
+     * Test that scores of rows of float and half-precision matrices convert to distances of
+     * the rows, and that distances convert back to the scores.
+     */
+    @Test
+    public void scoreTest() {
+        Random random = new Random(29);
+        for (Metric metric : Metric.values()) {
+            DistanceKernel kernel = metric.getKernel();
+            float[] vector = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+            double vectorNorm = VectorOperations.l2Norm(vector);
+            float[] matrix = TestVectors.randomVector(random, ROWS * VECTOR_LENGTH, 1);
+            short[] halfMatrix = new short[matrix.length];
+            for (int i = 0; i < matrix.length; i++) {
+                halfMatrix[i] = VectorOperations.toHalf(matrix[i]);
+            }
+
+            for (int row = 0; row < ROWS; row++) {
+                int offset = row * VECTOR_LENGTH;
+                float[] rowVector = new float[VECTOR_LENGTH];
+                float[] halfRowVector = new float[VECTOR_LENGTH];
+                for (int i = 0; i < VECTOR_LENGTH; i++) {
+                    rowVector[i] = matrix[offset + i];
+                    halfRowVector[i] = VectorOperations.toFloat(halfMatrix[offset + i]);
+                }
+
+                double score = kernel.score(vector, 0, vectorNorm, matrix, offset,
+                        VectorOperations.l2Norm(rowVector), VECTOR_LENGTH);
+                assertEquals(metric.name(), expectedDistance(metric, vector, rowVector),
+                        kernel.toDistance(score), 1e-5);
+                assertEquals(metric.name(), score, kernel.toScore(kernel.toDistance(score)), 1e-5);
+
+                double halfScore = kernel.score(vector, 0, vectorNorm, halfMatrix, offset,
+                        VectorOperations.l2Norm(halfRowVector), VECTOR_LENGTH);
+                assertEquals(metric.name(), expectedDistance(metric, vector, halfRowVector),
+                        kernel.toDistance(halfScore), 1e-5);
+            }
+        }
+    }
+
+    /**
+     * Test that bounded score equals the score when it is within the bound, and exceeds the
+     * bound otherwise.
+     */
+    @Test
+    public void boundedScoreTest() {
+        Random random = new Random(31);
+        for (Metric metric : Metric.values()) {
+            DistanceKernel kernel = metric.getKernel();
+            for (int p = 0; p < PAIRS; p++) {
+                float[] vector = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+                double vectorNorm = VectorOperations.l2Norm(vector);
+                float[] row = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+                double rowNorm = VectorOperations.l2Norm(row);
+                short[] halfRow = new short[VECTOR_LENGTH];
+                for (int i = 0; i < VECTOR_LENGTH; i++) {
+                    halfRow[i] = VectorOperations.toHalf(row[i]);
+                }
+
+                double score = kernel.score(vector, 0, vectorNorm, row, 0, rowNorm,
+                        VECTOR_LENGTH);
+                float[] query = kernel.prepareQuery(vector, vectorNorm);
+
+                assertEquals(metric.name(), score, kernel.boundedScore(query, row, 0, rowNorm,
+                        VECTOR_LENGTH, 2 * score), 1e-5);
+                assertTrue(metric.name(), kernel.boundedScore(query, row, 0, rowNorm,
+                        VECTOR_LENGTH, score / 2) > score / 2);
+                assertTrue(metric.name(), kernel.boundedScore(query, halfRow, 0, rowNorm,
+                        VECTOR_LENGTH, score / 2) > score / 2);
+            }
+        }
+    }
+
+    /**
+     * Calculate distance of the metric from its definition.
+     */
+    private static double expectedDistance(Metric metric, float[] vector1, float[] vector2) {
+        switch (metric) {
+            case EUCLIDEAN:
+                return VectorOperations.euclideanDistance(vector1, vector2);
+            case EUCLIDEAN_NORM:
+                return VectorOperations.euclideanDistance(VectorOperations.l2Normalize(vector1),
+                        VectorOperations.l2Normalize(vector2));
+            case COSINE:
+                // Despite its name, cosineSimilarity returns cosine distance
+                return VectorOperations.cosineSimilarity(vector1, vector2);
+            default:
+                throw new AssertionError("Unknown metric");
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit test for duplicate detection on enrollment. Faces lie on a line, so that their distances
+ * are easily compared with the duplicate distance.
+ */
+public class DuplicateDetectionTest {
+    private static final int VECTOR_LENGTH = 4;
+    private static final float DUPLICATE_DISTANCE = 1;
+
+    /**
+     * Test that face close to user of another name is a duplicate, and close to user of the
+     * same name is not.
+     */
+    @Test
+    public void galleryTest() {
+        UserDatabase database = createDatabase();
+        database.addUserRecord(new UserRecord("alice", face(0)));
+
+        assertEquals("alice", database.findDuplicateIdentity("bob", face(0.8f)));
+        assertNull(database.findDuplicateIdentity("alice", face(0.8f)));
+        assertNull(database.findDuplicateIdentity("bob", face(1.6f)));
+    }
+
+    /**
+     * Test that faces of a batch are accepted in order, compared with the database and with
+     * accepted faces only.
+     */
+    @Test
+    public void batchTest() {
+        UserDatabase database = createDatabase();
+        database.addUserRecord(new UserRecord("alice", face(0)));
+
+        String[] usernames = {"bob", "carol", "dave", "erin", "frank"};
+        float[][] vectors = {face(0.8f), face(1.6f), face(5), face(5.8f), face(6.6f)};
+        String[] duplicates = database.findDuplicateIdentities(usernames, vectors);
+
+        // Carol is close only to bob and frank only to erin, who are duplicates and are not
+        // enrolled
+        assertArrayEquals(new String[]{"alice", null, null, "dave", null}, duplicates);
+    }
+
+    /**
+     * Test that face is a duplicate if any database finds one, and skipped faces are not
+     * compared with in any database.
+     */
+    @Test
+    public void multipleDatabasesTest() {
+        UserDatabase first = createDatabase();
+        UserDatabase second = createDatabase();
+        second.addUserRecord(new UserRecord("alice", face(0)));
+
+        UserDatabase[] databases = {first, second};
+        String[] usernames = {"bob", "carol"};
+        float[][][] vectors = {
+                {face(10), face(10.8f)},
+                {face(0.8f), face(20)}
+        };
+        String[] duplicates = UserDatabase.findDuplicateIdentities(databases, usernames, vectors);
+
+        // Bob is a duplicate in the second database, so carol is not compared with him in the
+        // first one
+        assertArrayEquals(new String[]{"alice", null}, duplicates);
+    }
+
+    private static UserDatabase createDatabase() {
+        UserDatabase database = new UserDatabase("duplicates", VECTOR_LENGTH, Metric.EUCLIDEAN,
+                DUPLICATE_DISTANCE, IndexType.EXACT, VectorPrecision.FLOAT32);
+        database.setDuplicateDistance(DUPLICATE_DISTANCE);
+        return database;
+    }
+
+    /**
+     * Create face at given position on the line.
+     */
+    private static float[] face(float position) {
+        return new float[]{position, 0, 0, 1};
+    }
+}
@@ -0,0 +1,126 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit test for search among users of groups, compares it with the filtered exact scan.
+ */
+public class GroupSearchTest {
+    private static final int VECTOR_LENGTH = 32;
+    private static final int USERS = 500;
+    private static final int GROUPS = 8;
+    private static final int QUERIES = 100;
+    private static final int K = 5;
+
+    /**
+     * Test that search of groups finds the closest users, which belong to any of the groups,
+     * with every index type, also when index does not know the groups.
+     */
+    @Test
+    public void filteredSearchTest() {
+        for (IndexType indexType : new IndexType[]{IndexType.EXACT, IndexType.HNSW}) {
+            Random random = new Random(41);
+            UserDatabase database = new UserDatabase("groups", VECTOR_LENGTH, Metric.EUCLIDEAN,
+                    10, indexType, VectorPrecision.FLOAT32);
+            float[][] identities = new float[USERS][];
+            for (int i = 0; i < USERS; i++) {
+                identities[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+                UserRecord userRecord = new UserRecord("user" + i, identities[i]);
+                userRecord.groups = randomGroups(random);
+                database.addUserRecord(userRecord);
+            }
+
+            for (int q = 0; q < QUERIES; q++) {
+                float[] query = TestVectors.noisyCopy(random,
+                        identities[random.nextInt(USERS)], 0.5f);
+                long groups = randomGroups(random);
+                float maxDistance = q % 2 == 0 ? Float.MAX_VALUE : 4;
+                SearchResult expected = filteredScan(database, query, maxDistance, groups);
+                SearchResult found = database.findKClosestRecords(query, K, maxDistance, groups);
+                assertArrayEquals(indexType.name(), expected.usernames, found.usernames);
+                assertArrayEquals(indexType.name(), expected.distances, found.distances, 1e-4f);
+            }
+        }
+    }
+
+    /**
+     * Test that users join groups of added records, that replaced groups move the user between
+     * posting lists, and that removed users are not found.
+     */
+    @Test
+    public void membershipTest() {
+        UserDatabase database = new UserDatabase("groups", 2, Metric.EUCLIDEAN, 1,
+                IndexType.EXACT, VectorPrecision.FLOAT32);
+        UserRecord alice = new UserRecord("alice", new float[]{0, 0});
+        alice.groups = UserRecord.groupMask(0);
+        database.addUserRecord(alice);
+        UserRecord bob = new UserRecord("bob", new float[]{3, 0});
+        bob.groups = UserRecord.groupMask(1);
+        database.addUserRecord(bob);
+        float[] query = {0.5f, 0};
+
+        assertEquals("alice", database.findClosestRecordBelowThreshold(query,
+                UserRecord.groupMask(0)).username);
+        assertEquals("?", database.findClosestRecordBelowThreshold(query,
+                UserRecord.groupMask(1)).username);
+        assertEquals(0, database.findKClosestRecords(query, K, Float.MAX_VALUE,
+                UserRecord.groupMask(2)).size());
+
+        UserRecord aliceAgain = new UserRecord("alice", new float[]{0, 0});
+        aliceAgain.groups = UserRecord.groupMask(2);
+        database.addUserRecord(aliceAgain);
+        assertEquals(UserRecord.groupMask(0, 2), database.getUserRecord("alice").groups);
+        assertArrayEquals(new String[]{"alice"}, database.findKClosestRecords(query, K,
+                Float.MAX_VALUE, UserRecord.groupMask(2)).usernames);
+
+        database.setUserGroups("alice", UserRecord.groupMask(1));
+        assertArrayEquals(new String[]{"alice", "bob"}, database.findKClosestRecords(query, K,
+                Float.MAX_VALUE, UserRecord.groupMask(1)).usernames);
+        assertEquals(0, database.findKClosestRecords(query, K, Float.MAX_VALUE,
+                UserRecord.groupMask(0, 2)).size());
+
+        database.removeUserRecord("alice");
+        assertArrayEquals(new String[]{"bob"}, database.findKClosestRecords(query, K,
+                Float.MAX_VALUE, UserRecord.groupMask(1)).usernames);
+    }
+
+    /**
+     * Scan all users and rank those of given groups.
+     */
+    private static SearchResult filteredScan(UserDatabase database, float[] query,
+                                             float maxDistance, long groups) {
+        DistanceKernel kernel = Metric.EUCLIDEAN.getKernel();
+        String[] users = database.getUsersArray();
+        TopKHeap heap = new TopKHeap(K);
+        for (int i = 0; i < users.length; i++) {
+            UserRecord userRecord = database.getUserRecord(users[i]);
+            float distance = (float) kernel.distance(query, userRecord.vector);
+            if ((userRecord.groups & groups) != 0 && distance <= maxDistance) {
+                heap.offer(i, distance);
+            }
+        }
+
+        int count = heap.size();
+        int[] ids = new int[count];
+        float[] distances = new float[count];
+        heap.drain(ids, distances);
+        String[] usernames = new String[count];
+        for (int i = 0; i < count; i++) {
+            usernames[i] = users[ids[i]];
+        }
+        return new SearchResult(ids, distances, usernames);
+    }
+
+    /**
+     * Create mask of one or two random groups.
+     */
+    private static long randomGroups(Random random) {
+        return UserRecord.groupMask(random.nextInt(GROUPS)) | UserRecord.groupMask(
+                random.nextInt(GROUPS));
+    }
+}
@@ -0,0 +1,69 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for HNSW graph index, compares it with the exact scan.
+ */
+public class HnswIndexTest {
+    private static final int VECTOR_LENGTH = 64;
+    private static final int USERS = 2000;
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+
+    /**
+     * Test that graph finds the closest rows with every metric and that wider beam gives better
+     * recall. Half of the rows are indexed when the index is attached, half are inserted one by
+     * one as they are added to the store.
+     */
+    @Test
+    public void recallTest() {
+        for (Metric metric : Metric.values()) {
+            Random random = new Random(7);
+            VectorStore vectorStore = IndexRecall.createStore(random, metric, USERS / 2,
+                    VECTOR_LENGTH);
+            HnswIndex index = new HnswIndex();
+            index.attach(vectorStore);
+            for (int i = USERS / 2; i < USERS; i++) {
+                index.onAdd(vectorStore.add("user" + i,
+                        TestVectors.randomVector(random, VECTOR_LENGTH, 1), 1));
+            }
+            float[][] queries = IndexRecall.createQueries(random, vectorStore, QUERIES, 0.3f);
+
+            index.setEfSearch(16);
+            double[] narrow = IndexRecall.measure(vectorStore, index, queries, K);
+            index.setEfSearch(128);
+            double[] wide = IndexRecall.measure(vectorStore, index, queries, K);
+
+            assertTrue(metric.name(), wide[0] >= 0.98);
+            assertTrue(metric.name(), wide[1] >= 0.95);
+            assertTrue(metric.name(), wide[1] >= narrow[1]);
+        }
+    }
+
+    /**
+     * Test that removed rows, which stay in the graph, do not take places of rows in use in
+     * the beam. Half of the rows are removed, so a beam filled with all visited rows would hold
+     * about half as many rows in use.
+     */
+    @Test
+    public void removedRowsTest() {
+        Random random = new Random(9);
+        VectorStore vectorStore = IndexRecall.createStore(random, Metric.COSINE, USERS,
+                VECTOR_LENGTH);
+        HnswIndex index = new HnswIndex();
+        index.attach(vectorStore);
+        index.setEfSearch(K);
+        for (int row = 0; row < USERS; row += 2) {
+            vectorStore.markRemoved(row);
+        }
+
+        float[][] queries = IndexRecall.createQueries(random, vectorStore, QUERIES, 0.3f);
+        double[] recall = IndexRecall.measure(vectorStore, index, queries, K);
+        assertTrue(recall[1] >= 0.9);
+    }
+}
@@ -0,0 +1,221 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for index file saved together with the database, compares searches of the saved
+ * database with searches of the loaded one.
+ */
+public class IndexFileTest {
+    private static final int VECTOR_LENGTH = 32;
+    private static final int USERS = 300;
+    private static final int QUERIES = 50;
+    private static final int K = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that index read from the file gives the same results as the saved index, with every
+     * index type. Trained index is read with its model, so it does not need training.
+     */
+    @Test
+    public void roundTripTest() {
+        for (IndexType indexType : IndexType.values()) {
+            if (indexType == IndexType.EXACT) {
+                continue;
+            }
+            String name = "roundTrip" + indexType;
+            Random random = new Random(53);
+            UserDatabase saved = createSavedDatabase(random, name, indexType);
+            assertTrue(indexType.name(), indexFile(name).exists());
+            float[][] queries = createQueries(random);
+
+            UserDatabase loaded = loadDatabase(name, indexType);
+            if (loaded.getSearchIndex() instanceof TrainableIndex) {
+                assertTrue(indexType.name(),
+                        ((TrainableIndex<?, ?>) loaded.getSearchIndex()).isTrained());
+            }
+            assertSameResults(indexType.name(), queries, saved, loaded);
+        }
+    }
+
+    /**
+     * Test that damaged or truncated index file is not used, index is rebuilt from the loaded
+     * rows instead and gives the same results as the saved index.
+     */
+    @Test
+    public void damagedFileTest() throws IOException {
+        for (IndexType indexType : new IndexType[]{IndexType.HNSW, IndexType.IVF,
+                IndexType.PQ}) {
+            for (boolean truncate : new boolean[]{false, true}) {
+                String description = indexType + (truncate ? " truncated" : " damaged");
+                String name = "damaged" + indexType + truncate;
+                Random random = new Random(59);
+                UserDatabase saved = createSavedDatabase(random, name, indexType);
+                float[][] queries = createQueries(random);
+
+                try (RandomAccessFile file = new RandomAccessFile(indexFile(name), "rw")) {
+                    if (truncate) {
+                        file.setLength(file.length() / 2);
+                    } else {
+                        long position = file.length() / 2;
+                        file.seek(position);
+                        int value = file.read();
+                        file.seek(position);
+                        file.write(value ^ 0xFF);
+                    }
+                }
+
+                UserDatabase loaded = loadDatabase(name, indexType);
+                if (loaded.getSearchIndex() instanceof TrainableIndex) {
+                    ((TrainableIndex<?, ?>) loaded.getSearchIndex()).train().join();
+                }
+                assertSameResults(description, queries, saved, loaded);
+            }
+        }
+    }
+
+    /**
+     * Test that HNSW file with valid checksums, which points to rows the store does not have, is
+     * not used, index is rebuilt instead and gives the same results as the saved index.
+     */
+    @Test
+    public void outOfRangeTest() throws IOException {
+        for (boolean entryPoint : new boolean[]{true, false}) {
+            String description = entryPoint ? "entry point" : "last link";
+            String name = "outOfRange" + entryPoint;
+            Random random = new Random(61);
+            UserDatabase saved = createSavedDatabase(random, name, IndexType.HNSW);
+            float[][] queries = createQueries(random);
+
+            try (RandomAccessFile file = new RandomAccessFile(indexFile(name), "rw")) {
+                long contentLength = file.length() - Long.BYTES;
+                long position = contentLength - Integer.BYTES;
+                if (entryPoint) {
+                    // Skip magic, version and names of index, metric and precision
+                    position = 2 * Integer.BYTES;
+                    for (int i = 0; i < 3; i++) {
+                        file.seek(position);
+                        position += Integer.BYTES + file.readInt();
+                    }
+                    // Skip vector length, rows, checksum of rows and m
+                    position += 3 * Integer.BYTES + Long.BYTES;
+                }
+                file.seek(position);
+                file.writeInt(USERS);
+
+                byte[] content = new byte[(int) contentLength];
+                file.seek(0);
+                file.readFully(content);
+                CRC32 crc = new CRC32();
+                crc.update(content);
+                file.writeLong(crc.getValue());
+            }
+
+            UserDatabase loaded = loadDatabase(name, IndexType.HNSW);
+            assertSameResults(description, queries, saved, loaded);
+        }
+    }
+
+    /**
+     * Test that database which keeps only codes of its index saves decoded rows, which are
+     * matched by the index file on load, so that the store drops the loaded vectors again and
+     * gives the same results as the saved database.
+     */
+    @Test
+    public void codesOnlyTest() {
+        TrainableIndex<?, ?>[] savedIndexes = {new PqIndex(PqIndex.DEFAULT_SUBSPACES, 0, false),
+                new Sq8Index(0, false)};
+        TrainableIndex<?, ?>[] loadedIndexes = {new PqIndex(PqIndex.DEFAULT_SUBSPACES, 0, false),
+                new Sq8Index(0, false)};
+        for (int i = 0; i < savedIndexes.length; i++) {
+            String description = savedIndexes[i].getClass().getSimpleName();
+            String name = "codesOnly" + i;
+            Random random = new Random(67);
+            UserDatabase saved = new UserDatabase(folder.getRoot(), name, VECTOR_LENGTH, false,
+                    Metric.EUCLIDEAN, 10, IndexType.EXACT, VectorPrecision.FLOAT32);
+            saved.setResultCache(0);
+            saved.disableDatabaseSaving();
+            saved.setSearchIndex(savedIndexes[i]);
+            for (int u = 0; u < USERS; u++) {
+                saved.addUserRecord(new UserRecord("user" + u,
+                        TestVectors.randomVector(random, VECTOR_LENGTH, 1)));
+            }
+            savedIndexes[i].train().join();
+            assertNotNull(description, savedIndexes[i].storeCodes());
+            saved.saveDatabase();
+            float[][] queries = createQueries(random);
+
+            UserDatabase loaded = new UserDatabase(folder.getRoot(), name, VECTOR_LENGTH, false,
+                    Metric.EUCLIDEAN, 10, IndexType.EXACT, VectorPrecision.FLOAT32);
+            loaded.setResultCache(0);
+            loaded.setSearchIndex(loadedIndexes[i]);
+            loaded.loadDatabase();
+            assertTrue(description, loadedIndexes[i].isTrained());
+            assertNotNull(description, loadedIndexes[i].storeCodes());
+            assertSameResults(description, queries, saved, loaded);
+        }
+    }
+
+    /**
+     * Create database of random users and save it with its trained index.
+     */
+    private UserDatabase createSavedDatabase(Random random, String name, IndexType indexType) {
+        UserDatabase database = new UserDatabase(folder.getRoot(), name, VECTOR_LENGTH, false,
+                Metric.EUCLIDEAN, 10, indexType, VectorPrecision.FLOAT32);
+        database.setResultCache(0);
+        database.disableDatabaseSaving();
+        for (int i = 0; i < USERS; i++) {
+            database.addUserRecord(new UserRecord("user" + i,
+                    TestVectors.randomVector(random, VECTOR_LENGTH, 1)));
+        }
+        if (database.getSearchIndex() instanceof TrainableIndex) {
+            ((TrainableIndex<?, ?>) database.getSearchIndex()).train().join();
+        }
+        database.saveDatabase();
+        return database;
+    }
+
+    private UserDatabase loadDatabase(String name, IndexType indexType) {
+        UserDatabase database = new UserDatabase(folder.getRoot(), name, VECTOR_LENGTH, true,
+                Metric.EUCLIDEAN, 10, indexType, VectorPrecision.FLOAT32);
+        database.setResultCache(0);
+        return database;
+    }
+
+    private File indexFile(String name) {
+        return new File(folder.getRoot(), "Database_" + name + ".index");
+    }
+
+    private static float[][] createQueries(Random random) {
+        float[][] queries = new float[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            queries[q] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+        }
+        return queries;
+    }
+
+    private static void assertSameResults(String description, float[][] queries,
+                                          UserDatabase expected, UserDatabase found) {
+        for (float[] query : queries) {
+            SearchResult expectedResult = expected.findKClosestRecords(query, K);
+            SearchResult foundResult = found.findKClosestRecords(query, K);
+            assertArrayEquals(description, expectedResult.usernames, foundResult.usernames);
+            assertArrayEquals(description, expectedResult.distances, foundResult.distances,
+                    1e-6f);
+        }
+    }
+}
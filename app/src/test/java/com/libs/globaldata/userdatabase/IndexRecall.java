@@ -0,0 +1,92 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import java.util.Random;
+
+/**
+ * Recall of search indexes against the exact scan of their store, shared by unit tests.
+ */
+class IndexRecall {
+    private IndexRecall() {
+    }
+
+    /**
+     * Create store of random vectors.
+     *
+     * @param random       source of randomness
+     * @param metric       metric of the store
+     * @param rows         number of rows
+     * @param vectorLength length of the vectors
+     * @return filled store
+     */
+    static VectorStore createStore(Random random, Metric metric, int rows, int vectorLength) {
+        VectorStore vectorStore = new VectorStore(vectorLength, metric);
+        for (int i = 0; i < rows; i++) {
+            vectorStore.add("user" + i, TestVectors.randomVector(random, vectorLength, 1), 1);
+        }
+        return vectorStore;
+    }
+
+    /**
+     * Create queries as noisy copies of random rows of the store.
+     *
+     * @param random      source of randomness
+     * @param vectorStore store to copy rows from
+     * @param count       number of queries
+     * @param noise       standard deviation of the noise
+     * @return queries
+     */
+    static float[][] createQueries(Random random, VectorStore vectorStore, int count, float noise) {
+        float[][] queries = new float[count][];
+        for (int q = 0; q < count; q++) {
+            queries[q] = TestVectors.noisyCopy(random,
+                    vectorStore.getVector(random.nextInt(vectorStore.size())), noise);
+        }
+        return queries;
+    }
+
+    /**
+     * Search the index with all queries and compare found rows with the exact scan of the store.
+     *
+     * @param vectorStore store the index is attached to
+     * @param index       measured index
+     * @param queries     searched vectors
+     * @param k           number of searched rows
+     * @return recall@1 and recall@k
+     */
+    static double[] measure(VectorStore vectorStore, SearchIndex index, float[][] queries, int k) {
+        int hitsAt1 = 0;
+        int hitsAtK = 0;
+        for (float[] query : queries) {
+            double norm = VectorOperations.l2Norm(query);
+
+            TopKHeap exact = new TopKHeap(k);
+            for (int row = 0; row < vectorStore.size(); row++) {
+                if (!vectorStore.isRemoved(row)) {
+                    exact.offer(row, (float) vectorStore.distance(query, norm, row));
+                }
+            }
+            int[] exactIds = new int[k];
+            exact.drain(exactIds, new float[k]);
+
+            TopKHeap found = new TopKHeap(k, vectorStore::isRemoved);
+            index.search(query, norm, found, Float.MAX_VALUE);
+            int[] foundIds = new int[k];
+            int foundCount = found.drain(foundIds, new float[k]);
+
+            if (foundCount > 0 && foundIds[0] == exactIds[0]) {
+                hitsAt1++;
+            }
+            for (int i = 0; i < foundCount; i++) {
+                for (int exactId : exactIds) {
+                    if (foundIds[i] == exactId) {
+                        hitsAtK++;
+                    }
+                }
+            }
+        }
+        return new double[]{(double) hitsAt1 / queries.length,
+                (double) hitsAtK / ((double) queries.length * k)};
+    }
+}
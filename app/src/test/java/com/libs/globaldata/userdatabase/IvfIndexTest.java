@@ -0,0 +1,81 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for inverted file index, compares it with the exact scan.
+ */
+public class IvfIndexTest {
+    private static final int VECTOR_LENGTH = 64;
+    private static final int USERS = 2000;
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+    private static final int LISTS = 16;
+
+    /**
+     * Test that more probes give better recall with every metric, and that probing all lists
+     * finds the same rows as the exact scan, so every row is in a list.
+     */
+    @Test
+    public void recallTest() {
+        for (Metric metric : Metric.values()) {
+            Random random = new Random(7);
+            VectorStore vectorStore = IndexRecall.createStore(random, metric, USERS,
+                    VECTOR_LENGTH);
+            IvfIndex index = new IvfIndex(LISTS, 1);
+            index.attach(vectorStore);
+            index.train().join();
+            assertTrue(index.isTrained());
+            float[][] queries = IndexRecall.createQueries(random, vectorStore, QUERIES, 0.3f);
+
+            double[] narrow = IndexRecall.measure(vectorStore, index, queries, K);
+            index.setProbes(LISTS / 2);
+            double[] wide = IndexRecall.measure(vectorStore, index, queries, K);
+            index.setProbes(LISTS);
+            double[] all = IndexRecall.measure(vectorStore, index, queries, K);
+
+            assertTrue(metric.name(), wide[1] >= narrow[1]);
+            assertTrue(metric.name(), wide[0] >= 0.9);
+            assertEquals(metric.name(), 1, all[1], 0);
+        }
+    }
+
+    /**
+     * Test that rows added after training are assigned to lists, and that the index searches
+     * all rows exactly until it is trained.
+     */
+    @Test
+    public void incrementalTest() {
+        Random random = new Random(9);
+        VectorStore vectorStore = IndexRecall.createStore(random, Metric.COSINE, LISTS - 1,
+                VECTOR_LENGTH);
+        IvfIndex index = new IvfIndex(LISTS, 1);
+        index.attach(vectorStore);
+        index.train().join();
+        assertFalse(index.isTrained());
+
+        float[][] queries = IndexRecall.createQueries(random, vectorStore, QUERIES, 0.3f);
+        assertEquals(1, IndexRecall.measure(vectorStore, index, queries, 1)[0], 0);
+
+        for (int i = LISTS - 1; i < USERS; i++) {
+            index.onAdd(vectorStore.add("user" + i,
+                    TestVectors.randomVector(random, VECTOR_LENGTH, 1), 1));
+        }
+        index.train().join();
+        assertTrue(index.isTrained());
+        for (int i = USERS; i < 2 * USERS; i++) {
+            index.onAdd(vectorStore.add("user" + i,
+                    TestVectors.randomVector(random, VECTOR_LENGTH, 1), 1));
+        }
+
+        index.setProbes(LISTS);
+        queries = IndexRecall.createQueries(random, vectorStore, QUERIES, 0.3f);
+        assertEquals(1, IndexRecall.measure(vectorStore, index, queries, K)[1], 0);
+    }
+}
@@ -0,0 +1,48 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for random-hyperplane LSH index, compares it with the exact scan.
+ */
+public class LshIndexTest {
+    private static final int VECTOR_LENGTH = 64;
+    private static final int USERS = 2000;
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+
+    /**
+     * Test that index finds the closest row with normalized metrics and that more tables give
+     * better recall. Half of the rows are hashed when the index is attached, half are inserted
+     * one by one as they are added to the store. Further neighbours of random vectors are not
+     * much closer than other rows, so recall@k stays low.
+     */
+    @Test
+    public void recallTest() {
+        for (Metric metric : new Metric[]{Metric.COSINE, Metric.EUCLIDEAN_NORM}) {
+            double[] few = measureRecall(metric, new LshIndex(2, LshIndex.DEFAULT_BITS));
+            double[] many = measureRecall(metric, new LshIndex());
+
+            assertTrue(metric.name(), many[0] >= 0.95);
+            assertTrue(metric.name(), many[0] > few[0]);
+            assertTrue(metric.name(), many[1] > few[1]);
+        }
+    }
+
+    private static double[] measureRecall(Metric metric, LshIndex index) {
+        Random random = new Random(7);
+        VectorStore vectorStore = IndexRecall.createStore(random, metric, USERS / 2,
+                VECTOR_LENGTH);
+        index.attach(vectorStore);
+        for (int i = USERS / 2; i < USERS; i++) {
+            index.onAdd(vectorStore.add("user" + i,
+                    TestVectors.randomVector(random, VECTOR_LENGTH, 1), 1));
+        }
+        float[][] queries = IndexRecall.createQueries(random, vectorStore, QUERIES, 0.3f);
+        return IndexRecall.measure(vectorStore, index, queries, K);
+    }
+}
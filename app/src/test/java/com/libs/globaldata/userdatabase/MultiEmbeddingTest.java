@@ -0,0 +1,153 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit test for users with several embeddings and aggregation of their distances.
+ */
+public class MultiEmbeddingTest {
+    private static final int VECTOR_LENGTH = 32;
+    private static final int USERS = 300;
+    private static final int EMBEDDINGS = 3;
+    private static final int QUERIES = 50;
+    private static final int K = 5;
+
+    /**
+     * Test that photos are kept as separate embeddings up to the limit, and further photos are
+     * averaged into the closest embedding with its weight.
+     */
+    @Test
+    public void embeddingsTest() {
+        UserDatabase database = createDatabase(Aggregation.MIN);
+        database.addUserRecord(new UserRecord("alice", face(0)));
+        database.addUserRecord(new UserRecord("alice", face(10)));
+        database.addUserRecord(new UserRecord("alice", face(20)));
+        assertEquals(1, database.getNumberOfUsers());
+        assertEquals(EMBEDDINGS, database.getUserEmbeddings("alice").length);
+
+        database.addUserRecord(new UserRecord("alice", face(12)));
+        UserRecord[] embeddings = database.getUserEmbeddings("alice");
+        assertEquals(EMBEDDINGS, embeddings.length);
+        float[] positions = new float[EMBEDDINGS];
+        for (int i = 0; i < EMBEDDINGS; i++) {
+            positions[i] = embeddings[i].vector[0];
+        }
+        Arrays.sort(positions);
+        assertArrayEquals(new float[]{0, 11, 20}, positions, 1e-6f);
+    }
+
+    /**
+     * Test that MIN aggregation ranks users by their closest embedding, and MEAN by mean of
+     * their closest embeddings, so that a single outlier photo does not decide.
+     */
+    @Test
+    public void aggregationTest() {
+        for (Aggregation aggregation : Aggregation.values()) {
+            UserDatabase database = createDatabase(aggregation);
+            database.addUserRecord(new UserRecord("alice", face(0)));
+            database.addUserRecord(new UserRecord("alice", face(10)));
+            database.addUserRecord(new UserRecord("alice", face(11)));
+            for (int i = 0; i < EMBEDDINGS; i++) {
+                database.addUserRecord(new UserRecord("bob", face(2)));
+            }
+
+            SearchResult result = database.findKClosestRecords(face(0), 2);
+            if (aggregation == Aggregation.MIN) {
+                assertArrayEquals(new String[]{"alice", "bob"}, result.usernames);
+                assertArrayEquals(new float[]{0, 2}, result.distances, 1e-6f);
+            } else {
+                assertArrayEquals(new String[]{"bob", "alice"}, result.usernames);
+                assertArrayEquals(new float[]{2, 7}, result.distances, 1e-6f);
+            }
+        }
+    }
+
+    /**
+     * Test that k closest users and their distances match aggregation of distances of all
+     * embeddings, with every aggregation and index type.
+     */
+    @Test
+    public void closestUsersTest() {
+        for (IndexType indexType : new IndexType[]{IndexType.EXACT, IndexType.VPTREE}) {
+            for (Aggregation aggregation : Aggregation.values()) {
+                String description = indexType + " " + aggregation;
+                Random random = new Random(37);
+                UserDatabase database = new UserDatabase("embeddings", VECTOR_LENGTH,
+                        Metric.EUCLIDEAN, 10, indexType, VectorPrecision.FLOAT32);
+                database.setMaxEmbeddings(EMBEDDINGS);
+                database.setAggregation(aggregation);
+
+                float[][] identities = new float[USERS][];
+                for (int i = 0; i < USERS; i++) {
+                    identities[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+                    for (int j = 0; j < EMBEDDINGS; j++) {
+                        database.addUserRecord(new UserRecord("user" + i,
+                                TestVectors.noisyCopy(random, identities[i], 0.5f)));
+                    }
+                }
+
+                for (int q = 0; q < QUERIES; q++) {
+                    float[] query = TestVectors.noisyCopy(random,
+                            identities[random.nextInt(USERS)], 0.5f);
+                    SearchResult expected = aggregate(database, query, aggregation);
+                    SearchResult found = database.findKClosestRecords(query, K);
+                    assertArrayEquals(description, expected.usernames, found.usernames);
+                    assertArrayEquals(description, expected.distances, found.distances, 1e-4f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Rank all users by aggregated distances of all their embeddings.
+     */
+    private static SearchResult aggregate(UserDatabase database, float[] query,
+                                          Aggregation aggregation) {
+        DistanceKernel kernel = Metric.EUCLIDEAN.getKernel();
+        String[] users = database.getUsersArray();
+        TopKHeap heap = new TopKHeap(K);
+        for (int i = 0; i < users.length; i++) {
+            UserRecord[] embeddings = database.getUserEmbeddings(users[i]);
+            float[] distances = new float[embeddings.length];
+            for (int j = 0; j < embeddings.length; j++) {
+                distances[j] = (float) kernel.distance(query, embeddings[j].vector);
+            }
+            Arrays.sort(distances);
+            float distance = distances[0];
+            if (aggregation == Aggregation.MEAN) {
+                distance = (distances[0] + distances[1] + distances[2]) / 3;
+            }
+            heap.offer(i, distance);
+        }
+
+        int[] ids = new int[K];
+        float[] distances = new float[K];
+        heap.drain(ids, distances);
+        String[] usernames = new String[K];
+        for (int i = 0; i < K; i++) {
+            usernames[i] = users[ids[i]];
+        }
+        return new SearchResult(ids, distances, usernames);
+    }
+
+    private static UserDatabase createDatabase(Aggregation aggregation) {
+        UserDatabase database = new UserDatabase("embeddings", 4, Metric.EUCLIDEAN, 100,
+                IndexType.EXACT, VectorPrecision.FLOAT32);
+        database.setMaxEmbeddings(EMBEDDINGS);
+        database.setAggregation(aggregation);
+        return database;
+    }
+
+    /**
+     * Create face at given position on a line.
+     */
+    private static float[] face(float position) {
+        return new float[]{position, 0, 0, 1};
+    }
+}
@@ -0,0 +1,86 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Unit test for parallel exact search, compares it with the scan on the calling thread.
+ */
+public class ParallelScanTest {
+    private static final int VECTOR_LENGTH = 64;
+    private static final int USERS = 5000;
+    private static final int QUERIES = 50;
+    private static final int K = 10;
+
+    /**
+     * Test that search split across threads finds the same users with the same distances as
+     * the sequential scan, with every aggregation, also when the store has removed rows.
+     */
+    @Test
+    public void sameResultsTest() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for (Aggregation aggregation : Aggregation.values()) {
+            Random random = new Random(19);
+            UserDatabase parallel = createDatabase(aggregation);
+            parallel.setParallelScan(pool, 1);
+            UserDatabase sequential = createDatabase(aggregation);
+            sequential.setParallelScan(null, 1);
+
+            float[][] identities = new float[USERS][];
+            for (int i = 0; i < USERS; i++) {
+                identities[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+                enroll(random, "user" + i, identities[i], parallel, sequential);
+                enroll(random, "user" + i, identities[i], parallel, sequential);
+            }
+            assertSameResults(random, identities, parallel, sequential, aggregation.name());
+
+            // Closest embeddings are replaced, old rows stay in the store as removed
+            for (int i = 0; i < USERS; i += 2) {
+                enroll(random, "user" + i, identities[i], parallel, sequential);
+            }
+            assertSameResults(random, identities, parallel, sequential, aggregation.name());
+        }
+        pool.shutdown();
+    }
+
+    private static void assertSameResults(Random random, float[][] identities,
+                                          UserDatabase parallel, UserDatabase sequential,
+                                          String description) {
+        float[][] batch = new float[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            batch[q] = TestVectors.noisyCopy(random, identities[random.nextInt(USERS)], 0.3f);
+        }
+
+        SearchResult[] expected = sequential.findKClosestRecords(batch, K, Float.MAX_VALUE);
+        SearchResult[] found = parallel.findKClosestRecords(batch, K, Float.MAX_VALUE);
+        for (int q = 0; q < QUERIES; q++) {
+            assertArrayEquals(description, expected[q].usernames, found[q].usernames);
+            assertArrayEquals(description, expected[q].distances, found[q].distances, 0);
+
+            SearchResult single = parallel.findKClosestRecords(batch[q], K);
+            assertArrayEquals(description, expected[q].usernames, single.usernames);
+        }
+    }
+
+    private static void enroll(Random random, String username, float[] identity,
+                               UserDatabase... databases) {
+        float[] vector = TestVectors.noisyCopy(random, identity, 0.3f);
+        for (UserDatabase database : databases) {
+            database.addUserRecord(new UserRecord(username, vector.clone()));
+        }
+    }
+
+    private static UserDatabase createDatabase(Aggregation aggregation) {
+        UserDatabase database = new UserDatabase("parallel", VECTOR_LENGTH, Metric.COSINE, 0.3f,
+                IndexType.EXACT, VectorPrecision.FLOAT32);
+        database.setMaxEmbeddings(2);
+        database.setCompactionRatio(1);
+        database.setAggregation(aggregation);
+        database.setResultCache(0);
+        return database;
+    }
+}
@@ -0,0 +1,118 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for principal component index. Rows lie close to a low-dimensional subspace, like
+ * face vectors, so that a few components keep most of their energy.
+ */
+public class PcaIndexTest {
+    private static final int VECTOR_LENGTH = 64;
+    private static final int RANK = 8;
+    private static final int USERS = 2000;
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+
+    /**
+     * Test that scan of reduced vectors with re-ranking finds the closest rows with every
+     * metric, and that learned components are orthonormal and keep most of the energy.
+     */
+    @Test
+    public void recallTest() {
+        for (Metric metric : Metric.values()) {
+            Random random = new Random(7);
+            float[][] basis = createBasis(random);
+            VectorStore vectorStore = new VectorStore(VECTOR_LENGTH, metric);
+            PcaIndex index = new PcaIndex(2 * RANK, K);
+            index.attach(vectorStore);
+            for (int i = 0; i < USERS; i++) {
+                index.onAdd(vectorStore.add("user" + i, createRow(random, basis), 1));
+            }
+            index.train().join();
+            assertTrue(index.isTrained());
+
+            PcaIndex.Projection projection = index.model;
+            assertTrue(metric.name(), projection.residual < 0.05);
+            for (int a = 0; a < 2 * RANK; a++) {
+                for (int b = 0; b < 2 * RANK; b++) {
+                    assertEquals(metric.name(), a == b ? 1 : 0,
+                            VectorOperations.dotProduct(projection.components, a * VECTOR_LENGTH,
+                                    projection.components, b * VECTOR_LENGTH, VECTOR_LENGTH),
+                            1e-3);
+                }
+            }
+
+            float[][] queries = IndexRecall.createQueries(random, vectorStore, QUERIES, 0.05f);
+            double[] narrow = IndexRecall.measure(vectorStore, index, queries, K);
+            index.setRerank(PcaIndex.DEFAULT_RERANK);
+            double[] wide = IndexRecall.measure(vectorStore, index, queries, K);
+
+            assertTrue(metric.name(), wide[0] >= 0.95);
+            assertTrue(metric.name(), wide[1] >= 0.9);
+            assertTrue(metric.name(), wide[1] >= narrow[1]);
+        }
+    }
+
+    /**
+     * Test that projection is trained again, when added rows lie away from the learned
+     * subspace, before the database doubles its size.
+     */
+    @Test
+    public void driftTest() throws InterruptedException {
+        Random random = new Random(9);
+        VectorStore vectorStore = new VectorStore(VECTOR_LENGTH, Metric.EUCLIDEAN);
+        PcaIndex index = new PcaIndex(RANK, K);
+        index.attach(vectorStore);
+        float[][] basis = createBasis(random);
+        for (int i = 0; i < USERS; i++) {
+            index.onAdd(vectorStore.add("user" + i, createRow(random, basis), 1));
+        }
+        index.train().join();
+        PcaIndex.Projection projection = index.model;
+
+        float[][] drifted = createBasis(random);
+        for (int i = USERS; i < USERS + USERS / 4; i++) {
+            index.onAdd(vectorStore.add("user" + i, createRow(random, drifted), 1));
+        }
+        for (int wait = 0; wait < 100 && index.isTraining(); wait++) {
+            Thread.sleep(50);
+        }
+
+        synchronized (index) {
+            assertNotSame(projection, index.model);
+        }
+    }
+
+    /**
+     * Create random directions of the subspace of rows.
+     */
+    private static float[][] createBasis(Random random) {
+        float[][] basis = new float[RANK][];
+        for (int r = 0; r < RANK; r++) {
+            basis[r] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+        }
+        return basis;
+    }
+
+    /**
+     * Create row as random combination of the basis with a little noise.
+     */
+    private static float[] createRow(Random random, float[][] basis) {
+        float[] row = TestVectors.randomVector(random, VECTOR_LENGTH, 0.05f);
+        for (float[] direction : basis) {
+            float weight = (float) random.nextGaussian();
+            for (int i = 0; i < VECTOR_LENGTH; i++) {
+                row[i] += weight * direction[i];
+            }
+        }
+        return row;
+    }
+}
@@ -0,0 +1,135 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for product quantization index, compares it with the exact scan.
+ */
+public class ProductQuantizationTest {
+    private static final int VECTOR_LENGTH = 64;
+    private static final int USERS = 2000;
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+
+    // Rows of stores which are not trained automatically before and after the first training
+    private static final int TRAINED_ROWS = 500;
+    private static final int ADDED_ROWS = 400;
+
+    /**
+     * Test recall of table lookups alone and with full-precision re-ranking, with every metric.
+     */
+    @Test
+    public void recallTest() {
+        for (Metric metric : Metric.values()) {
+            Random random = new Random(7);
+            VectorStore vectorStore = IndexRecall.createStore(random, metric, USERS,
+                    VECTOR_LENGTH);
+            PqIndex index = new PqIndex(PqIndex.DEFAULT_SUBSPACES, 0);
+            index.attach(vectorStore);
+            index.train().join();
+            assertTrue(index.isTrained());
+            float[][] queries = IndexRecall.createQueries(random, vectorStore, QUERIES, 0.3f);
+
+            double[] quantized = IndexRecall.measure(vectorStore, index, queries, K);
+            index.setRerank(PqIndex.DEFAULT_RERANK);
+            double[] reranked = IndexRecall.measure(vectorStore, index, queries, K);
+
+            assertTrue(metric.name(), quantized[0] >= 0.8);
+            assertTrue(metric.name(), quantized[1] >= 0.6);
+            assertTrue(metric.name(), reranked[0] >= 0.95);
+            assertTrue(metric.name(), reranked[1] >= quantized[1]);
+        }
+    }
+
+    /**
+     * Test that index which does not retain vectors makes the store keep only the codes, finds
+     * the same rows as index over the full-precision store, also rows added after training, and
+     * that the store reads rows as their centroids.
+     */
+    @Test
+    public void codesOnlyTest() {
+        Random random = new Random(11);
+        VectorStore retained = new VectorStore(VECTOR_LENGTH, Metric.EUCLIDEAN);
+        VectorStore dropped = new VectorStore(VECTOR_LENGTH, Metric.EUCLIDEAN);
+        for (int i = 0; i < TRAINED_ROWS; i++) {
+            float[] vector = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+            retained.add("user" + i, vector, 1);
+            dropped.add("user" + i, vector, 1);
+        }
+        PqIndex retainedIndex = new PqIndex(PqIndex.DEFAULT_SUBSPACES, 0);
+        PqIndex droppedIndex = new PqIndex(PqIndex.DEFAULT_SUBSPACES, 0, false);
+        retainedIndex.attach(retained);
+        droppedIndex.attach(dropped);
+        retainedIndex.train().join();
+        droppedIndex.train().join();
+        assertNull(retainedIndex.storeCodes());
+        assertNotNull(droppedIndex.storeCodes());
+
+        for (int i = TRAINED_ROWS; i < TRAINED_ROWS + ADDED_ROWS; i++) {
+            float[] vector = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+            retainedIndex.onAdd(retained.add("user" + i, vector, 1));
+            droppedIndex.onAdd(dropped.add("user" + i, vector, 1));
+        }
+
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = TestVectors.noisyCopy(random,
+                    retained.getVector(random.nextInt(retained.size())), 0.3f);
+            double queryNorm = VectorOperations.l2Norm(query);
+            int[][] ids = new int[2][K];
+            float[][] distances = new float[2][K];
+            PqIndex[] indexes = {retainedIndex, droppedIndex};
+            for (int i = 0; i < indexes.length; i++) {
+                TopKHeap heap = new TopKHeap(K);
+                indexes[i].search(query, queryNorm, heap, Float.MAX_VALUE);
+                heap.drain(ids[i], distances[i]);
+            }
+            assertArrayEquals(ids[0], ids[1]);
+            assertArrayEquals(distances[0], distances[1], 0);
+
+            // Distance of table lookups is the distance of the centroids
+            for (int i = 0; i < K; i++) {
+                assertEquals(distances[1][i], dropped.distance(query, queryNorm, ids[1][i]), 1e-4);
+            }
+        }
+    }
+
+    /**
+     * Test that rows added while rows are encoded with the new model are encoded too, so they
+     * are found by table lookups alone.
+     */
+    @Test
+    public void addDuringTrainingTest() {
+        Random random = new Random(9);
+        VectorStore vectorStore = IndexRecall.createStore(random, Metric.EUCLIDEAN, USERS,
+                VECTOR_LENGTH);
+        PqIndex index = new PqIndex(PqIndex.DEFAULT_SUBSPACES, 0);
+        index.attach(vectorStore);
+
+        CompletableFuture<Void> training = index.train();
+        for (int i = USERS; i < 2 * USERS; i++) {
+            index.onAdd(vectorStore.add("user" + i,
+                    TestVectors.randomVector(random, VECTOR_LENGTH, 1), 1));
+        }
+        training.join();
+        assertTrue(index.isTrained());
+
+        // Queries close to the added rows
+        float[][] queries = new float[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            queries[q] = TestVectors.noisyCopy(random,
+                    vectorStore.getVector(USERS + random.nextInt(USERS)), 0.3f);
+        }
+        assertTrue(IndexRecall.measure(vectorStore, index, queries, K)[0] >= 0.8);
+    }
+}
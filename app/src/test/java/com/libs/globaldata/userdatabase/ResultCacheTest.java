@@ -0,0 +1,120 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit test for cache of the closest user searches, compares database with and without it.
+ */
+public class ResultCacheTest {
+    private static final int VECTOR_LENGTH = 128;
+    private static final int USERS = 200;
+    private static final int FACES = 60;
+    private static final int FRAMES = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that the cache never changes results of exact searches, for every metric and
+     * aggregation. Every face is searched in consecutive frames, with almost identical vectors,
+     * before and after users are enrolled again, which leaves removed rows in the store.
+     */
+    @Test
+    public void sameResultsTest() {
+        for (IndexType indexType : new IndexType[]{IndexType.EXACT, IndexType.VPTREE}) {
+            for (Metric metric : Metric.values()) {
+                for (Aggregation aggregation : Aggregation.values()) {
+                    String description = indexType + " " + metric + " " + aggregation;
+                    float threshold = metric == Metric.EUCLIDEAN ? 8 : 0.3f;
+                    UserDatabase cached = createDatabase(indexType, metric, threshold, aggregation);
+                    UserDatabase uncached = createDatabase(indexType, metric, threshold,
+                            aggregation);
+                    uncached.setResultCache(0);
+
+                    Random random = new Random(13);
+                    float[][] identities = new float[USERS][];
+                    for (int i = 0; i < USERS; i++) {
+                        identities[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+                        enroll(random, "user" + i, identities[i], cached, uncached);
+                        enroll(random, "user" + i, identities[i], cached, uncached);
+                    }
+                    int hits = assertSameResults(random, identities, cached, uncached, description);
+
+                    // Users have all embeddings, so their closest rows are replaced
+                    for (int i = 0; i < USERS; i += 3) {
+                        enroll(random, "user" + i, identities[i], cached, uncached);
+                    }
+                    assertSameResults(random, identities, cached, uncached, description);
+
+                    boolean cacheUsed = metric != Metric.COSINE || aggregation != Aggregation.MEAN;
+                    assertEquals(description, cacheUsed, hits > 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Search faces of users and of strangers in consecutive frames in both databases.
+     *
+     * @return number of frames, which vectors were found in the cache before they were searched
+     */
+    private static int assertSameResults(Random random, float[][] identities, UserDatabase cached,
+                                         UserDatabase uncached, String description) {
+        int hits = 0;
+        for (int face = 0; face < FACES; face++) {
+            float[] base = face % 3 == 0
+                    ? TestVectors.randomVector(random, VECTOR_LENGTH, 1)
+                    : TestVectors.noisyCopy(random, identities[random.nextInt(USERS)], 0.3f);
+            for (int frame = 0; frame < FRAMES; frame++) {
+                float[] vector = TestVectors.noisyCopy(random, base, 0.01f);
+                if (isCached(cached, vector)) {
+                    hits++;
+                }
+
+                UserRecord expected = uncached.findClosestRecordBelowThreshold(vector);
+                UserRecord found = cached.findClosestRecordBelowThreshold(vector);
+                assertEquals(description, expected == null, found == null);
+                if (expected != null) {
+                    assertEquals(description, expected.username, found.username);
+                }
+                assertEquals(description, uncached.findClosestRecord(vector).username,
+                        cached.findClosestRecord(vector).username);
+            }
+        }
+        return hits;
+    }
+
+    private static boolean isCached(UserDatabase database, float[] vector) {
+        ResultCache cache = database.getResultCache();
+        for (ResultCache.CachedResult entry : cache.find(vector)) {
+            if (entry != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void enroll(Random random, String username, float[] identity,
+                               UserDatabase... databases) {
+        float[] vector = TestVectors.noisyCopy(random, identity, 0.3f);
+        for (UserDatabase database : databases) {
+            database.addUserRecord(new UserRecord(username, vector.clone()));
+        }
+    }
+
+    private UserDatabase createDatabase(IndexType indexType, Metric metric, float threshold,
+                                        Aggregation aggregation) {
+        UserDatabase database = new UserDatabase(folder.getRoot(), "cache", VECTOR_LENGTH, false,
+                metric, threshold, indexType, VectorPrecision.FLOAT32);
+        database.disableDatabaseSaving();
+        database.setMaxEmbeddings(2);
+        database.setAggregation(aggregation);
+        return database;
+    }
+}
@@ -0,0 +1,117 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for int8 scalar quantization index.
+ */
+public class ScalarQuantizationTest {
+    private static final int VECTOR_LENGTH = 128;
+    private static final int USERS = 2000;
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+
+    /**
+     * Test of recall of quantized search without re-ranking, against exact float distances.
+     */
+    @Test
+    public void recallWithoutRerankTest() {
+        double[] recall = measureRecall(new Sq8Index(0));
+        assertTrue(recall[0] >= 0.95);
+        assertTrue(recall[1] >= 0.9);
+    }
+
+    /**
+     * Test of recall of quantized search with full-precision re-ranking.
+     */
+    @Test
+    public void recallWithRerankTest() {
+        double[] recall = measureRecall(new Sq8Index(Sq8Index.DEFAULT_RERANK));
+        assertTrue(recall[0] >= 0.99);
+        assertTrue(recall[1] >= 0.95);
+    }
+
+    /**
+     * Test that index which does not retain vectors keeps recall of quantized search, while the
+     * store keeps only the codes and reads rows within half of the quantization step.
+     */
+    @Test
+    public void codesOnlyTest() {
+        Sq8Index index = new Sq8Index(0, false);
+        double[] recall = measureRecall(index);
+        assertTrue(recall[0] >= 0.95);
+        assertTrue(recall[1] >= 0.9);
+        assertNotNull(index.storeCodes());
+
+        // Same vectors as stored by measureRecall
+        Random random = new Random(7);
+        float step = index.model[VECTOR_LENGTH];
+        for (int i = 0; i < USERS; i++) {
+            float[] vector = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+            float[] decoded = index.vectorStore.getVector(i);
+            for (int j = 0; j < VECTOR_LENGTH; j++) {
+                assertEquals(vector[j], decoded[j], step / 2 + 1e-5f);
+            }
+        }
+    }
+
+    /**
+     * Fill store with clustered random vectors, search it with the index and compare results
+     * with exact search using VectorOperations.euclideanDistance.
+     *
+     * @param index index to measure
+     * @return recall@1 and recall@K
+     */
+    private static double[] measureRecall(Sq8Index index) {
+        Random random = new Random(7);
+        VectorStore vectorStore = new VectorStore(VECTOR_LENGTH, Metric.EUCLIDEAN);
+        float[][] vectors = new float[USERS][];
+        for (int i = 0; i < USERS; i++) {
+            vectors[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+            vectorStore.add("user" + i, vectors[i], 1);
+        }
+        index.attach(vectorStore);
+        index.train().join();
+        assertTrue(index.isTrained());
+
+        int hitsAt1 = 0;
+        int hitsAtK = 0;
+        for (int q = 0; q < QUERIES; q++) {
+            // Query is a noisy copy of the stored vector
+            float[] query = TestVectors.noisyCopy(random, vectors[random.nextInt(USERS)], 0.3f);
+
+            TopKHeap exact = new TopKHeap(K);
+            for (int i = 0; i < USERS; i++) {
+                exact.offer(i, (float) VectorOperations.euclideanDistance(query, vectors[i]));
+            }
+            int[] exactIds = new int[K];
+            exact.drain(exactIds, new float[K]);
+
+            TopKHeap found = new TopKHeap(K);
+            index.search(query, VectorOperations.l2Norm(query), found, Float.MAX_VALUE);
+            int[] foundIds = new int[K];
+            found.drain(foundIds, new float[K]);
+
+            if (foundIds[0] == exactIds[0]) {
+                hitsAt1++;
+            }
+            for (int foundId : foundIds) {
+                for (int exactId : exactIds) {
+                    if (foundId == exactId) {
+                        hitsAtK++;
+                    }
+                }
+            }
+        }
+
+        return new double[]{(double) hitsAt1 / QUERIES, (double) hitsAtK / (QUERIES * K)};
+    }
+}
@@ -0,0 +1,82 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for evaluation of search indexes, runs evaluation of all index types on synthetic
+ * gallery.
+ */
+public class SearchEvaluationTest {
+    private static final int VECTOR_LENGTH = 128;
+    private static final int USERS = 2000;
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+    private static final float THRESHOLD = 0.3f;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that exact modes match the ground truth and that recall of approximate modes grows
+     * with their search effort.
+     * Half of the queries are noisy faces of enrolled users, half are faces of strangers.
+     */
+    @Test
+    public void evaluationTest() {
+        Random random = new Random(7);
+        UserDatabase database = new UserDatabase(folder.getRoot(), "evaluation", VECTOR_LENGTH,
+                false, Metric.COSINE, THRESHOLD, IndexType.EXACT, VectorPrecision.FLOAT32);
+        database.disableDatabaseSaving();
+        float[][] vectors = new float[USERS][];
+        for (int i = 0; i < USERS; i++) {
+            vectors[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+            database.addUserRecord(new UserRecord("user" + i, vectors[i].clone()));
+        }
+
+        float[][] queries = new float[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            queries[q] = q % 2 == 0
+                    ? TestVectors.noisyCopy(random, vectors[random.nextInt(USERS)], 0.5f)
+                    : TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+        }
+
+        SearchEvaluation evaluation = new SearchEvaluation(database, queries, K);
+        List<EvaluationResult> results = evaluation.evaluate(SearchEvaluation.defaultSweep());
+        assertEquals(SearchEvaluation.defaultSweep().size() + 1, results.size());
+        EvaluationResult previous = null;
+        for (EvaluationResult result : results) {
+            boolean exact = result.description.equals("EXACT")
+                    || result.description.equals("VPTREE");
+            if (exact) {
+                assertEquals(1, result.recallAt1, 0);
+                assertEquals(1, result.recallAtK, 0);
+                assertEquals(1, result.decisionAgreement, 0);
+            }
+            assertTrue(result.recallAtK >= 0 && result.recallAtK <= 1);
+            assertTrue(result.p50Nanos > 0 && result.p50Nanos <= result.p99Nanos);
+            assertEquals(result.description.equals("EXACT"), result.memoryBytes == 0);
+
+            // Sweep of one index type is ordered by growing effort
+            if (previous != null && indexName(previous).equals(indexName(result))) {
+                assertTrue(result.recallAtK >= previous.recallAtK);
+            }
+            previous = result;
+        }
+
+        // Database is searched with its own index again
+        assertEquals(null, database.getSearchIndex());
+        assertEquals(USERS, database.getNumberOfUsers());
+    }
+
+    private static String indexName(EvaluationResult result) {
+        return result.description.split(" ")[0];
+    }
+}
@@ -0,0 +1,43 @@
+package com.libs.globaldata.userdatabase;
+
+import java.util.Random;
+
+/**
+ * Synthetic face vectors shared by unit tests.
+ */
+class TestVectors {
+    private TestVectors() {
+    }
+
+    /**
+     * Create vector of normally distributed values.
+     *
+     * @param random source of randomness
+     * @param length length of the vector
+     * @param scale  standard deviation of the values
+     * @return new vector
+     */
+    static float[] randomVector(Random random, int length, float scale) {
+        float[] vector = new float[length];
+        for (int i = 0; i < length; i++) {
+            vector[i] = (float) random.nextGaussian() * scale;
+        }
+        return vector;
+    }
+
+    /**
+     * Create noisy copy of the vector, e.g. another face of the same person.
+     *
+     * @param random source of randomness
+     * @param base   vector to copy
+     * @param noise  standard deviation of the added noise
+     * @return new vector
+     */
+    static float[] noisyCopy(Random random, float[] base, float noise) {
+        float[] vector = randomVector(random, base.length, noise);
+        for (int i = 0; i < base.length; i++) {
+            vector[i] += base[i];
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,159 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for tiered storage, compares database keeping few users in memory with database
+ * keeping all of them.
+ */
+public class TieredStorageTest {
+    private static final int VECTOR_LENGTH = 32;
+    private static final int USERS = 200;
+    private static final int HOT_USERS = 20;
+    private static final int QUERIES = 100;
+    private static final int K = 5;
+    private static final float THRESHOLD = 3;
+    private static final int THREADS = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that searches give the same results with and without the cold tier, with exact index
+     * types, while matched users move between tiers.
+     */
+    @Test
+    public void sameResultsTest() {
+        for (IndexType indexType : new IndexType[]{IndexType.EXACT, IndexType.VPTREE}) {
+            Random random = new Random(43);
+            UserDatabase tiered = createDatabase("tiered" + indexType, indexType);
+            UserDatabase plain = createDatabase("plain" + indexType, indexType);
+            tiered.enableTieredStorage(HOT_USERS);
+            float[][] identities = new float[USERS][];
+            for (int i = 0; i < USERS; i++) {
+                identities[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+                tiered.addUserRecord(new UserRecord("user" + i, identities[i]));
+                plain.addUserRecord(new UserRecord("user" + i, identities[i]));
+            }
+            assertEquals(indexType.name(), HOT_USERS, tiered.getTierStats().hotUsers);
+            assertEquals(indexType.name(), USERS - HOT_USERS, tiered.getTierStats().coldUsers);
+
+            for (int q = 0; q < QUERIES; q++) {
+                float[] query = TestVectors.noisyCopy(random,
+                        identities[random.nextInt(USERS)], 0.3f);
+                SearchResult expected = plain.findKClosestRecords(query, K);
+                SearchResult found = tiered.findKClosestRecords(query, K);
+                assertArrayEquals(indexType.name(), expected.usernames, found.usernames);
+                assertArrayEquals(indexType.name(), expected.distances, found.distances, 1e-4f);
+                assertEquals(indexType.name(),
+                        plain.findClosestRecordBelowThreshold(query).username,
+                        tiered.findClosestRecordBelowThreshold(query).username);
+            }
+            TierStats stats = tiered.getTierStats();
+            assertEquals(indexType.name(), HOT_USERS, stats.hotUsers);
+            assertEquals(indexType.name(), USERS, stats.hotUsers + stats.coldUsers);
+        }
+    }
+
+    /**
+     * Test that user matched in the cold tier is promoted, and other user is demoted to keep
+     * size of the hot tier, so that the next search of the user is a hit of the hot tier.
+     */
+    @Test
+    public void promotionTest() {
+        Random random = new Random(47);
+        UserDatabase database = createDatabase("promotion", IndexType.EXACT);
+        database.enableTieredStorage(HOT_USERS);
+        float[][] identities = new float[USERS][];
+        for (int i = 0; i < USERS; i++) {
+            identities[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+            database.addUserRecord(new UserRecord("user" + i, identities[i]));
+        }
+        TierStats before = database.getTierStats();
+
+        for (int i = 0; i < USERS; i++) {
+            assertEquals("user" + i, database.findClosestRecordBelowThreshold(identities[i])
+                    .username);
+        }
+        TierStats stats = database.getTierStats();
+        assertEquals(USERS, stats.searches);
+        assertEquals(USERS, stats.hotHits + stats.coldHits);
+        assertEquals(stats.coldScans, stats.coldHits);
+        assertTrue(stats.coldHits >= USERS - HOT_USERS);
+        assertEquals(stats.coldHits, stats.promotions - before.promotions);
+        assertEquals(stats.coldHits, stats.demotions - before.demotions);
+        assertEquals(HOT_USERS, stats.hotUsers);
+
+        int index = USERS - 1;
+        assertEquals("user" + index, database.findClosestRecordBelowThreshold(identities[index])
+                .username);
+        assertEquals(stats.hotHits + 1, database.getTierStats().hotHits);
+    }
+
+    /**
+     * Test that concurrent searches, which promote and demote users, keep both tiers and
+     * counters consistent, and that every user is still found afterwards.
+     */
+    @Test
+    public void concurrentSearchTest() throws InterruptedException, ExecutionException {
+        Random random = new Random(51);
+        UserDatabase database = createDatabase("concurrent", IndexType.EXACT);
+        database.enableTieredStorage(HOT_USERS);
+        float[][] identities = new float[USERS][];
+        for (int i = 0; i < USERS; i++) {
+            identities[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+            database.addUserRecord(new UserRecord("user" + i, identities[i]));
+        }
+        TierStats before = database.getTierStats();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            int offset = t * USERS / THREADS;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < USERS; i++) {
+                    int index = (offset + i) % USERS;
+                    assertEquals("user" + index,
+                            database.findClosestRecordBelowThreshold(identities[index]).username);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        TierStats stats = database.getTierStats();
+        assertEquals(THREADS * USERS, stats.searches - before.searches);
+        assertEquals(THREADS * USERS, stats.hotHits + stats.coldHits - before.hotHits
+                - before.coldHits);
+        assertEquals(stats.promotions - before.promotions, stats.demotions - before.demotions);
+        assertEquals(HOT_USERS, stats.hotUsers);
+        assertEquals(USERS, stats.hotUsers + stats.coldUsers);
+        for (int i = 0; i < USERS; i++) {
+            assertEquals("user" + i, database.findClosestRecordBelowThreshold(identities[i])
+                    .username);
+        }
+    }
+
+    private UserDatabase createDatabase(String name, IndexType indexType) {
+        UserDatabase database = new UserDatabase(folder.getRoot(), name, VECTOR_LENGTH, false,
+                Metric.EUCLIDEAN, THRESHOLD, indexType, VectorPrecision.FLOAT32);
+        database.setResultCache(0);
+        return database;
+    }
+}
@@ -0,0 +1,206 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for clustering of unknown faces. Faces are clustered on the calling thread, unless
+ * the test is about the queue.
+ */
+public class UnknownFaceStoreTest {
+    private static final int VECTOR_LENGTH = 128;
+    private static final float CLUSTER_DISTANCE = 1;
+    private static final float NOISE = 0.01f;
+
+    /**
+     * Test that faces of the same person join one cluster, which keeps crop of one of its faces.
+     */
+    @Test
+    public void clusteringTest() {
+        Random random = new Random(5);
+        UnknownFaceStore<Integer> store = createStore(16);
+
+        int[] faces = {6, 4, 1};
+        int crop = 0;
+        for (int person = 0; person < faces.length; person++) {
+            float[] identity = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+            for (int i = 0; i < faces[person]; i++) {
+                assertTrue(store.offer(TestVectors.noisyCopy(random, identity, NOISE), crop++));
+            }
+        }
+
+        assertEquals(11, store.getClusteredFaces());
+        assertEquals(0, store.getDroppedFaces());
+
+        List<UnknownFaceStore.Cluster<Integer>> clusters = store.getClusters(1);
+        assertEquals(3, clusters.size());
+        for (int person = 0; person < faces.length; person++) {
+            assertEquals(faces[person], clusters.get(person).count);
+        }
+        assertTrue(clusters.get(0).crop < 6);
+        assertTrue(clusters.get(1).crop >= 6 && clusters.get(1).crop < 10);
+        assertEquals(10, (int) clusters.get(2).crop);
+
+        assertEquals(2, store.getClusters(4).size());
+    }
+
+    /**
+     * Test that enrolled cluster becomes a user with weight of its faces and leaves the store.
+     */
+    @Test
+    public void enrollTest() {
+        Random random = new Random(7);
+        UnknownFaceStore<Integer> store = createStore(16);
+        float[] identity = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+        for (int i = 0; i < 3; i++) {
+            store.offer(TestVectors.noisyCopy(random, identity, NOISE), i);
+        }
+        UnknownFaceStore.Cluster<Integer> cluster = store.getClusters(1).get(0);
+
+        UserDatabase database = new UserDatabase("enrolled", VECTOR_LENGTH, Metric.EUCLIDEAN,
+                CLUSTER_DISTANCE, IndexType.EXACT, VectorPrecision.FLOAT32);
+        store.enroll(cluster.id, "visitor", database);
+
+        assertEquals(0, store.getClusters(1).size());
+        assertEquals(1, database.getNumberOfUsers());
+        assertEquals("visitor", database.findClosestRecord(
+                TestVectors.noisyCopy(random, identity, NOISE)).username);
+
+        // New face of the visitor starts a new cluster
+        store.offer(TestVectors.noisyCopy(random, identity, NOISE), 3);
+        assertEquals(1, store.getClusters(1).size());
+    }
+
+    /**
+     * Test that user is added to the database without the lock of the store, so that clustering
+     * does not wait for the database.
+     */
+    @Test
+    public void enrollWithoutLockTest() {
+        Random random = new Random(13);
+        UnknownFaceStore<Integer> store = createStore(16);
+        store.offer(TestVectors.randomVector(random, VECTOR_LENGTH, 1), 0);
+        UnknownFaceStore.Cluster<Integer> cluster = store.getClusters(1).get(0);
+
+        UserDatabase database = new UserDatabase("enrolled", VECTOR_LENGTH, Metric.EUCLIDEAN,
+                CLUSTER_DISTANCE, IndexType.EXACT, VectorPrecision.FLOAT32) {
+            @Override
+            public void addUserRecord(UserRecord userRecord) {
+                assertFalse(Thread.holdsLock(store));
+                super.addUserRecord(userRecord);
+            }
+        };
+        store.enroll(cluster.id, "visitor", database);
+        assertEquals(1, database.getNumberOfUsers());
+    }
+
+    /**
+     * Test that faces with infinite or NaN values are dropped when offered, instead of failing
+     * on the clustering thread.
+     */
+    @Test
+    public void invalidFaceTest() {
+        Random random = new Random(15);
+        UnknownFaceStore<Integer> store = createStore(16);
+        for (float value : new float[]{Float.NaN, Float.POSITIVE_INFINITY}) {
+            float[] vector = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+            vector[VECTOR_LENGTH / 2] = value;
+            assertFalse(store.offer(vector, 0));
+        }
+
+        assertEquals(2, store.getDroppedFaces());
+        assertEquals(0, store.getClusteredFaces());
+        assertEquals(0, store.getClusters(1).size());
+    }
+
+    /**
+     * Test that cluster with the lowest activity is evicted when all clusters are taken.
+     */
+    @Test
+    public void evictionTest() {
+        Random random = new Random(9);
+        UnknownFaceStore<Integer> store = createStore(3);
+
+        float[][] identities = new float[4][];
+        int[] faces = {3, 1, 2, 1};
+        for (int person = 0; person < identities.length; person++) {
+            identities[person] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+            for (int i = 0; i < faces[person]; i++) {
+                store.offer(TestVectors.noisyCopy(random, identities[person], NOISE), person);
+            }
+        }
+
+        List<UnknownFaceStore.Cluster<Integer>> clusters = store.getClusters(1);
+        assertEquals(3, clusters.size());
+        assertEquals(0, (int) clusters.get(0).crop);
+        assertEquals(2, (int) clusters.get(1).crop);
+        assertEquals(3, (int) clusters.get(2).crop);
+
+        // Face of the evicted person starts a new cluster, evicting the least active one
+        store.offer(TestVectors.noisyCopy(random, identities[1], NOISE), 1);
+        clusters = store.getClusters(1);
+        assertEquals(3, clusters.size());
+        for (UnknownFaceStore.Cluster<Integer> cluster : clusters) {
+            assertTrue(cluster.crop != 3);
+        }
+    }
+
+    /**
+     * Test that faces offered while the queue is full are dropped without blocking, and queued
+     * faces are clustered once the clustering thread is free.
+     */
+    @Test
+    public void boundedQueueTest() throws InterruptedException {
+        int queueCapacity = 4;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity));
+        UnknownFaceStore<Integer> store = new UnknownFaceStore<>(VECTOR_LENGTH, Metric.EUCLIDEAN,
+                CLUSTER_DISTANCE, 16, IndexType.EXACT, executor);
+
+        // Keep the clustering thread busy
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        started.await();
+
+        Random random = new Random(11);
+        float[] identity = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+        for (int i = 0; i < queueCapacity; i++) {
+            assertTrue(store.offer(TestVectors.noisyCopy(random, identity, NOISE), i));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertFalse(store.offer(TestVectors.noisyCopy(random, identity, NOISE), i));
+        }
+        assertEquals(3, store.getDroppedFaces());
+        assertEquals(0, store.getClusteredFaces());
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(queueCapacity, store.getClusteredFaces());
+        assertEquals(queueCapacity, store.getClusters(1).get(0).count);
+    }
+
+    private static UnknownFaceStore<Integer> createStore(int maxClusters) {
+        return new UnknownFaceStore<>(VECTOR_LENGTH, Metric.EUCLIDEAN, CLUSTER_DISTANCE,
+                maxClusters, IndexType.EXACT, Runnable::run);
+    }
+}
@@ -0,0 +1,124 @@
+package com.libs.globaldata.userdatabase;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+/**
+ * Unit test for the database, searched with every index type.
+ */
+public class UserDatabaseTest {
+    private static final int VECTOR_LENGTH = 128;
+    private static final int USERS = 1024;
+    private static final float THRESHOLD = 0.3f;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Test that every user is still its own closest match after all users are enrolled again.
+     * Corrected rows are appended and old rows are left in the store as removed, close to the
+     * new ones, so they must not take places of the users in candidates of any index.
+     */
+    @Test
+    public void reEnrollmentTest() {
+        for (IndexType indexType : IndexType.values()) {
+            Random random = new Random(3);
+            UserDatabase database = createDatabase(indexType);
+            database.setMaxEmbeddings(1);
+            database.setCompactionRatio(1);
+
+            float[][] identities = new float[USERS][];
+            for (int i = 0; i < USERS; i++) {
+                identities[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+                database.addUserRecord(new UserRecord("user" + i,
+                        TestVectors.noisyCopy(random, identities[i], 0.05f)));
+            }
+            SearchIndex index = database.getSearchIndex();
+            if (index instanceof TrainableIndex) {
+                ((TrainableIndex<?, ?>) index).train().join();
+            }
+
+            // Candidates are decided by quantized distances alone
+            if (index instanceof PqIndex) {
+                ((PqIndex) index).setRerank(0);
+            } else if (index instanceof Sq8Index) {
+                ((Sq8Index) index).setRerank(0);
+            }
+
+            for (int i = 0; i < USERS; i++) {
+                database.addUserRecord(new UserRecord("user" + i,
+                        TestVectors.noisyCopy(random, identities[i], 0.05f)));
+            }
+            assertEquals(USERS, database.getNumberOfUsers());
+
+            for (int i = 0; i < USERS; i++) {
+                String username = "user" + i;
+                assertEquals(indexType + " " + username, username,
+                        database.findClosestRecord(database.getUserVector(username)).username);
+            }
+        }
+    }
+
+    /**
+     * Test that removed users are not found and remaining users are, while the store is
+     * compacted under every index type. Compaction copies the index in the background, users
+     * removed and re-enrolled meanwhile are applied to the compacted store before it is used.
+     */
+    @Test
+    public void compactionTest() throws InterruptedException {
+        for (IndexType indexType : IndexType.values()) {
+            Random random = new Random(5);
+            UserDatabase database = createDatabase(indexType);
+            database.setMaxEmbeddings(1);
+
+            float[][] identities = new float[USERS][];
+            for (int i = 0; i < USERS; i++) {
+                identities[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+                database.addUserRecord(new UserRecord("user" + i,
+                        TestVectors.noisyCopy(random, identities[i], 0.05f)));
+            }
+            SearchIndex index = database.getSearchIndex();
+
+            // Every even user is removed and every odd one re-enrolled
+            for (int i = 0; i < USERS; i++) {
+                if (i % 2 == 0) {
+                    database.removeUserRecord("user" + i);
+                } else {
+                    database.addUserRecord(new UserRecord("user" + i,
+                            TestVectors.noisyCopy(random, identities[i], 0.05f)));
+                }
+            }
+            assertEquals(USERS / 2, database.getNumberOfUsers());
+
+            // Exact scan compacts at once, index is copied and installed by a later search
+            if (index != null) {
+                long deadline = System.currentTimeMillis() + 10000;
+                while (database.getSearchIndex() == index
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                    database.findKClosestRecords(identities[1], 1);
+                }
+                assertNotSame(indexType.name(), index, database.getSearchIndex());
+            }
+
+            for (int i = 0; i < USERS; i++) {
+                String username = "user" + i;
+                String closest = database.findClosestRecord(identities[i]).username;
+                assertEquals(indexType + " " + username, i % 2 != 0, closest.equals(username));
+            }
+        }
+    }
+
+    private UserDatabase createDatabase(IndexType indexType) {
+        UserDatabase database = new UserDatabase(folder.getRoot(), indexType.name(), VECTOR_LENGTH,
+                false, Metric.COSINE, THRESHOLD, indexType, VectorPrecision.FLOAT32);
+        database.disableDatabaseSaving();
+        return database;
+    }
+}
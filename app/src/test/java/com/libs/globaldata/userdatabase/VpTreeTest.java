@@ -0,0 +1,135 @@
+package com.libs.globaldata.userdatabase;
+
+import com.common.VectorOperations;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit test for vantage-point tree index, compares it with the exact scan.
+ */
+public class VpTreeTest {
+    private static final int VECTOR_LENGTH = 128;
+    private static final int IDENTITIES = 200;
+    private static final int USERS = 4000;
+    private static final int QUERIES = 200;
+    private static final int K = 10;
+
+    /**
+     * Test that tree finds the same rows as the exact scan and calculates fewer distances, for
+     * gallery of well separated identities.
+     */
+    @Test
+    public void exactSearchTest() {
+        for (Metric metric : Metric.values()) {
+            Random random = new Random(7);
+            VectorStore vectorStore = createStore(random, metric);
+            VpTreeIndex index = new VpTreeIndex();
+            index.attach(vectorStore);
+
+            assertSameAsScan(random, vectorStore, index, 1);
+            long visitedAt1 = index.getVisitedRows();
+            assertSameAsScan(random, vectorStore, index, K);
+            long visitedAtK = index.getVisitedRows() - visitedAt1;
+
+            assertTrue(visitedAt1 < (long) QUERIES * USERS / 4);
+            assertTrue(visitedAtK < (long) QUERIES * USERS / 2);
+        }
+    }
+
+    /**
+     * Test that tree stays exact while rows are replaced, removed and added, after it is rebuilt
+     * and after the store is compacted. Removed rows stay in the tree and are rejected by the heap.
+     */
+    @Test
+    public void modificationTest() {
+        Random random = new Random(11);
+        VectorStore vectorStore = createStore(random, Metric.EUCLIDEAN);
+        VpTreeIndex index = new VpTreeIndex();
+        index.attach(vectorStore);
+
+        // Fewer changes than trigger rebuild, so that they are handled by the built tree
+        for (int i = 0; i < 50; i++) {
+            vectorStore.markRemoved(randomRow(random, vectorStore));
+            index.onAdd(vectorStore.replace(randomRow(random, vectorStore),
+                    TestVectors.randomVector(random, VECTOR_LENGTH, 1), 1));
+            index.onAdd(vectorStore.add("added" + i,
+                    TestVectors.randomVector(random, VECTOR_LENGTH, 1), 1));
+        }
+        assertEquals(100, vectorStore.removedCount());
+        assertSameAsScan(random, vectorStore, index, K);
+
+        index.rebuildInBackground().join();
+        assertSameAsScan(random, vectorStore, index, K);
+
+        // Compacted store holds only rows in use, copy of the index is built over it
+        int[] rowMap = new int[vectorStore.size()];
+        VectorStore compacted = vectorStore.compact(rowMap);
+        assertEquals(USERS, compacted.size());
+        assertEquals(0, compacted.removedCount());
+        assertSameAsScan(random, compacted, (VpTreeIndex) index.copyFor(compacted), K);
+    }
+
+    /**
+     * Search the index with noisy copies of stored vectors and compare results with exact scan.
+     */
+    private static void assertSameAsScan(Random random, VectorStore vectorStore, VpTreeIndex index,
+                                         int k) {
+        for (int q = 0; q < QUERIES; q++) {
+            float[] query = TestVectors.noisyCopy(random,
+                    vectorStore.getVector(randomRow(random, vectorStore)), 0.05f);
+            double norm = VectorOperations.l2Norm(query);
+
+            TopKHeap exact = new TopKHeap(k);
+            for (int row = 0; row < vectorStore.size(); row++) {
+                if (!vectorStore.isRemoved(row)) {
+                    exact.offer(row, (float) vectorStore.distance(query, norm, row));
+                }
+            }
+            int[] exactIds = new int[k];
+            float[] exactDistances = new float[k];
+            exact.drain(exactIds, exactDistances);
+
+            TopKHeap found = new TopKHeap(k, vectorStore::isRemoved);
+            index.search(query, norm, found, Float.MAX_VALUE);
+            int[] foundIds = new int[k];
+            float[] foundDistances = new float[k];
+            assertEquals(k, found.drain(foundIds, foundDistances));
+
+            assertArrayEquals(exactIds, foundIds);
+            assertArrayEquals(exactDistances, foundDistances, 0);
+        }
+    }
+
+    /**
+     * Choose random row, which is not removed.
+     */
+    private static int randomRow(Random random, VectorStore vectorStore) {
+        int row;
+        do {
+            row = random.nextInt(vectorStore.size());
+        } while (vectorStore.isRemoved(row));
+        return row;
+    }
+
+    /**
+     * Create store of identities, each enrolled a few times with small noise.
+     */
+    private static VectorStore createStore(Random random, Metric metric) {
+        VectorStore vectorStore = new VectorStore(VECTOR_LENGTH, metric);
+        float[][] identities = new float[IDENTITIES][];
+        for (int i = 0; i < IDENTITIES; i++) {
+            identities[i] = TestVectors.randomVector(random, VECTOR_LENGTH, 1);
+        }
+        for (int i = 0; i < USERS; i++) {
+            vectorStore.add("user" + i,
+                    TestVectors.noisyCopy(random, identities[i % IDENTITIES], 0.05f), 1);
+        }
+        return vectorStore;
+    }
+}